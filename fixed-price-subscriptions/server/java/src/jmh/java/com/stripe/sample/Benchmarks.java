@@ -0,0 +1,24 @@
+package com.stripe.sample;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks matching the first argument (all of them by default)
+// with the GC profiler, so every result also shows the bytes allocated per
+// operation (`gc.alloc.rate.norm`). Results are written to
+// target/jmh-result.json for comparing runs.
+public class Benchmarks {
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(args.length > 0 ? args[0] : ".*")
+      .addProfiler(GCProfiler.class)
+      .resultFormat(ResultFormatType.JSON)
+      .result("target/jmh-result.json")
+      .build();
+    new Runner(options).run();
+  }
+}
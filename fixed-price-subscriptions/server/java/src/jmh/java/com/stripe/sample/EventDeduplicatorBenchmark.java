@@ -0,0 +1,81 @@
+package com.stripe.sample;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Shows that looking up an event ID costs the same whether the on-disk index
+// holds thousands or millions of IDs. The in-memory LRU is kept tiny so that
+// nearly every lookup goes to the index.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventDeduplicatorBenchmark {
+  @Param({"10000", "1000000", "4000000"})
+  int storedIds;
+
+  private Path dir;
+  private EventDeduplicator deduplicator;
+  private String[] seenIds;
+  private String[] unseenIds;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("dedupe-bench");
+    // Two slots per stored ID keeps every ID in the current table.
+    deduplicator = new EventDeduplicator(dir, 16, TimeUnit.HOURS.toMillis(72), storedIds * 2);
+    for (int i = 0; i < storedIds; i++) {
+      deduplicator.markProcessed(eventId(i));
+    }
+
+    seenIds = new String[4096];
+    unseenIds = new String[4096];
+    for (int i = 0; i < seenIds.length; i++) {
+      seenIds[i] = eventId(ThreadLocalRandom.current().nextInt(storedIds));
+      unseenIds[i] = eventId(storedIds + i);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.walk(dir)
+      .sorted((a, b) -> b.compareTo(a))
+      .forEach(path -> path.toFile().delete());
+  }
+
+  @Benchmark
+  public boolean duplicate() {
+    return deduplicator.tryClaim(seenIds[ThreadLocalRandom.current().nextInt(seenIds.length)]);
+  }
+
+  @Benchmark
+  public boolean firstDelivery() {
+    String eventId = unseenIds[ThreadLocalRandom.current().nextInt(unseenIds.length)];
+    boolean claimed = deduplicator.tryClaim(eventId);
+    deduplicator.release(eventId);
+    return claimed;
+  }
+
+  private static String eventId(int i) {
+    return String.format("evt_1Q%022d", i);
+  }
+}
@@ -0,0 +1,75 @@
+package com.stripe.sample;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+// Realistic API payloads for the benchmarks, loaded from src/jmh/resources.
+final class Fixtures {
+  private Fixtures() {}
+
+  // A new subscription as `/create-subscription` returns it, with the latest
+  // invoice and its payment intent expanded.
+  static String subscription() {
+    return read("fixtures/subscription.json");
+  }
+
+  // A renewal invoice with `lines` line items.
+  static String invoice(int lines) {
+    JsonObject invoice = JsonParser.parseString(read("fixtures/invoice.json")).getAsJsonObject();
+    JsonObject list = invoice.getAsJsonObject("lines");
+    JsonObject line = list.getAsJsonArray("data").get(0).getAsJsonObject();
+    JsonArray data = new JsonArray();
+    for (int i = 0; i < lines; i++) {
+      JsonObject copy = line.deepCopy();
+      copy.addProperty("id", String.format("il_1PqH7kL6xYkR0aBcLine%04d", i));
+      data.add(copy);
+    }
+    list.add("data", data);
+    list.addProperty("total_count", lines);
+    return invoice.toString();
+  }
+
+  // A webhook event wrapping `object`, as Stripe would post it.
+  static String event(String type, String object) {
+    JsonObject event = new JsonObject();
+    event.addProperty("id", "evt_1PqH7mL6xYkR0aBcEvent001");
+    event.addProperty("object", "event");
+    event.addProperty("api_version", com.stripe.Stripe.API_VERSION);
+    event.addProperty("created", 1720595606);
+    JsonObject data = new JsonObject();
+    data.add("object", JsonParser.parseString(object));
+    event.add("data", data);
+    event.addProperty("livemode", false);
+    event.addProperty("pending_webhooks", 1);
+    JsonObject request = new JsonObject();
+    request.add("id", null);
+    request.add("idempotency_key", null);
+    event.add("request", request);
+    event.addProperty("type", type);
+    return event.toString();
+  }
+
+  private static String read(String name) {
+    try (InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(name)) {
+      if (in == null) {
+        throw new IllegalStateException(name + " is not on the classpath");
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
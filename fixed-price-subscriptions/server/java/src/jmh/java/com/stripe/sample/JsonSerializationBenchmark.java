@@ -0,0 +1,105 @@
+package com.stripe.sample;
+
+import com.stripe.model.Invoice;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+import com.stripe.net.ApiResource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What our responses cost to render. `prettyPrinted` is how the routes used
+// to render them, with StripeObject.PRETTY_PRINT_GSON; `compact` is
+// ResponseWriter with every field, as with RESPONSE_FIELDS=all; `projected`
+// keeps only the fields a front end would typically read. The size of each is
+// printed at the start of the trial.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonSerializationBenchmark {
+  private static final ResponseWriter.Fields SUBSCRIPTION_FIELDS = ResponseWriter.Fields.of(
+    "subscription.id",
+    "subscription.status",
+    "subscription.cancel_at_period_end",
+    "subscription.latest_invoice.id",
+    "subscription.items.data.id",
+    "subscription.items.data.current_period_end",
+    "subscription.items.data.price.id",
+    "subscription.items.data.price.lookup_key"
+  );
+  private static final ResponseWriter.Fields INVOICE_FIELDS = ResponseWriter.Fields.of(
+    "invoice.id",
+    "invoice.status",
+    "invoice.currency",
+    "invoice.amount_due",
+    "invoice.subtotal",
+    "invoice.total",
+    "invoice.period_start",
+    "invoice.period_end",
+    "invoice.next_payment_attempt",
+    "invoice.lines.has_more",
+    "invoice.lines.data.id",
+    "invoice.lines.data.description",
+    "invoice.lines.data.amount",
+    "invoice.lines.data.currency",
+    "invoice.lines.data.period",
+    "invoice.lines.data.pricing.price_details.price",
+    "invoice.lines.data.parent.subscription_item_details.proration"
+  );
+
+  @Param({"subscription", "invoice-1-line", "invoice-100-lines"})
+  String payload;
+
+  private Map<String, Object> response;
+  private ResponseWriter.Fields fields;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    response = new HashMap<>();
+    if ("subscription".equals(payload)) {
+      response.put("subscription", ApiResource.GSON.fromJson(Fixtures.subscription(), Subscription.class));
+      fields = SUBSCRIPTION_FIELDS;
+    } else {
+      int lines = "invoice-1-line".equals(payload) ? 1 : 100;
+      response.put("invoice", ApiResource.GSON.fromJson(Fixtures.invoice(lines), Invoice.class));
+      fields = INVOICE_FIELDS;
+    }
+    System.out.println(
+      payload + ": prettyPrinted " + prettyPrinted().length() +
+      " bytes, compact " + compact().length() +
+      " bytes, projected " + projected().length() + " bytes"
+    );
+  }
+
+  @Benchmark
+  public String prettyPrinted() {
+    return StripeObject.PRETTY_PRINT_GSON.toJson(response);
+  }
+
+  @Benchmark
+  public String compact() {
+    return ResponseWriter.write(response);
+  }
+
+  @Benchmark
+  public String projected() {
+    return ResponseWriter.write(response, fields);
+  }
+}
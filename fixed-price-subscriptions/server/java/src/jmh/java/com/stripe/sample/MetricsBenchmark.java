@@ -0,0 +1,82 @@
+package com.stripe.sample;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What recording a request costs: the histogram on its own, a route as the
+// `afterAfter` filter records it, and a Stripe call as PooledStripeHttpClient
+// records it (naming the operation from a path with a different ID each
+// time). `nanoTime` is the clock read every recording already pays for.
+// Run through Benchmarks to see that none of them allocate.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+  private Metrics metrics;
+  private Histogram histogram;
+  private long[] latencies;
+  private String[] subscriptionPaths;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    metrics = new Metrics();
+    histogram = new Histogram();
+    latencies = new long[4096];
+    subscriptionPaths = new String[4096];
+    for (int i = 0; i < latencies.length; i++) {
+      // Between 50 microseconds and 2 seconds.
+      latencies[i] = ThreadLocalRandom.current().nextLong(50_000, 2_000_000_000L);
+      subscriptionPaths[i] = String.format("/v1/subscriptions/sub_1Q%022d", i);
+    }
+    // The first time a route or operation is seen isn't the hot path.
+    metrics.route("POST", "/create-subscription");
+    metrics.operation("GET", subscriptionPaths[0]);
+  }
+
+  @Benchmark
+  public long nanoTime() {
+    return System.nanoTime();
+  }
+
+  @Benchmark
+  public void histogram() {
+    histogram.record(latency());
+  }
+
+  @Benchmark
+  public void route() {
+    metrics.route("POST", "/create-subscription").record(200, latency());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void routeFourThreads() {
+    metrics.route("POST", "/create-subscription").record(200, latency());
+  }
+
+  @Benchmark
+  public void stripeCall() {
+    int i = ThreadLocalRandom.current().nextInt(subscriptionPaths.length);
+    metrics.operation("GET", subscriptionPaths[i]).record(200, latencies[i]);
+  }
+
+  private long latency() {
+    return latencies[ThreadLocalRandom.current().nextInt(latencies.length)];
+  }
+}
@@ -0,0 +1,69 @@
+package com.stripe.sample;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Resolving the price name a route is sent: as the routes used to, by
+// upper-casing it and asking Dotenv, and through PriceRegistry. Both read
+// the same env file, written to a temporary directory.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PriceRegistryBenchmark {
+  @Param({"sample_premium", "Sample_Basic", "unknown"})
+  public String name;
+
+  private Dotenv dotenv;
+  private PriceRegistry registry;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    Path dir = Files.createTempDirectory("price-registry-benchmark");
+    Path envFile = dir.resolve(".env");
+    Files.write(
+      envFile,
+      Arrays.asList(
+        "STRIPE_PUBLISHABLE_KEY=pk_test_benchmark",
+        "STRIPE_SECRET_KEY=sk_test_benchmark",
+        "STRIPE_WEBHOOK_SECRET=whsec_benchmark",
+        "STATIC_DIR=../../client/vanillajs",
+        "SAMPLE_BASIC=price_1QbasicBasicBasicBasic",
+        "SAMPLE_PREMIUM=price_1QpremiumPremiumPremium"
+      ),
+      StandardCharsets.UTF_8
+    );
+    dotenv = Dotenv.configure().directory(dir.toString()).load();
+    registry = new PriceRegistry(dotenv, envFile);
+  }
+
+  @Benchmark
+  public String dotenvLookup() {
+    return dotenv.get(name.toUpperCase());
+  }
+
+  @Benchmark
+  public String registry() {
+    return registry.resolve(name);
+  }
+}
@@ -0,0 +1,86 @@
+package com.stripe.sample;
+
+import com.google.gson.Gson;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing each route's request body: with a plain Gson from a String, as
+// Server used to, and with the route's RequestBodies reader straight from the
+// body's bytes, as it does now.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBodyBenchmark {
+  private final Gson gson = new Gson();
+
+  private final String createCustomer = "{\"email\":\"jenny.rosen@example.com\"}";
+  private final String createSubscription = "{\"priceId\":\"price_1PqG0aL6xYkR0aBcPremium\"}";
+  private final String updateSubscription =
+    "{\"subscriptionId\":\"sub_1PqG2hL6xYkR0aBcDeFgHiJk\",\"newPriceLookupKey\":\"sample_premium\"}";
+  private final String cancelSubscription = "{\"subscriptionId\":\"sub_1PqG2hL6xYkR0aBcDeFgHiJk\"}";
+
+  private final byte[] createCustomerBytes = createCustomer.getBytes(StandardCharsets.UTF_8);
+  private final byte[] createSubscriptionBytes = createSubscription.getBytes(StandardCharsets.UTF_8);
+  private final byte[] updateSubscriptionBytes = updateSubscription.getBytes(StandardCharsets.UTF_8);
+  private final byte[] cancelSubscriptionBytes = cancelSubscription.getBytes(StandardCharsets.UTF_8);
+
+  @Benchmark
+  public Object createCustomerRequest() {
+    return gson.fromJson(createCustomer, Server.CreateCustomerRequest.class);
+  }
+
+  @Benchmark
+  public Object createSubscriptionRequest() {
+    return gson.fromJson(createSubscription, Server.CreateSubscriptionRequest.class);
+  }
+
+  @Benchmark
+  public Object updateSubscriptionRequest() {
+    return gson.fromJson(updateSubscription, Server.UpdateSubscriptionRequest.class);
+  }
+
+  @Benchmark
+  public Object cancelSubscriptionRequest() {
+    return gson.fromJson(cancelSubscription, Server.CancelSubscriptionRequest.class);
+  }
+
+  @Benchmark
+  public Object createCustomerRequestStreaming() throws IOException {
+    return parse(createCustomerBytes, Server.CreateCustomerRequest.READER);
+  }
+
+  @Benchmark
+  public Object createSubscriptionRequestStreaming() throws IOException {
+    return parse(createSubscriptionBytes, Server.CreateSubscriptionRequest.READER);
+  }
+
+  @Benchmark
+  public Object updateSubscriptionRequestStreaming() throws IOException {
+    return parse(updateSubscriptionBytes, Server.UpdateSubscriptionRequest.READER);
+  }
+
+  @Benchmark
+  public Object cancelSubscriptionRequestStreaming() throws IOException {
+    return parse(cancelSubscriptionBytes, Server.CancelSubscriptionRequest.READER);
+  }
+
+  private static <T> T parse(byte[] body, RequestBodies.BodyReader<T> reader) throws IOException {
+    return RequestBodies.parse(new ByteArrayInputStream(body), body.length, reader);
+  }
+}
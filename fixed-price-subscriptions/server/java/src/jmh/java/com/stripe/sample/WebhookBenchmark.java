@@ -0,0 +1,60 @@
+package com.stripe.sample;
+
+import com.stripe.exception.SignatureVerificationException;
+import com.stripe.model.Event;
+import com.stripe.net.Webhook;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The work `/webhook` does before any handler runs: checking the signature,
+// and `Webhook.constructEvent`, which checks it and then parses the event.
+// The payloads are an `invoice.paid` event with one line item (about 2 KB)
+// and with 100 (about 50 KB).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebhookBenchmark {
+  private static final String SECRET = "whsec_benchmark";
+
+  @Param({"1", "100"})
+  int invoiceLines;
+
+  private String payload;
+  private String signature;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    payload = Fixtures.event("invoice.paid", Fixtures.invoice(invoiceLines));
+    // Signed now; the whole run stays well inside the default five minute
+    // tolerance.
+    long timestamp = Webhook.Util.getTimeNow();
+    signature = "t=" + timestamp + ",v1=" +
+      Webhook.Util.computeHmacSha256(SECRET, timestamp + "." + payload);
+  }
+
+  @Benchmark
+  public boolean verifySignature() throws SignatureVerificationException {
+    return Webhook.Signature.verifyHeader(payload, signature, SECRET, Webhook.DEFAULT_TOLERANCE);
+  }
+
+  @Benchmark
+  public Event constructEvent() throws SignatureVerificationException {
+    return Webhook.constructEvent(payload, signature, SECRET);
+  }
+}
@@ -0,0 +1,195 @@
+package com.stripe.sample;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.net.HttpClient;
+import com.stripe.net.HttpContent;
+import com.stripe.net.HttpHeaders;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.client.AbstractConnectionPool;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Destination;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.io.ssl.SslHandshakeListener;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+// The HTTP client every Stripe call in this server goes through. By default
+// stripe-java opens an HttpURLConnection per request and relies on the JDK's
+// small keep-alive cache; this keeps a pool of persistent connections per
+// Stripe host instead (api.stripe.com, meter-events.stripe.com, ...), using
+// the Jetty client that already ships with Spark.
+//
+// It is installed once at startup as the global response getter, so the
+// static `Customer.create(...)` style calls and StripeClient share it. That
+// also makes it the one place every call can be timed; given a Metrics, it
+// records each call's latency and outcome there.
+public class PooledStripeHttpClient extends HttpClient {
+  private final org.eclipse.jetty.client.HttpClient client;
+  private final long readTimeoutMillis;
+  private final Metrics metrics;
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder handshakes = new LongAdder();
+  private final LongAdder failedHandshakes = new LongAdder();
+
+  public PooledStripeHttpClient(
+    int maxConnectionsPerHost,
+    long connectTimeoutMillis,
+    long readTimeoutMillis,
+    long keepAliveMillis
+  ) {
+    this(maxConnectionsPerHost, connectTimeoutMillis, readTimeoutMillis, keepAliveMillis, null);
+  }
+
+  public PooledStripeHttpClient(
+    int maxConnectionsPerHost,
+    long connectTimeoutMillis,
+    long readTimeoutMillis,
+    long keepAliveMillis,
+    Metrics metrics
+  ) {
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.metrics = metrics;
+    this.client = new org.eclipse.jetty.client.HttpClient(new SslContextFactory.Client());
+    client.setMaxConnectionsPerDestination(maxConnectionsPerHost);
+    client.setConnectTimeout(connectTimeoutMillis);
+    // Pooled connections that stay idle this long are closed.
+    client.setIdleTimeout(keepAliveMillis);
+    client.setFollowRedirects(false);
+    // stripe-java sends its own User-Agent.
+    client.setUserAgentField(null);
+    // Every new TLS connection means a handshake, so this also counts how
+    // often the pool had to open a connection.
+    client.addBean(new SslHandshakeListener() {
+      @Override
+      public void handshakeSucceeded(Event event) {
+        handshakes.increment();
+      }
+
+      @Override
+      public void handshakeFailed(Event event, Throwable failure) {
+        failedHandshakes.increment();
+      }
+    });
+    try {
+      client.start();
+    } catch (Exception e) {
+      throw new IllegalStateException("Could not start the Stripe HTTP client", e);
+    }
+  }
+
+  @Override
+  public StripeResponse request(StripeRequest request) throws ApiConnectionException {
+    requests.increment();
+    Metrics.Operation operation = metrics == null
+      ? null
+      : metrics.operation(request.method().name(), request.url().getPath());
+    long started = 0;
+    try {
+      Request outbound = client
+        .newRequest(request.url().toURI())
+        .method(request.method().name())
+        .idleTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS);
+
+      Map<String, List<String>> userAgent = new HashMap<>();
+      userAgent.put("User-Agent", Arrays.asList(buildUserAgentString(request)));
+      userAgent.put("X-Stripe-Client-User-Agent", Arrays.asList(buildXStripeClientUserAgentString()));
+      HttpHeaders headers = request.headers().withAdditionalHeaders(userAgent);
+      for (Map.Entry<String, List<String>> header : headers.map().entrySet()) {
+        outbound.header(header.getKey(), String.join(",", header.getValue()));
+      }
+
+      HttpContent content = request.content();
+      if (content != null) {
+        outbound.content(
+          new BytesContentProvider(content.contentType(), content.byteArrayContent())
+        );
+      }
+
+      started = System.nanoTime();
+      ContentResponse response = outbound.send();
+      if (operation != null) {
+        operation.record(response.getStatus(), System.nanoTime() - started);
+      }
+      Map<String, List<String>> responseHeaders = new HashMap<>();
+      for (HttpField field : response.getHeaders()) {
+        responseHeaders
+          .computeIfAbsent(field.getName(), name -> new ArrayList<>())
+          .add(field.getValue());
+      }
+      return new StripeResponse(
+        response.getStatus(),
+        HttpHeaders.of(responseHeaders),
+        response.getContentAsString()
+      );
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      recordConnectionError(operation, started);
+      throw connectionError(request, e);
+    } catch (ExecutionException | TimeoutException | URISyntaxException e) {
+      recordConnectionError(operation, started);
+      throw connectionError(request, e);
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("requests", requests.sum());
+    stats.put("handshakes", handshakes.sum());
+    stats.put("failedHandshakes", failedHandshakes.sum());
+
+    Map<String, Object> pools = new HashMap<>();
+    for (Destination destination : client.getDestinations()) {
+      if (!(destination instanceof HttpDestination)) {
+        continue;
+      }
+      HttpDestination httpDestination = (HttpDestination) destination;
+      Map<String, Object> pool = new HashMap<>();
+      pool.put("queuedRequests", httpDestination.getQueuedRequestCount());
+      if (httpDestination.getConnectionPool() instanceof AbstractConnectionPool) {
+        AbstractConnectionPool connections =
+          (AbstractConnectionPool) httpDestination.getConnectionPool();
+        pool.put("connections", connections.getConnectionCount());
+        pool.put("active", connections.getActiveConnectionCount());
+        pool.put("idle", connections.getIdleConnectionCount());
+        pool.put("pending", connections.getPendingConnectionCount());
+        pool.put("max", connections.getMaxConnectionCount());
+      }
+      pools.put(httpDestination.getHost(), pool);
+    }
+    stats.put("pools", pools);
+    return stats;
+  }
+
+  private static void recordConnectionError(Metrics.Operation operation, long started) {
+    if (operation != null) {
+      operation.record(Metrics.Outcome.CONNECTION_ERROR, started == 0 ? 0 : System.nanoTime() - started);
+    }
+  }
+
+  private static ApiConnectionException connectionError(StripeRequest request, Exception e) {
+    return new ApiConnectionException(
+      String.format(
+        "IOException during API request to Stripe (%s): %s",
+        request.url().getHost(),
+        e.getMessage()
+      ),
+      e
+    );
+  }
+}
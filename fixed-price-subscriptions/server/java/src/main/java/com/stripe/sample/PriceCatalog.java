@@ -0,0 +1,219 @@
+package com.stripe.sample;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Price;
+import com.stripe.model.PriceCollection;
+import com.stripe.param.PriceListParams;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Keeps the prices shown on the pricing page in memory so that `/config`
+// doesn't have to call Price.list on every page load. The catalog is loaded
+// at startup, refreshed in the background every `ttlSeconds`, and can be
+// invalidated right away when a `price.*` or `product.*` webhook arrives.
+//
+// Only one refresh runs at a time: requests that find the cache empty while
+// a refresh is already loading wait for its result instead of each calling
+// Price.list. A refresh that started before an invalidation isn't shared
+// with requests that arrive after it, since its prices may be the old ones.
+public class PriceCatalog {
+  // A refresh in progress and the generation it started in.
+  private static final class Refresh {
+    final long generation;
+    final CompletableFuture<List<Price>> result = new CompletableFuture<>();
+
+    Refresh(long generation) {
+      this.generation = generation;
+    }
+  }
+
+  private final List<String> lookupKeys;
+  private final long ttlMillis;
+  private final ScheduledExecutorService scheduler;
+  // Bumped on every invalidation so a refresh that started before a
+  // `price.*` event can't put the old prices back into the cache.
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicReference<Refresh> inFlight = new AtomicReference<>();
+
+  private volatile List<Price> prices;
+  private volatile long loadedAt;
+  private volatile Consumer<List<Price>> listener = prices -> { };
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder refreshes = new LongAdder();
+  private final LongAdder joinedRefreshes = new LongAdder();
+  private final LongAdder refreshFailures = new LongAdder();
+  private final LongAdder refreshNanos = new LongAdder();
+  private volatile long lastRefreshNanos;
+
+  public PriceCatalog(List<String> lookupKeys, long ttlSeconds) {
+    this.lookupKeys = lookupKeys;
+    this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(
+        StripeCallScheduler.withPriority(StripeCallScheduler.Priority.BACKGROUND, r),
+        "price-catalog-refresh"
+      );
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Told about every newly loaded catalog. Set it before `start`.
+  public void onLoad(Consumer<List<Price>> listener) {
+    this.listener = listener;
+  }
+
+  // Loads the catalog once and schedules the background refresh. A failed
+  // initial load isn't fatal: the first `/config` request will retry it.
+  public void start() {
+    try {
+      refresh();
+    } catch (StripeException e) {
+      System.out.println("Initial price catalog load failed: " + e.getMessage());
+    }
+    scheduler.scheduleWithFixedDelay(
+      this::refreshQuietly,
+      ttlMillis,
+      ttlMillis,
+      TimeUnit.MILLISECONDS
+    );
+  }
+
+  public List<Price> getPrices() throws StripeException {
+    List<Price> current = prices;
+    if (current != null && !isExpired()) {
+      hits.increment();
+      return current;
+    }
+
+    // Nothing usable in memory (never loaded, invalidated, or the background
+    // refresh has been failing), so fall back to loading inline.
+    misses.increment();
+    return refresh();
+  }
+
+  // Drops the cached prices and reloads them in the background. Requests
+  // that arrive before the reload finishes wait for it.
+  public void invalidate() {
+    generation.incrementAndGet();
+    prices = null;
+    scheduler.execute(this::refreshQuietly);
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long refreshCount = refreshes.sum();
+    stats.put("hits", hits.sum());
+    stats.put("misses", misses.sum());
+    stats.put("refreshes", refreshCount);
+    stats.put("joinedRefreshes", joinedRefreshes.sum());
+    stats.put("refreshFailures", refreshFailures.sum());
+    stats.put("lastRefreshMillis", TimeUnit.NANOSECONDS.toMillis(lastRefreshNanos));
+    stats.put(
+      "avgRefreshMillis",
+      refreshCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(refreshNanos.sum() / refreshCount)
+    );
+    stats.put("ageMillis", loadedAt == 0 ? -1 : System.currentTimeMillis() - loadedAt);
+    return stats;
+  }
+
+  private boolean isExpired() {
+    return System.currentTimeMillis() - loadedAt > ttlMillis;
+  }
+
+  // Loads the prices, or waits for the refresh already loading them in
+  // this generation.
+  private List<Price> refresh() throws StripeException {
+    while (true) {
+      long current = generation.get();
+      Refresh running = inFlight.get();
+      if (running != null && running.generation == current) {
+        joinedRefreshes.increment();
+        return await(running);
+      }
+      Refresh mine = new Refresh(current);
+      if (!inFlight.compareAndSet(running, mine)) {
+        continue;
+      }
+      try {
+        List<Price> loaded = load(current);
+        mine.result.complete(loaded);
+        return loaded;
+      } catch (StripeException | RuntimeException | Error e) {
+        mine.result.completeExceptionally(e);
+        throw e;
+      } finally {
+        inFlight.compareAndSet(mine, null);
+      }
+    }
+  }
+
+  private static List<Price> await(Refresh refresh) throws StripeException {
+    try {
+      return refresh.result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ApiConnectionException("Interrupted while waiting for the price catalog", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof StripeException) {
+        throw (StripeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (RuntimeException) cause;
+    }
+  }
+
+  private List<Price> load(long startGeneration) throws StripeException {
+    long start = System.nanoTime();
+    try {
+      PriceListParams.Builder params = PriceListParams.builder();
+      for (String lookupKey : lookupKeys) {
+        params.addLookupKey(lookupKey);
+      }
+      PriceCollection collection = Price.list(params.build());
+      List<Price> loaded = Collections.unmodifiableList(collection.getData());
+      if (generation.get() == startGeneration) {
+        prices = loaded;
+        loadedAt = System.currentTimeMillis();
+        listener.accept(loaded);
+      }
+      return loaded;
+    } catch (StripeException e) {
+      refreshFailures.increment();
+      throw e;
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      lastRefreshNanos = elapsed;
+      refreshNanos.add(elapsed);
+      refreshes.increment();
+    }
+  }
+
+  // Runs on the single scheduler thread, so background refreshes never
+  // overlap each other.
+  private void refreshQuietly() {
+    try {
+      refresh();
+    } catch (StripeException e) {
+      System.out.println("Price catalog refresh failed: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,312 @@
+package com.stripe.sample;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
+import com.stripe.model.StripeObject;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Renders route responses as compact JSON, optionally keeping only the fields
+// the client reads.
+//
+// Serialization still goes through StripeObject.PRETTY_PRINT_GSON, so
+// expandable fields come out as the ID or the object just as before (see the
+// comment in `/create-customer`); only the indentation is gone, because the
+// JsonWriter it writes to has none. With `Fields`, names that aren't listed
+// are dropped as Gson streams them out, so the parts of an Invoice or
+// Subscription the client never reads aren't written at all.
+public final class ResponseWriter {
+  private static final LongAdder responses = new LongAdder();
+  private static final LongAdder bytes = new LongAdder();
+
+  private ResponseWriter() {}
+
+  // The fields to keep, as dotted paths from the top of the response, e.g.
+  // "subscription.items.data.price.id". Arrays don't add a path segment, and
+  // everything below the last name of a path is kept.
+  //
+  // When a path goes through an expandable field that holds only an ID, the
+  // ID is kept.
+  public static final class Fields {
+    public static final Fields ALL = new Fields(true);
+
+    private final Map<String, Fields> children = new HashMap<>();
+    private boolean all;
+
+    private Fields(boolean all) {
+      this.all = all;
+    }
+
+    public static Fields of(String... paths) {
+      Fields root = new Fields(false);
+      for (String path : paths) {
+        Fields node = root;
+        for (String name : path.split("\\.")) {
+          node = node.children.computeIfAbsent(name, key -> new Fields(false));
+        }
+        node.all = true;
+      }
+      return root;
+    }
+
+    Fields child(String name) {
+      return all ? this : children.get(name);
+    }
+  }
+
+  public static String write(Object response) {
+    return write(response, Fields.ALL);
+  }
+
+  public static String write(Object response, Fields fields) {
+    StringWriter out = new StringWriter();
+    try {
+      writeTo(out, response, fields);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    String json = out.toString();
+    responses.increment();
+    bytes.add(json.length());
+    return json;
+  }
+
+  // Writes `value` to `out` as it is serialized, for responses streamed a
+  // piece at a time. These aren't counted in `stats`.
+  public static void writeTo(Writer out, Object value, Fields fields) throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    try {
+      StripeObject.PRETTY_PRINT_GSON.toJson(
+        value,
+        value.getClass(),
+        fields.all ? writer : new ProjectingJsonWriter(writer, fields)
+      );
+    } catch (JsonIOException e) {
+      // Gson wraps the writer's exceptions, e.g. a client hanging up.
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  public static Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long count = responses.sum();
+    stats.put("responses", count);
+    stats.put("bytes", bytes.sum());
+    stats.put("averageBytes", count == 0 ? 0.0 : (double) bytes.sum() / count);
+    return stats;
+  }
+
+  // Passes through to `out` only the names selected by `fields`, with their
+  // values. A value that is left out is swallowed whole, however deeply
+  // nested.
+  static final class ProjectingJsonWriter extends JsonWriter {
+    private final JsonWriter out;
+    private final Fields root;
+    // The Fields for the children of each open object or array.
+    private final Deque<Fields> scopes = new ArrayDeque<>();
+    // Set by name(): what to use for the value that follows.
+    private Fields next;
+    private boolean skipNext;
+    // Nesting depth inside a value that is being left out.
+    private int skipping;
+
+    ProjectingJsonWriter(JsonWriter out, Fields root) {
+      super(new StringWriter());
+      this.out = out;
+      this.root = root;
+    }
+
+    @Override
+    public JsonWriter name(String name) throws IOException {
+      if (skipping > 0) {
+        return this;
+      }
+      Fields fields = scopes.isEmpty() ? root : scopes.peek();
+      next = fields.child(name);
+      skipNext = next == null;
+      if (!skipNext) {
+        out.name(name);
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+      if (open()) {
+        out.beginObject();
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+      if (end()) {
+        out.endObject();
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+      if (open()) {
+        out.beginArray();
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+      if (end()) {
+        out.endArray();
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) throws IOException {
+      if (primitive()) {
+        out.value(value);
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) throws IOException {
+      if (primitive()) {
+        out.value(value);
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(Boolean value) throws IOException {
+      if (primitive()) {
+        out.value(value);
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(float value) throws IOException {
+      if (primitive()) {
+        out.value(value);
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(double value) throws IOException {
+      if (primitive()) {
+        out.value(value);
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) throws IOException {
+      if (primitive()) {
+        out.value(value);
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) throws IOException {
+      if (primitive()) {
+        out.value(value);
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter nullValue() throws IOException {
+      if (primitive()) {
+        out.nullValue();
+      }
+      return this;
+    }
+
+    @Override
+    public JsonWriter jsonValue(String value) throws IOException {
+      if (primitive()) {
+        out.jsonValue(value);
+      }
+      return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+
+    // Starts an object or array; returns whether it is written. `end` closes
+    // one the same way.
+    private boolean open() {
+      copySettings();
+      if (skipping > 0 || skipNext) {
+        skipping++;
+        skipNext = false;
+        return false;
+      }
+      scopes.push(valueFields());
+      return true;
+    }
+
+    private boolean end() {
+      if (skipping > 0) {
+        skipping--;
+        return false;
+      }
+      scopes.pop();
+      return true;
+    }
+
+    // Whether a number, string, boolean or null is written. An ID standing in
+    // for an expandable object is kept whenever the object would have been.
+    private boolean primitive() {
+      copySettings();
+      if (skipping > 0) {
+        return false;
+      }
+      if (skipNext) {
+        skipNext = false;
+        return false;
+      }
+      next = null;
+      return true;
+    }
+
+    // Gson configures the writer it is given (this one) before writing; the
+    // real writer has to behave the same, e.g. about dropping null fields.
+    @SuppressWarnings("deprecation")
+    private void copySettings() {
+      out.setLenient(isLenient());
+      out.setHtmlSafe(isHtmlSafe());
+      out.setSerializeNulls(getSerializeNulls());
+    }
+
+    // The Fields for a value: the ones name() picked inside an object, or
+    // the enclosing array's (or the root's) otherwise.
+    private Fields valueFields() {
+      Fields fields = next != null ? next : scopes.isEmpty() ? root : scopes.peek();
+      next = null;
+      return fields;
+    }
+  }
+}
@@ -9,8 +9,10 @@ import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 
 import com.stripe.Stripe;
+import com.stripe.StripeClient;
 import com.stripe.exception.CardException;
 import com.stripe.exception.SignatureVerificationException;
+import com.stripe.exception.StripeException;
 import com.stripe.model.Customer;
 import com.stripe.model.Event;
 import com.stripe.model.EventDataObjectDeserializer;
@@ -22,6 +24,9 @@ import com.stripe.model.PriceCollection;
 import com.stripe.model.StripeObject;
 import com.stripe.model.Subscription;
 import com.stripe.model.SubscriptionCollection;
+import com.stripe.net.ApiResource;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.stripe.net.StripeResponseGetter;
 import com.stripe.net.Webhook;
 import com.stripe.param.CustomerCreateParams;
 import com.stripe.param.CustomerUpdateParams;
@@ -35,17 +40,80 @@ import com.stripe.param.SubscriptionListParams;
 import com.stripe.param.SubscriptionUpdateParams;
 
 import io.github.cdimascio.dotenv.Dotenv;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import spark.Response;
 
 public class Server {
   private static Gson gson = new Gson();
 
+  // The fields of each response our front end reads. Everything else is left
+  // out, unless RESPONSE_FIELDS=all; see ResponseWriter. Routes the front end
+  // doesn't call (`/invoice-preview`, `/update-subscription`) always send the
+  // whole objects, since there is no reader to check a projection against.
+  static final ResponseWriter.Fields CUSTOMER_FIELDS = ResponseWriter.Fields.of(
+    "customer.id",
+    "customer.email"
+  );
+  static final ResponseWriter.Fields CANCEL_SUBSCRIPTION_FIELDS = ResponseWriter.Fields.of(
+    "subscription.id",
+    "subscription.status",
+    "subscription.cancel_at_period_end",
+    "subscription.canceled_at",
+    "subscription.ended_at"
+  );
+  static final ResponseWriter.Fields SUBSCRIPTIONS_FIELDS = ResponseWriter.Fields.of(
+    "subscriptions.object",
+    "subscriptions.has_more",
+    "subscriptions.data.id",
+    "subscriptions.data.status",
+    "subscriptions.data.customer",
+    "subscriptions.data.cancel_at_period_end",
+    "subscriptions.data.current_period_end",
+    "subscriptions.data.default_payment_method.card.brand",
+    "subscriptions.data.default_payment_method.card.last4",
+    "subscriptions.data.items.data.id",
+    "subscriptions.data.items.data.current_period_end",
+    "subscriptions.data.items.data.price.id",
+    "subscriptions.data.items.data.price.lookup_key"
+  );
+
+  // One subscription from `/subscriptions`, as `/subscriptions/stream` writes
+  // them.
+  static final ResponseWriter.Fields SUBSCRIPTION_STREAM_FIELDS = ResponseWriter.Fields.of(
+    "id",
+    "status",
+    "customer",
+    "cancel_at_period_end",
+    "current_period_end",
+    "default_payment_method.card.brand",
+    "default_payment_method.card.last4",
+    "items.data.id",
+    "items.data.current_period_end",
+    "items.data.price.id",
+    "items.data.price.lookup_key"
+  );
+
+  private static boolean projectResponses = true;
+
   static class CreateCustomerRequest {
+    static final RequestBodies.BodyReader<CreateCustomerRequest> READER = RequestBodies
+      .reader(CreateCustomerRequest::new)
+      .requiredString("email", (body, value) -> body.email = value);
+
     @SerializedName("email")
     String email;
 
@@ -55,6 +123,10 @@ public class Server {
   }
 
   static class CreateSubscriptionRequest {
+    static final RequestBodies.BodyReader<CreateSubscriptionRequest> READER = RequestBodies
+      .reader(CreateSubscriptionRequest::new)
+      .requiredString("priceId", (body, value) -> body.priceId = value);
+
     @SerializedName("priceId")
     String priceId;
 
@@ -64,6 +136,11 @@ public class Server {
   }
 
   static class UpdateSubscriptionRequest {
+    static final RequestBodies.BodyReader<UpdateSubscriptionRequest> READER = RequestBodies
+      .reader(UpdateSubscriptionRequest::new)
+      .requiredString("subscriptionId", (body, value) -> body.subscriptionId = value)
+      .requiredString("newPriceLookupKey", (body, value) -> body.newPriceLookupKey = value);
+
     @SerializedName("subscriptionId")
     String subscriptionId;
 
@@ -80,6 +157,10 @@ public class Server {
   }
 
   static class CancelSubscriptionRequest {
+    static final RequestBodies.BodyReader<CancelSubscriptionRequest> READER = RequestBodies
+      .reader(CancelSubscriptionRequest::new)
+      .requiredString("subscriptionId", (body, value) -> body.subscriptionId = value);
+
     @SerializedName("subscriptionId")
     String subscriptionId;
 
@@ -100,15 +181,145 @@ public class Server {
     );
     Stripe.apiKey = dotenv.get("STRIPE_SECRET_KEY");
 
-    staticFiles.externalLocation(
-      Paths
-        .get(
-          Paths.get("").toAbsolutePath().toString(),
-          dotenv.get("STATIC_DIR")
-        )
-        .normalize()
-        .toString()
+    // Send Stripe API calls somewhere other than api.stripe.com, such as the
+    // stand-in in load-test/.
+    String apiBase = setting(dotenv, "STRIPE_API_BASE", null);
+    if (apiBase != null) {
+      Stripe.overrideApiBase(apiBase);
+      Stripe.overrideMeterEventsBase(apiBase);
+    }
+
+    // Responses are compact JSON holding only the fields above.
+    // RESPONSE_FIELDS=all sends the whole Stripe objects instead.
+    projectResponses = !"all".equals(setting(dotenv, "RESPONSE_FIELDS", "projected"));
+
+    // One pooled HTTP client for every Stripe call in the process, shared by
+    // the static API (Customer.create, ...) and by StripeClient, so requests
+    // reuse keep-alive connections instead of doing a new TLS handshake.
+    // Latency and outcome of every route and Stripe call, on `/metrics`.
+    Metrics metrics = new Metrics();
+    PooledStripeHttpClient stripeHttpClient = createStripeHttpClient(dotenv, metrics);
+    // Every call then waits its turn in the scheduler, which keeps us under
+    // Stripe's rate limits and lets route handlers go ahead of background
+    // work. STRIPE_SCHEDULER=off sends calls straight away.
+    StripeCallScheduler stripeScheduler = "off".equals(setting(dotenv, "STRIPE_SCHEDULER", "on"))
+      ? null
+      : createStripeCallScheduler(dotenv, stripeHttpClient);
+    StripeResponseGetter stripeResponseGetter = new LiveStripeResponseGetter(
+      stripeScheduler == null ? stripeHttpClient : stripeScheduler
     );
+    ApiResource.setGlobalResponseGetter(stripeResponseGetter);
+    StripeClient stripeClient = new StripeClient(stripeResponseGetter);
+
+    Path staticDir = Paths
+      .get(
+        Paths.get("").toAbsolutePath().toString(),
+        dotenv.get("STATIC_DIR")
+      )
+      .normalize();
+    // The front end is served from memory, compressed ahead of time and with
+    // ETags, and reloaded when STATIC_DIR changes. STATIC_CACHE=off has Spark
+    // read each file from disk on every request instead.
+    StaticAssets staticAssets = "off".equals(setting(dotenv, "STATIC_CACHE", "on"))
+      ? null
+      : startStaticAssets(staticDir);
+    if (staticAssets == null) {
+      staticFiles.externalLocation(staticDir.toString());
+    }
+
+    // The prices shown on the pricing page rarely change, so load them once
+    // and refresh them in the background instead of on every `/config`.
+    PriceCatalog priceCatalog = new PriceCatalog(
+      Arrays.asList("sample_basic", "sample_premium"),
+      Long.parseLong(setting(dotenv, "PRICE_CATALOG_TTL_SECONDS", "300"))
+    );
+
+    // Price names from the front end are resolved against the prices named
+    // in .env and the catalog's lookup keys, instead of against whatever is
+    // in the environment. Edits to .env are picked up within
+    // PRICE_REGISTRY_RELOAD_SECONDS (0 turns this off).
+    PriceRegistry priceRegistry = new PriceRegistry(dotenv, Paths.get(".env"));
+    long priceReloadSeconds = Long.parseLong(setting(dotenv, "PRICE_REGISTRY_RELOAD_SECONDS", "5"));
+    if (priceReloadSeconds > 0) {
+      priceRegistry.watch(priceReloadSeconds);
+    }
+    priceCatalog.onLoad(priceRegistry::setCatalogPrices);
+    priceCatalog.start();
+
+    // With WEBHOOK_MODE=async the `/webhook` route only verifies and stores
+    // each event, and acknowledges it straight away. The handlers run later
+    // on a small pool of workers, with retries and a dead-letter directory.
+    WebhookQueue webhookQueue = "async".equals(dotenv.get("WEBHOOK_MODE"))
+      ? startWebhookQueue(dotenv)
+      : null;
+
+    // Stripe may deliver the same event more than once. Remember which
+    // events were already handled so redeliveries are simply acknowledged.
+    EventDeduplicator eventDeduplicator = createEventDeduplicator(dotenv);
+
+    // Subscription item IDs seen in our own responses and in webhooks, so
+    // plan changes and previews can skip retrieving the subscription; the
+    // SUBSCRIPTION_ITEM_INDEX_SIZE most recently used are kept.
+    SubscriptionItemIndex subscriptionItemIndex = new SubscriptionItemIndex(
+      Integer.parseInt(setting(dotenv, "SUBSCRIPTION_ITEM_INDEX_SIZE", "100000"))
+    );
+
+    // A double click or a client retry of `/create-customer` or
+    // `/create-subscription` gets the result of the first request instead of
+    // creating a second customer or subscription.
+    long coalesceWindowMillis = TimeUnit.SECONDS.toMillis(
+      Long.parseLong(setting(dotenv, "REQUEST_COALESCE_WINDOW_SECONDS", "30"))
+    );
+    RequestCoalescer<Customer> customerCoalescer =
+      new RequestCoalescer<>("create-customer", coalesceWindowMillis, 10000);
+    RequestCoalescer<String> subscriptionCoalescer =
+      new RequestCoalescer<>("create-subscription", coalesceWindowMillis, 10000);
+
+    // Toggling between plan options on the pricing page asks for the same
+    // few invoice previews over and over; keep them for up to
+    // INVOICE_PREVIEW_CACHE_SECONDS (0 turns this off).
+    long previewCacheSeconds = Long.parseLong(setting(dotenv, "INVOICE_PREVIEW_CACHE_SECONDS", "60"));
+    InvoicePreviewCache invoicePreviewCache = previewCacheSeconds == 0
+      ? null
+      : new InvoicePreviewCache(
+          TimeUnit.SECONDS.toMillis(previewCacheSeconds),
+          Integer.parseInt(setting(dotenv, "INVOICE_PREVIEW_CACHE_SIZE", "10000"))
+        );
+
+    // `/subscriptions/stream` pages through every subscription, fetching
+    // SUBSCRIPTIONS_PAGE_SIZE at a time and the next page while the current
+    // one is written unless SUBSCRIPTIONS_PREFETCH=off.
+    SubscriptionStream subscriptionStream = new SubscriptionStream(
+      Long.parseLong(setting(dotenv, "SUBSCRIPTIONS_PAGE_SIZE", "100")),
+      !"off".equals(setting(dotenv, "SUBSCRIPTIONS_PREFETCH", "on")),
+      projectResponses ? SUBSCRIPTION_STREAM_FIELDS : ResponseWriter.Fields.ALL
+    );
+
+    // SUBSCRIPTION_PROJECTION=on answers `/subscriptions` from a local copy
+    // kept up to date by webhooks instead of calling Subscription.list.
+    // SUBSCRIPTION_PROJECTION=check keeps calling Stripe but compares each
+    // answer with the local copy and logs any differences.
+    String projectionMode = setting(dotenv, "SUBSCRIPTION_PROJECTION", "off");
+    SubscriptionProjection subscriptionProjection = "off".equals(projectionMode)
+      ? null
+      : startSubscriptionProjection(dotenv);
+
+    // SERVER_THREADS=virtual runs each request on its own virtual thread
+    // (Java 21) instead of on Jetty's pool of SERVER_MAX_THREADS threads. This
+    // has to happen before the first route is defined.
+    RouteThreads routeThreads = "virtual".equals(setting(dotenv, "SERVER_THREADS", "platform"))
+      ? RouteThreads.virtual(Long.parseLong(setting(dotenv, "VIRTUAL_THREAD_PINNED_THRESHOLD_MS", "20")))
+      : RouteThreads.platform(Integer.parseInt(setting(dotenv, "SERVER_MAX_THREADS", "200")));
+    routeThreads.install();
+    // Bodies larger than this are turned away before they are read.
+    RequestBodies.install(Integer.parseInt(setting(dotenv, "REQUEST_BODY_MAX_BYTES", "16384")));
+    metrics.install();
+    if (stripeScheduler != null) {
+      stripeScheduler.install(metrics);
+    }
+    if (staticAssets != null) {
+      staticAssets.install();
+    }
 
     get(
       "/config",
@@ -121,14 +332,53 @@ public class Server {
           dotenv.get("STRIPE_PUBLISHABLE_KEY")
         );
 
-        PriceListParams params = PriceListParams
-          .builder()
-          .addLookupKey("sample_basic")
-          .addLookupKey("sample_premium")
-          .build();
-        PriceCollection prices = Price.list(params);
-        responseData.put("prices", prices.getData());
+        // Served from memory; see PriceCatalog for how it is kept fresh.
+        responseData.put("prices", priceCatalog.getPrices());
+
+        return gson.toJson(responseData);
+      }
+    );
+
+    get(
+      "/metrics",
+      (request, response) -> {
+        response.type("text/plain; version=0.0.4");
+        return metrics.render();
+      }
+    );
 
+    get(
+      "/stats",
+      (request, response) -> {
+        response.type("application/json");
+        Map<String, Object> responseData = new HashMap<>();
+        responseData.put("priceCatalog", priceCatalog.stats());
+        responseData.put("priceRegistry", priceRegistry.stats());
+        if (webhookQueue != null) {
+          responseData.put("webhookQueue", webhookQueue.stats());
+        }
+        responseData.put("webhookDedupe", eventDeduplicator.stats());
+        responseData.put("stripeHttpClient", stripeHttpClient.stats());
+        if (stripeScheduler != null) {
+          responseData.put("stripeScheduler", stripeScheduler.stats());
+        }
+        responseData.put("subscriptionItemIndex", subscriptionItemIndex.stats());
+        responseData.put("subscriptionStream", subscriptionStream.stats());
+        if (invoicePreviewCache != null) {
+          responseData.put("invoicePreviewCache", invoicePreviewCache.stats());
+        }
+        Map<String, Object> coalescing = new HashMap<>();
+        coalescing.put("createCustomer", customerCoalescer.stats());
+        coalescing.put("createSubscription", subscriptionCoalescer.stats());
+        responseData.put("requestCoalescing", coalescing);
+        responseData.put("responses", ResponseWriter.stats());
+        responseData.put("routeThreads", routeThreads.stats());
+        if (staticAssets != null) {
+          responseData.put("staticAssets", staticAssets.stats());
+        }
+        if (subscriptionProjection != null) {
+          responseData.put("subscriptionProjection", subscriptionProjection.stats());
+        }
         return gson.toJson(responseData);
       }
     );
@@ -139,10 +389,7 @@ public class Server {
         response.type("application/json");
 
         // Deserialize request from our front end.
-        CreateCustomerRequest postBody = gson.fromJson(
-          request.body(),
-          CreateCustomerRequest.class
-        );
+        CreateCustomerRequest postBody = RequestBodies.read(request, CreateCustomerRequest.READER);
 
         // Construct params for creating a customer.
         CustomerCreateParams customerParams = CustomerCreateParams
@@ -150,8 +397,12 @@ public class Server {
           .setEmail(postBody.getEmail())
           .build();
 
-        // Create a new customer object.
-        Customer customer = Customer.create(customerParams);
+        // Create a new customer object, once per email however many times
+        // the form is submitted.
+        Customer customer = customerCoalescer.execute(
+          String.valueOf(postBody.getEmail()),
+          options -> Customer.create(customerParams, options)
+        );
 
         // Set a cookie to simulate authentication. In practice, you
         // should store the ID of the customer alongside your user
@@ -162,15 +413,15 @@ public class Server {
         Map<String, Object> responseData = new HashMap<>();
         responseData.put("customer", customer);
 
-        // Use StripeObject.PRETTY_PRINT_GSON.toJson() to get the
-        // JSON our front end is expecting on the polymorphic parameters that can
-        // either be object ids or the object themselves. If we tried to
-        // generate the JSON without call this, for example, by calling
+        // ResponseWriter serializes with StripeObject.PRETTY_PRINT_GSON to get
+        // the JSON our front end is expecting on the polymorphic parameters
+        // that can either be object ids or the object themselves. If we tried
+        // to generate the JSON without it, for example, by calling
         // gson.toJson(responseData) we will see something like
         // "customer":{"id":"cus_XXX"} instead of "customer":"cus_XXX".  If you
         // only need to return 1 object, you can use the built in serializers,
         // i.e. Subscription.retrieve("sub_XXX").toJson()
-        return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+        return toJson(responseData, CUSTOMER_FIELDS);
       }
     );
 
@@ -185,10 +436,7 @@ public class Server {
         // the authenticated user and query for their Stripe customer ID.
         String customerId = request.cookie("customer");
 
-        CreateSubscriptionRequest postBody = gson.fromJson(
-          request.body(),
-          CreateSubscriptionRequest.class
-        );
+        CreateSubscriptionRequest postBody = RequestBodies.read(request, CreateSubscriptionRequest.READER);
 
         // This is the ID of the Stripe Price object. In the sample, this
         // is stored in enviornment variables using the .env file.
@@ -197,31 +445,41 @@ public class Server {
         // looked up in the environment variables.
         String priceId = postBody.getPriceId();
 
-        // Create the subscription
-        SubscriptionCreateParams subCreateParams = SubscriptionCreateParams
-          .builder()
-          .setCustomer(customerId)
-          .addItem(
-            SubscriptionCreateParams
-              .Item.builder()
-              .setPrice(priceId)
-              .build()
-          )
-          .setPaymentBehavior(SubscriptionCreateParams.PaymentBehavior.DEFAULT_INCOMPLETE)
-          .addAllExpand(Arrays.asList("latest_invoice.payments.data.payment"))
-          .build();
+        // Identical submissions share one subscription and its client secret.
+        return subscriptionCoalescer.execute(
+          customerId + "|" + priceId,
+          options -> {
+            // Create the subscription
+            SubscriptionCreateParams subCreateParams = SubscriptionCreateParams
+              .builder()
+              .setCustomer(customerId)
+              .addItem(
+                SubscriptionCreateParams
+                  .Item.builder()
+                  .setPrice(priceId)
+                  .build()
+              )
+              .setPaymentBehavior(SubscriptionCreateParams.PaymentBehavior.DEFAULT_INCOMPLETE)
+              .addAllExpand(Arrays.asList("latest_invoice.payments.data.payment"))
+              .build();
+
+            Subscription subscription = Subscription.create(subCreateParams, options);
+            subscriptionItemIndex.put(subscription);
+            if (subscriptionProjection != null) {
+              subscriptionProjection.applySubscription(subscription);
+            }
 
-        Subscription subscription = Subscription.create(subCreateParams);
+            Map<String, Object> responseData = new HashMap<>();
+            responseData.put("subscriptionId", subscription.getId());
+            Invoice latestInvoice = subscription.getLatestInvoiceObject();
 
-        Map<String, Object> responseData = new HashMap<>();
-        responseData.put("subscriptionId", subscription.getId());
-        Invoice latestInvoice = subscription.getLatestInvoiceObject();
-
-        // Retrieve the payment intent ID from the invoice's payments collection
-        String paymentIntentId = latestInvoice.getPayments().getData().get(0).getPayment().getPaymentIntent();
-        PaymentIntent paymentIntent = PaymentIntent.retrieve(paymentIntentId);
-        responseData.put("clientSecret", paymentIntent.getClientSecret());
-        return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+            // Retrieve the payment intent ID from the invoice's payments collection
+            String paymentIntentId = latestInvoice.getPayments().getData().get(0).getPayment().getPaymentIntent();
+            PaymentIntent paymentIntent = PaymentIntent.retrieve(paymentIntentId);
+            responseData.put("clientSecret", paymentIntent.getClientSecret());
+            return ResponseWriter.write(responseData);
+          }
+        );
       }
     );
 
@@ -238,40 +496,51 @@ public class Server {
 
         // The ID of the Price to use when previewing a potential
         // change to the subscription. This is passed in the query
-        // string params as `basic` or `premium`, then retrieved
-        // from the environment variables.
-        String newPriceId = dotenv.get(request.queryParams("newPriceLookupKey").toUpperCase());
-
-        // Fetch the subscription, so that we can retrieve the related
-        // subscription item's ID that we're updating. In practice, you
-        // might want to store the ID of the subscription items so you
-        // don't need this API call to retrieve ths Subscription.
+        // string params as `basic` or `premium`, then resolved by the
+        // price registry.
+        String newPriceLookupKey = request.queryParams("newPriceLookupKey");
+        String newPriceId = priceRegistry.resolve(newPriceLookupKey);
+        if (newPriceId == null) {
+          return unknownPrice(response, newPriceLookupKey);
+        }
+
         String subscriptionId = request.queryParams("subscriptionId");
-        Subscription subscription = Subscription.retrieve(subscriptionId);
+        InvoicePreviewCache.Loader preview = () -> {
+          // Look up the ID of the subscription item we're updating. The
+          // index remembers item IDs from earlier responses and webhooks, so
+          // this only retrieves the Subscription the first time we see it.
+          String subscriptionItemId = subscriptionItemIndex.firstItemId(subscriptionId);
+
+          // Build the params for retrieving the invoice preview.
+          InvoiceCreatePreviewParams invoiceParams = InvoiceCreatePreviewParams
+            .builder()
+            .setCustomer(customerId)
+            .setSubscription(subscriptionId)
+            .setSubscriptionDetails(
+              InvoiceCreatePreviewParams.SubscriptionDetails.builder()
+                .addItem(
+                  InvoiceCreatePreviewParams.SubscriptionDetails.Item.builder()
+                    .setId(subscriptionItemId)
+                    .setPrice(newPriceId)
+                    .build()
+                )
+                .build()
+            )
+            .build();
 
-        // Build the params for retrieving the invoice preview.
-        InvoiceCreatePreviewParams invoiceParams = InvoiceCreatePreviewParams
-          .builder()
-          .setCustomer(customerId)
-          .setSubscription(subscriptionId)
-          .setSubscriptionDetails(
-            InvoiceCreatePreviewParams.SubscriptionDetails.builder()
-              .addItem(
-                InvoiceCreatePreviewParams.SubscriptionDetails.Item.builder()
-                  .setId(subscription.getItems().getData().get(0).getId())
-                  .setPrice(newPriceId)
-                  .build()
-              )
-              .build()
-          )
-          .build();
+          // Fetch the invoice preview.
+          Invoice invoice = Invoice.createPreview(invoiceParams);
 
-        // Fetch the invoice preview.
-        Invoice invoice = Invoice.createPreview(invoiceParams);
+          Map<String, Object> responseData = new HashMap<>();
+          responseData.put("invoice", invoice);
+          return toJson(responseData, ResponseWriter.Fields.ALL);
+        };
 
-        Map<String, Object> responseData = new HashMap<>();
-        responseData.put("invoice", invoice);
-        return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+        // Identical previews are served from the cache, or wait for the one
+        // already being loaded.
+        return invoicePreviewCache == null
+          ? preview.load()
+          : invoicePreviewCache.get(customerId, subscriptionId, newPriceId, preview);
       }
     );
 
@@ -280,20 +549,23 @@ public class Server {
       (request, response) -> {
         response.type("application/json");
 
-        CancelSubscriptionRequest postBody = gson.fromJson(
-          request.body(),
-          CancelSubscriptionRequest.class
-        );
+        CancelSubscriptionRequest postBody = RequestBodies.read(request, CancelSubscriptionRequest.READER);
 
         Subscription subscription = Subscription.retrieve(
           postBody.getSubscriptionId()
         );
 
         Subscription deletedSubscription = subscription.cancel();
+        if (invoicePreviewCache != null) {
+          invoicePreviewCache.invalidateSubscription(deletedSubscription.getId());
+        }
+        if (subscriptionProjection != null) {
+          subscriptionProjection.applySubscription(deletedSubscription);
+        }
 
         Map<String, Object> responseData = new HashMap<>();
         responseData.put("subscription", deletedSubscription);
-        return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+        return toJson(responseData, CANCEL_SUBSCRIPTION_FIELDS);
       }
     );
 
@@ -303,17 +575,17 @@ public class Server {
         response.type("application/json");
 
         // Set the default payment method on the customer
-        UpdateSubscriptionRequest postBody = gson.fromJson(
-          request.body(),
-          UpdateSubscriptionRequest.class
-        );
+        UpdateSubscriptionRequest postBody = RequestBodies.read(request, UpdateSubscriptionRequest.READER);
 
         // The ID of the price the subscription will be upgraded or downgraded to.
-        String newPriceId = dotenv.get(postBody.getNewPriceLookupKey().toUpperCase());
+        String newPriceId = priceRegistry.resolve(postBody.getNewPriceLookupKey());
+        if (newPriceId == null) {
+          return unknownPrice(response, postBody.getNewPriceLookupKey());
+        }
 
-        // Retrieve the subscription to access related subscription item ID
-        // to update.
-        Subscription subscription = Subscription.retrieve(
+        // Look up the related subscription item ID to update, without
+        // retrieving the subscription when the index already knows it.
+        String subscriptionItemId = subscriptionItemIndex.firstItemId(
           postBody.getSubscriptionId()
         );
 
@@ -323,7 +595,7 @@ public class Server {
           .addItem(
             SubscriptionUpdateParams
               .Item.builder()
-              .setId(subscription.getItems().getData().get(0).getId())
+              .setId(subscriptionItemId)
               .setPrice(newPriceId)
               .build()
           )
@@ -331,11 +603,21 @@ public class Server {
           .build();
 
         // update the subscription.
-        subscription.update(params);
+        Subscription updatedSubscription = stripeClient.v1().subscriptions().update(
+          postBody.getSubscriptionId(),
+          params
+        );
+        subscriptionItemIndex.put(updatedSubscription);
+        if (invoicePreviewCache != null) {
+          invoicePreviewCache.invalidateSubscription(updatedSubscription.getId());
+        }
+        if (subscriptionProjection != null) {
+          subscriptionProjection.applySubscription(updatedSubscription);
+        }
 
         Map<String, Object> responseData = new HashMap<>();
-        responseData.put("subscription", subscription);
-        return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+        responseData.put("subscription", updatedSubscription);
+        return toJson(responseData, ResponseWriter.Fields.ALL);
       }
     );
 
@@ -350,6 +632,10 @@ public class Server {
         // the authenticated user and query for their Stripe customer ID.
         String customerId = request.cookie("customer");
 
+        if ("on".equals(projectionMode) && subscriptionProjection.isReady()) {
+          return subscriptionProjection.subscriptionsResponse(customerId);
+        }
+
         SubscriptionListParams params = SubscriptionListParams
             .builder()
             .setStatus(SubscriptionListParams.Status.ALL)
@@ -358,9 +644,45 @@ public class Server {
             .build();
 
         SubscriptionCollection subscriptions = Subscription.list(params);
+        if ("check".equals(projectionMode)) {
+          subscriptionProjection.check(customerId, subscriptions.getData());
+        }
         Map<String, Object> responseData = new HashMap<>();
         responseData.put("subscriptions", subscriptions);
-        return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+        return toJson(responseData, SUBSCRIPTIONS_FIELDS);
+      }
+    );
+
+    // Every subscription rather than the first page, written as NDJSON (or
+    // with `format=json`, one JSON object) while Stripe pages them in.
+    // `cursor` resumes after the subscription with that ID.
+    get(
+      "/subscriptions/stream",
+      (request, response) -> {
+        // The customer ID stands in for authentication, as in `/subscriptions`.
+        String customerId = request.cookie("customer");
+        if (customerId == null) {
+          // Without a customer the list would be every subscription on the
+          // account.
+          response.status(400);
+          response.type("application/json");
+          Map<String, String> responseErrorMessage = new HashMap<>();
+          responseErrorMessage.put("message", "No customer cookie");
+          Map<String, Object> responseError = new HashMap<>();
+          responseError.put("error", responseErrorMessage);
+          return gson.toJson(responseError);
+        }
+        SubscriptionStream.Format format = "json".equals(request.queryParams("format"))
+          ? SubscriptionStream.Format.JSON
+          : SubscriptionStream.Format.NDJSON;
+
+        response.type(format.contentType);
+        Writer out = new BufferedWriter(
+          new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8)
+        );
+        subscriptionStream.write(customerId, request.queryParams("cursor"), format, out);
+        // Everything has been written; Spark has nothing left to send.
+        return "";
       }
     );
 
@@ -380,66 +702,40 @@ public class Server {
           return "";
         }
 
-        // Deserialize the nested object inside the event
-        EventDataObjectDeserializer dataObjectDeserializer = event.getDataObjectDeserializer();
-        StripeObject stripeObject = null;
-        if (dataObjectDeserializer.getObject().isPresent()) {
-          stripeObject = dataObjectDeserializer.getObject().get();
-        } else {
-          // Deserialization failed, probably due to an API version mismatch.
-          // Refer to the Javadoc documentation on `EventDataObjectDeserializer` for
-          // instructions on how to handle this case, or return an error here.
+        // Claimed before handling, so a redelivery arriving meanwhile isn't
+        // handled alongside it; a failed attempt gives the claim back.
+        if (!eventDeduplicator.tryClaim(event.getId())) {
+          response.status(200);
+          return "";
         }
 
-        switch (event.getType()) {
-          case "invoice.payment_succeeded":
-            Invoice invoice = (Invoice) stripeObject;
-            if(invoice.getBillingReason().equals("subscription_create")) {
-              // The subscription automatically activates after successful payment
-              // Set the payment method used to pay the first invoice
-              // as the default payment method for that subscription
-              String subscriptionId = invoice.getParent().getSubscriptionDetails().getSubscription();
-              String paymentIntentId = invoice.getPayments().getData().get(0).getPayment().getPaymentIntent();
-
-              // Retrieve the payment intent used to pay the subscription
-              PaymentIntent paymentIntent = PaymentIntent.retrieve(paymentIntentId);
-
-              // Set the default payment method
-              Subscription subscription = Subscription.retrieve(subscriptionId);
-              SubscriptionUpdateParams params = SubscriptionUpdateParams
-                .builder()
-                .setDefaultPaymentMethod(paymentIntent.getPaymentMethod())
-                .build();
-              Subscription updatedSubscription = subscription.update(params);
-              System.out.println("Default payment method set for subscription: " + paymentIntent.getPaymentMethod());
-            }
-
-            System.out.println("Payment succeeded for invoice: " + event.getId());
-
-            break;
-          case "invoice.paid":
-            // Used to provision services after the trial has ended.
-            // The status of the invoice will show up as paid. Store the status in your
-            // database to reference when a user accesses your service to avoid hitting rate
-            // limits.
-            break;
-          case "invoice.payment_failed":
-            // If the payment fails or the customer does not have a valid payment method,
-            // an invoice.payment_failed event is sent, the subscription becomes past_due.
-            // Use this webhook to notify your user that their payment has
-            // failed and to retrieve new card details.
-            break;
-          case "invoice.finalized":
-            // If you want to manually send out invoices to your customers
-            // or store them locally to reference to avoid hitting Stripe rate limits.
-            break;
-          case "customer.subscription.deleted":
-            // handle subscription cancelled automatically based
-            // upon your subscription settings. Or if the user
-            // cancels it.
-            break;
-          default:
-          // Unhandled event type
+        try {
+          // Any change to a price or product may change what the pricing page
+          // should show, so drop the cached catalog right away.
+          if (
+            event.getType().startsWith("price.") ||
+            event.getType().startsWith("product.")
+          ) {
+            priceCatalog.invalidate();
+          }
+          if (subscriptionProjection != null) {
+            subscriptionProjection.applyEvent(event);
+          }
+          subscriptionItemIndex.applyEvent(event);
+          if (invoicePreviewCache != null) {
+            invoicePreviewCache.applyEvent(event);
+          }
+
+          if (webhookQueue != null) {
+            // Only persist the event here; a worker runs the handlers so this
+            // thread isn't held while they call back into Stripe.
+            webhookQueue.enqueue(event.getId(), payload);
+          } else {
+            handleEvent(event);
+          }
+          eventDeduplicator.markProcessed(event.getId());
+        } finally {
+          eventDeduplicator.release(event.getId());
         }
 
         response.status(200);
@@ -447,4 +743,162 @@ public class Server {
       }
     );
   }
+
+  // A price name the registry doesn't know would only fail later, inside
+  // Stripe, so turn it away before making any calls.
+  private static String unknownPrice(Response response, String name) {
+    response.status(400);
+    Map<String, String> responseErrorMessage = new HashMap<>();
+    responseErrorMessage.put("message", "Unknown price: " + name);
+    Map<String, Object> responseError = new HashMap<>();
+    responseError.put("error", responseErrorMessage);
+    return gson.toJson(responseError);
+  }
+
+  private static String toJson(Map<String, Object> responseData, ResponseWriter.Fields fields) {
+    return ResponseWriter.write(responseData, projectResponses ? fields : ResponseWriter.Fields.ALL);
+  }
+
+  private static String setting(Dotenv dotenv, String name, String defaultValue) {
+    String value = dotenv.get(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+
+  private static PooledStripeHttpClient createStripeHttpClient(Dotenv dotenv, Metrics metrics) {
+    return new PooledStripeHttpClient(
+      Integer.parseInt(setting(dotenv, "STRIPE_HTTP_MAX_CONNECTIONS_PER_HOST", "64")),
+      Long.parseLong(setting(dotenv, "STRIPE_HTTP_CONNECT_TIMEOUT_MS", "30000")),
+      Long.parseLong(setting(dotenv, "STRIPE_HTTP_READ_TIMEOUT_MS", "80000")),
+      Long.parseLong(setting(dotenv, "STRIPE_HTTP_KEEP_ALIVE_MS", "60000")),
+      metrics
+    );
+  }
+
+  private static StripeCallScheduler createStripeCallScheduler(Dotenv dotenv, PooledStripeHttpClient stripeHttpClient) {
+    return new StripeCallScheduler(
+      stripeHttpClient,
+      Double.parseDouble(setting(dotenv, "STRIPE_READ_RATE", "100")),
+      Double.parseDouble(setting(dotenv, "STRIPE_WRITE_RATE", "100")),
+      Integer.parseInt(setting(dotenv, "STRIPE_MAX_CONCURRENCY", setting(dotenv, "STRIPE_HTTP_MAX_CONNECTIONS_PER_HOST", "64"))),
+      Long.parseLong(setting(dotenv, "STRIPE_QUEUE_TIMEOUT_MS", "10000"))
+    );
+  }
+
+  private static EventDeduplicator createEventDeduplicator(Dotenv dotenv) {
+    try {
+      return new EventDeduplicator(
+        Paths.get(setting(dotenv, "WEBHOOK_DEDUPE_DIR", "webhook-dedupe")),
+        Integer.parseInt(setting(dotenv, "WEBHOOK_DEDUPE_RECENT", "10000")),
+        TimeUnit.HOURS.toMillis(Long.parseLong(setting(dotenv, "WEBHOOK_DEDUPE_WINDOW_HOURS", "72"))),
+        Integer.parseInt(setting(dotenv, "WEBHOOK_DEDUPE_SLOTS", "1048576"))
+      );
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static StaticAssets startStaticAssets(Path staticDir) {
+    try {
+      StaticAssets staticAssets = new StaticAssets(staticDir);
+      staticAssets.watch();
+      return staticAssets;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static SubscriptionProjection startSubscriptionProjection(Dotenv dotenv) {
+    SubscriptionProjection subscriptionProjection = new SubscriptionProjection(
+      Paths.get(setting(dotenv, "SUBSCRIPTION_PROJECTION_FILE", "subscription-projection/subscriptions.jsonl")),
+      Integer.parseInt(setting(dotenv, "SUBSCRIPTION_BACKFILL_THREADS", "8")),
+      projectResponses ? SUBSCRIPTIONS_FIELDS : ResponseWriter.Fields.ALL
+    );
+    try {
+      subscriptionProjection.start();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return subscriptionProjection;
+  }
+
+  private static WebhookQueue startWebhookQueue(Dotenv dotenv) {
+    WebhookQueue webhookQueue = new WebhookQueue(
+      Paths.get(setting(dotenv, "WEBHOOK_QUEUE_DIR", "webhook-queue")),
+      Integer.parseInt(setting(dotenv, "WEBHOOK_WORKERS", "4")),
+      Integer.parseInt(setting(dotenv, "WEBHOOK_MAX_ATTEMPTS", "5")),
+      Server::handleEvent
+    );
+    try {
+      webhookQueue.start();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return webhookQueue;
+  }
+
+  // Runs the handlers for a verified webhook event. Called directly from the
+  // `/webhook` route, or from a WebhookQueue worker when WEBHOOK_MODE=async.
+  static void handleEvent(Event event) throws StripeException {
+    // Deserialize the nested object inside the event
+    EventDataObjectDeserializer dataObjectDeserializer = event.getDataObjectDeserializer();
+    StripeObject stripeObject = null;
+    if (dataObjectDeserializer.getObject().isPresent()) {
+      stripeObject = dataObjectDeserializer.getObject().get();
+    } else {
+      // Deserialization failed, probably due to an API version mismatch.
+      // Refer to the Javadoc documentation on `EventDataObjectDeserializer` for
+      // instructions on how to handle this case, or return an error here.
+    }
+
+    switch (event.getType()) {
+      case "invoice.payment_succeeded":
+        Invoice invoice = (Invoice) stripeObject;
+        if(invoice.getBillingReason().equals("subscription_create")) {
+          // The subscription automatically activates after successful payment
+          // Set the payment method used to pay the first invoice
+          // as the default payment method for that subscription
+          String subscriptionId = invoice.getParent().getSubscriptionDetails().getSubscription();
+          String paymentIntentId = invoice.getPayments().getData().get(0).getPayment().getPaymentIntent();
+
+          // Retrieve the payment intent used to pay the subscription
+          PaymentIntent paymentIntent = PaymentIntent.retrieve(paymentIntentId);
+
+          // Set the default payment method
+          Subscription subscription = Subscription.retrieve(subscriptionId);
+          SubscriptionUpdateParams params = SubscriptionUpdateParams
+            .builder()
+            .setDefaultPaymentMethod(paymentIntent.getPaymentMethod())
+            .build();
+          Subscription updatedSubscription = subscription.update(params);
+          System.out.println("Default payment method set for subscription: " + paymentIntent.getPaymentMethod());
+        }
+
+        System.out.println("Payment succeeded for invoice: " + event.getId());
+
+        break;
+      case "invoice.paid":
+        // Used to provision services after the trial has ended.
+        // The status of the invoice will show up as paid. Store the status in your
+        // database to reference when a user accesses your service to avoid hitting rate
+        // limits.
+        break;
+      case "invoice.payment_failed":
+        // If the payment fails or the customer does not have a valid payment method,
+        // an invoice.payment_failed event is sent, the subscription becomes past_due.
+        // Use this webhook to notify your user that their payment has
+        // failed and to retrieve new card details.
+        break;
+      case "invoice.finalized":
+        // If you want to manually send out invoices to your customers
+        // or store them locally to reference to avoid hitting Stripe rate limits.
+        break;
+      case "customer.subscription.deleted":
+        // handle subscription cancelled automatically based
+        // upon your subscription settings. Or if the user
+        // cancels it.
+        break;
+      default:
+      // Unhandled event type
+    }
+  }
 }
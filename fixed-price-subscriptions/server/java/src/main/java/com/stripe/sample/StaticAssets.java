@@ -0,0 +1,387 @@
+package com.stripe.sample;
+
+import static spark.Spark.before;
+import static spark.Spark.halt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+// Serves the front end from memory instead of reading each file from
+// STATIC_DIR on every request, as Spark's static file handler does.
+//
+// Every file is loaded at startup, along with a gzip copy when that is
+// smaller and any `.br` or `.gz` file next to it (written by a build step;
+// there is no Brotli encoder in the JDK). Each copy has a strong ETag, so a
+// browser revalidating an unchanged file gets a 304 with no body. Bodies are
+// kept in direct buffers that Jetty writes to the socket as they are, without
+// copying them into its own buffers first.
+//
+// The directory is watched, and everything is reloaded and swapped in whole
+// shortly after anything in it changes.
+public class StaticAssets {
+  private static final long RELOAD_DELAY_MILLIS = 200;
+  // A gzip copy is only kept if it saves at least this fraction.
+  private static final double MIN_SAVING = 0.1;
+  private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+  private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+  static {
+    CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+    CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+    CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+    CONTENT_TYPES.put("json", "application/json");
+    CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+    CONTENT_TYPES.put("svg", "image/svg+xml");
+    CONTENT_TYPES.put("png", "image/png");
+    CONTENT_TYPES.put("jpg", "image/jpeg");
+    CONTENT_TYPES.put("jpeg", "image/jpeg");
+    CONTENT_TYPES.put("gif", "image/gif");
+    CONTENT_TYPES.put("ico", "image/x-icon");
+    CONTENT_TYPES.put("webp", "image/webp");
+    CONTENT_TYPES.put("woff", "font/woff");
+    CONTENT_TYPES.put("woff2", "font/woff2");
+  }
+
+  // One encoding of a file.
+  static final class Variant {
+    final String encoding;
+    final String etag;
+    final ByteBuffer body;
+
+    Variant(String encoding, String etag, byte[] body) {
+      this.encoding = encoding;
+      this.etag = etag;
+      this.body = ByteBuffer.allocateDirect(body.length).put(body);
+      this.body.flip();
+    }
+  }
+
+  static final class Asset {
+    final String contentType;
+    final String lastModified;
+    final long lastModifiedMillis;
+    final Variant identity;
+    final Variant gzip;
+    final Variant brotli;
+
+    Asset(String contentType, long lastModifiedMillis, Variant identity, Variant gzip, Variant brotli) {
+      this.contentType = contentType;
+      // HTTP dates have whole seconds.
+      this.lastModifiedMillis = lastModifiedMillis / 1000 * 1000;
+      this.lastModified = HTTP_DATE.format(
+        ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModifiedMillis), ZoneOffset.UTC)
+      );
+      this.identity = identity;
+      this.gzip = gzip;
+      this.brotli = brotli;
+    }
+  }
+
+  private final Path root;
+  private volatile Map<String, Asset> assets;
+
+  private final LongAdder served = new LongAdder();
+  private final LongAdder notModified = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder reloads = new LongAdder();
+  private final LongAdder reloadFailures = new LongAdder();
+
+  public StaticAssets(Path root) throws IOException {
+    this.root = root;
+    this.assets = load(root);
+  }
+
+  // Serves GET and HEAD requests for any loaded file; everything else goes on
+  // to the routes. Install after Metrics so the files show up there too.
+  public void install() {
+    before((request, response) -> {
+      String method = request.requestMethod();
+      if (!"GET".equals(method) && !"HEAD".equals(method)) {
+        return;
+      }
+      String path = request.pathInfo();
+      Asset asset = assets.get(path.endsWith("/") ? path + "index.html" : path);
+      if (asset != null) {
+        halt(serve(asset, request.raw(), response.raw(), "HEAD".equals(method)));
+      }
+    });
+  }
+
+  // Reloads everything shortly after any file under the root changes.
+  public void watch() throws IOException {
+    WatchService watchService = FileSystems.getDefault().newWatchService();
+    register(watchService);
+    Thread thread = new Thread(() -> {
+      try {
+        while (true) {
+          WatchKey key = watchService.take();
+          key.pollEvents();
+          key.reset();
+          // An editor saving a file, or a build writing several, changes
+          // more than one thing; wait for it to finish.
+          while ((key = watchService.poll(RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+            key.pollEvents();
+            key.reset();
+          }
+          reload(watchService);
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // Shutting down.
+      }
+    }, "static-assets-watch");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void reload(WatchService watchService) {
+    try {
+      // New directories need watching too.
+      register(watchService);
+      Map<String, Asset> loaded = load(root);
+      assets = loaded;
+      reloads.increment();
+      System.out.println("Reloaded " + loaded.size() + " static files from " + root);
+    } catch (IOException | RuntimeException e) {
+      // Probably caught mid-write; the next change tries again.
+      reloadFailures.increment();
+      System.out.println("Reloading static files from " + root + " failed: " + e.getMessage());
+    }
+  }
+
+  private void register(WatchService watchService) throws IOException {
+    try (Stream<Path> dirs = Files.walk(root)) {
+      for (Path dir : dirs.filter(Files::isDirectory).collect(Collectors.toList())) {
+        dir.register(
+          watchService,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.ENTRY_MODIFY
+        );
+      }
+    }
+  }
+
+  private int serve(Asset asset, HttpServletRequest request, HttpServletResponse response, boolean head)
+    throws IOException {
+    Variant variant = choose(asset, request.getHeader("Accept-Encoding"));
+    response.setHeader("ETag", variant.etag);
+    response.setHeader("Last-Modified", asset.lastModified);
+    // File names aren't versioned, so browsers must check before reusing one.
+    response.setHeader("Cache-Control", "no-cache");
+    if (asset.gzip != null || asset.brotli != null) {
+      response.setHeader("Vary", "Accept-Encoding");
+    }
+
+    if (notModified(asset, variant, request)) {
+      notModified.increment();
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      response.flushBuffer();
+      return HttpServletResponse.SC_NOT_MODIFIED;
+    }
+
+    served.increment();
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(asset.contentType);
+    if (variant.encoding != null) {
+      response.setHeader("Content-Encoding", variant.encoding);
+    }
+    response.setContentLength(variant.body.remaining());
+    if (head) {
+      response.flushBuffer();
+      return HttpServletResponse.SC_OK;
+    }
+    bytesSent.add(variant.body.remaining());
+    OutputStream out = response.getOutputStream();
+    if (out instanceof HttpOutput) {
+      // Written straight from the buffer; this also completes the response.
+      ((HttpOutput) out).sendContent(variant.body.duplicate());
+    } else {
+      byte[] copy = new byte[variant.body.remaining()];
+      variant.body.duplicate().get(copy);
+      out.write(copy);
+      response.flushBuffer();
+    }
+    return HttpServletResponse.SC_OK;
+  }
+
+  private static boolean notModified(Asset asset, Variant variant, HttpServletRequest request) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      // Takes precedence over If-Modified-Since, and compares weakly.
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(variant.etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    String ifModifiedSince = request.getHeader("If-Modified-Since");
+    if (ifModifiedSince != null) {
+      try {
+        long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toInstant().toEpochMilli();
+        return asset.lastModifiedMillis <= since;
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  // Brotli, then gzip, then as is, according to what the client accepts.
+  private static Variant choose(Asset asset, String acceptEncoding) {
+    if (acceptEncoding == null || (asset.gzip == null && asset.brotli == null)) {
+      return asset.identity;
+    }
+    boolean brotli = false;
+    boolean gzip = false;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase(Locale.ROOT);
+      if (parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?")) {
+        continue;
+      }
+      brotli |= name.equals("br");
+      gzip |= name.equals("gzip") || name.equals("*");
+    }
+    if (brotli && asset.brotli != null) {
+      return asset.brotli;
+    }
+    if (gzip && asset.gzip != null) {
+      return asset.gzip;
+    }
+    return asset.identity;
+  }
+
+  private static Map<String, Asset> load(Path root) throws IOException {
+    Map<String, Asset> loaded = new HashMap<>();
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(root)) {
+      files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      if (name.endsWith(".br") || name.endsWith(".gz")) {
+        // Served as the compressed copy of the file they sit next to.
+        continue;
+      }
+      String path = "/" + root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+      loaded.put(path, loadAsset(file, name));
+    }
+    return loaded;
+  }
+
+  private static Asset loadAsset(Path file, String name) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    byte[] body = Files.readAllBytes(file);
+    String etag = etag(body);
+
+    Path gzipFile = file.resolveSibling(name + ".gz");
+    byte[] gzipped = Files.isRegularFile(gzipFile) ? Files.readAllBytes(gzipFile) : gzip(body);
+    Variant gzip = gzipped.length <= body.length * (1 - MIN_SAVING)
+      ? new Variant("gzip", etag + "-gzip\"", gzipped)
+      : null;
+
+    Path brotliFile = file.resolveSibling(name + ".br");
+    Variant brotli = Files.isRegularFile(brotliFile)
+      ? new Variant("br", etag + "-br\"", Files.readAllBytes(brotliFile))
+      : null;
+
+    int dot = name.lastIndexOf('.');
+    String contentType = CONTENT_TYPES.getOrDefault(
+      dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT),
+      "application/octet-stream"
+    );
+    return new Asset(
+      contentType,
+      attributes.lastModifiedTime().toMillis(),
+      new Variant(null, etag + "\"", body),
+      gzip,
+      brotli
+    );
+  }
+
+  // The opening quote and hash of a strong ETag; each variant adds its own
+  // suffix and the closing quote.
+  private static String etag(byte[] body) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+      StringBuilder etag = new StringBuilder("\"");
+      for (int i = 0; i < 16; i++) {
+        etag.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+        etag.append(Character.forDigit(digest[i] & 0xf, 16));
+      }
+      return etag.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 32);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    }) {
+      gzip.write(body);
+    }
+    return out.toByteArray();
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    Map<String, Asset> current = assets;
+    long bytes = 0;
+    long gzipBytes = 0;
+    for (Asset asset : current.values()) {
+      bytes += asset.identity.body.capacity();
+      gzipBytes += asset.gzip == null ? asset.identity.body.capacity() : asset.gzip.body.capacity();
+    }
+    stats.put("files", current.size());
+    stats.put("bytes", bytes);
+    stats.put("gzipBytes", gzipBytes);
+    stats.put("served", served.sum());
+    stats.put("notModified", notModified.sum());
+    stats.put("bytesSent", bytesSent.sum());
+    stats.put("reloads", reloads.sum());
+    stats.put("reloadFailures", reloadFailures.sum());
+    return stats;
+  }
+}
@@ -0,0 +1,105 @@
+package com.stripe.sample;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Event;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionItem;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Remembers the subscription item IDs of each subscription, so changing or
+// previewing a plan doesn't need a Subscription.retrieve first just to find
+// the item to update.
+//
+// The index is filled from the subscriptions our routes create or update and
+// from `customer.subscription.*` webhook events. On a miss it falls back to a
+// single retrieve and remembers the result. At most `capacity` subscriptions
+// are kept, dropping the least recently used; a dropped one is retrieved
+// again the next time it is needed.
+public class SubscriptionItemIndex {
+  private final int capacity;
+  private final LinkedHashMap<String, String[]> itemIds;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public SubscriptionItemIndex(int capacity) {
+    this.capacity = capacity;
+    this.itemIds = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  public String firstItemId(String subscriptionId) throws StripeException {
+    String[] ids;
+    synchronized (itemIds) {
+      ids = itemIds.get(subscriptionId);
+    }
+    if (ids != null && ids.length > 0) {
+      // Each hit is one Subscription.retrieve we didn't have to make.
+      hits.increment();
+      return ids[0];
+    }
+    misses.increment();
+    Subscription subscription = Subscription.retrieve(subscriptionId);
+    put(subscription);
+    return subscription.getItems().getData().get(0).getId();
+  }
+
+  public void put(Subscription subscription) {
+    if (subscription.getItems() == null) {
+      return;
+    }
+    List<SubscriptionItem> items = subscription.getItems().getData();
+    String[] ids = new String[items.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = items.get(i).getId();
+    }
+    synchronized (itemIds) {
+      itemIds.put(subscription.getId(), ids);
+    }
+  }
+
+  public void applyEvent(Event event) {
+    if (!event.getType().startsWith("customer.subscription.")) {
+      return;
+    }
+    StripeObject object = event.getDataObjectDeserializer().getObject().orElse(null);
+    if (!(object instanceof Subscription)) {
+      return;
+    }
+    if ("customer.subscription.deleted".equals(event.getType())) {
+      synchronized (itemIds) {
+        itemIds.remove(((Subscription) object).getId());
+      }
+    } else {
+      put((Subscription) object);
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    synchronized (itemIds) {
+      stats.put("size", itemIds.size());
+    }
+    stats.put("capacity", capacity);
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put("roundTripsSaved", hitCount);
+    stats.put(
+      "hitRate",
+      hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount)
+    );
+    return stats;
+  }
+}
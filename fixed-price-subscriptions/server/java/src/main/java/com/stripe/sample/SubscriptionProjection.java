@@ -0,0 +1,510 @@
+package com.stripe.sample;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Event;
+import com.stripe.model.Invoice;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+import com.stripe.param.SubscriptionListParams;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+// A local copy of every customer's subscriptions, so `/subscriptions` can be
+// answered without calling Subscription.list.
+//
+// The copy is seeded at startup by listing all subscriptions from Stripe,
+// several `created` ranges in parallel, and is then kept up to date from
+// `customer.subscription.*`, `invoice.*` and `payment_method.*` webhook
+// events. Each change is appended to a JSON-lines file, which is compacted and
+// read back on the next start so the server can answer before the backfill
+// finishes.
+//
+// Subscriptions are stored with `default_payment_method` as an ID and the
+// payment methods are stored separately, then joined when the response is
+// built, so a `payment_method.updated` event shows up on every subscription
+// that uses it.
+public class SubscriptionProjection {
+  // Stripe accounts can't have objects older than this.
+  private static final long EARLIEST_CREATED = 1293840000L; // 2011-01-01
+
+  private final Path file;
+  private final int backfillThreads;
+  private final ResponseWriter.Fields responseFields;
+
+  private final Map<String, Stored> subscriptions = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> subscriptionsByCustomer = new ConcurrentHashMap<>();
+  private final Map<String, JsonObject> paymentMethods = new ConcurrentHashMap<>();
+  // The subscriptions using each payment method as their default, so a
+  // payment method change only drops the responses it shows up in.
+  private final Map<String, Set<String>> subscriptionsByPaymentMethod = new ConcurrentHashMap<>();
+  // Rendered `/subscriptions` responses, dropped whenever the customer's
+  // subscriptions or their payment methods change.
+  private final Map<String, String> responses = new ConcurrentHashMap<>();
+
+  private BufferedWriter log;
+  private volatile boolean ready;
+
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder eventsApplied = new LongAdder();
+  private final LongAdder eventsSkipped = new LongAdder();
+  private final LongAdder checks = new LongAdder();
+  private final LongAdder mismatches = new LongAdder();
+  private volatile long backfillMillis = -1;
+  private volatile long backfilled;
+
+  private static class Stored {
+    final JsonObject subscription;
+    // The `created` time of the event (or of the backfill) this copy came
+    // from, used to ignore events that arrive out of order.
+    final long version;
+
+    Stored(JsonObject subscription, long version) {
+      this.subscription = subscription;
+      this.version = version;
+    }
+  }
+
+  // `responseFields` are the fields `/subscriptions` responses keep.
+  public SubscriptionProjection(Path file, int backfillThreads, ResponseWriter.Fields responseFields) {
+    this.file = file;
+    this.backfillThreads = backfillThreads;
+    this.responseFields = responseFields;
+  }
+
+  // Loads the saved projection and starts the backfill in the background.
+  public void start() throws IOException {
+    Path dir = file.toAbsolutePath().getParent();
+    Files.createDirectories(dir);
+    if (Files.exists(file)) {
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (!line.isEmpty()) {
+            replay(JsonParser.parseString(line).getAsJsonObject());
+          }
+        }
+      }
+      // A saved copy is good enough to answer from while the backfill runs.
+      ready = !subscriptions.isEmpty();
+    }
+    compact();
+
+    Thread backfill = new Thread(
+      StripeCallScheduler.withPriority(StripeCallScheduler.Priority.BACKGROUND, this::backfill),
+      "subscription-backfill"
+    );
+    backfill.setDaemon(true);
+    backfill.start();
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  // Returns the same document `/subscriptions` returns when it calls Stripe:
+  // `{"subscriptions": <list of subscriptions>}` with each subscription's
+  // `default_payment_method` expanded.
+  public String subscriptionsResponse(String customerId) {
+    reads.increment();
+    if (customerId == null || !subscriptionsByCustomer.containsKey(customerId)) {
+      // Don't keep a cached answer around for every unknown cookie value.
+      return render(customerId);
+    }
+    return responses.computeIfAbsent(customerId, this::render);
+  }
+
+  // Keeps the projection current. Events that don't describe a subscription,
+  // invoice or payment method are ignored.
+  public void applyEvent(Event event) {
+    String type = event.getType();
+    if (
+      !type.startsWith("customer.subscription.") &&
+      !type.startsWith("invoice.") &&
+      !type.startsWith("payment_method.")
+    ) {
+      return;
+    }
+    StripeObject object = event.getDataObjectDeserializer().getObject().orElse(null);
+    if (object == null) {
+      eventsSkipped.increment();
+      return;
+    }
+
+    long version = event.getCreated();
+    boolean applied;
+    if (object instanceof Subscription) {
+      applied = putSubscription(toJson(object), version, true);
+    } else if (object instanceof Invoice) {
+      applied = "invoice.created".equals(type) && setLatestInvoice((Invoice) object, version);
+    } else if (object instanceof PaymentMethod) {
+      if ("payment_method.detached".equals(type)) {
+        applied = removePaymentMethod(((PaymentMethod) object).getId());
+      } else {
+        applied = putPaymentMethod(toJson(object), true);
+      }
+    } else {
+      applied = false;
+    }
+
+    if (applied) {
+      eventsApplied.increment();
+    } else {
+      eventsSkipped.increment();
+    }
+  }
+
+  // Records a subscription returned by one of our own routes, so the
+  // projection reflects it before the webhook arrives.
+  public void applySubscription(Subscription subscription) {
+    putSubscription(toJson(subscription), System.currentTimeMillis() / 1000, true);
+  }
+
+  // Compares the projection with what Stripe returned for the same customer.
+  // Used when SUBSCRIPTION_PROJECTION=check, where `/subscriptions` is still
+  // served from Stripe.
+  public void check(String customerId, List<Subscription> live) {
+    checks.increment();
+    Map<String, String> expected = new HashMap<>();
+    for (Subscription subscription : live) {
+      expected.put(subscription.getId(), subscription.getStatus());
+    }
+    Map<String, String> actual = new HashMap<>();
+    Set<String> ids = customerId == null ? null : subscriptionsByCustomer.get(customerId);
+    if (ids != null) {
+      for (String id : ids) {
+        actual.put(id, subscriptions.get(id).subscription.get("status").getAsString());
+      }
+    }
+    if (!expected.equals(actual)) {
+      mismatches.increment();
+      System.out.println(
+        "Subscription projection mismatch for " + customerId + ": stripe=" + expected + " local=" + actual
+      );
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("ready", ready);
+    stats.put("subscriptions", subscriptions.size());
+    stats.put("customers", subscriptionsByCustomer.size());
+    stats.put("paymentMethods", paymentMethods.size());
+    stats.put("reads", reads.sum());
+    stats.put("eventsApplied", eventsApplied.sum());
+    stats.put("eventsSkipped", eventsSkipped.sum());
+    stats.put("backfilled", backfilled);
+    stats.put("backfillMillis", backfillMillis);
+    stats.put("consistencyChecks", checks.sum());
+    stats.put("consistencyMismatches", mismatches.sum());
+    return stats;
+  }
+
+  // Lists every subscription in the account. Stripe only pages forward
+  // through a list, so the `created` range is split into slices that are
+  // paged through in parallel.
+  private void backfill() {
+    long start = System.currentTimeMillis();
+    long now = start / 1000;
+    long sliceWidth = (now - EARLIEST_CREATED) / backfillThreads + 1;
+
+    ExecutorService pool = Executors.newFixedThreadPool(
+      backfillThreads,
+      r -> new Thread(
+        StripeCallScheduler.withPriority(StripeCallScheduler.Priority.BACKGROUND, r),
+        "subscription-backfill-slice"
+      )
+    );
+    List<Future<Long>> slices = new ArrayList<>();
+    for (int i = 0; i < backfillThreads; i++) {
+      long from = EARLIEST_CREATED + i * sliceWidth;
+      long to = Math.min(from + sliceWidth, now + 1);
+      slices.add(pool.submit(() -> backfillSlice(from, to)));
+    }
+
+    long total = 0;
+    try {
+      for (Future<Long> slice : slices) {
+        total += slice.get();
+      }
+      backfilled = total;
+      backfillMillis = System.currentTimeMillis() - start;
+      ready = true;
+      compact();
+      System.out.println("Subscription projection loaded " + total + " subscriptions in " + backfillMillis + "ms");
+    } catch (Exception e) {
+      // Keep serving from Stripe (or from the saved copy) until next start.
+      System.out.println("Subscription backfill failed: " + e.getMessage());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private long backfillSlice(long from, long to) throws StripeException {
+    // Anything that changes after this point arrives as an event with a
+    // later `created` time and replaces what is listed here.
+    long version = System.currentTimeMillis() / 1000 - 1;
+    SubscriptionListParams params = SubscriptionListParams
+      .builder()
+      .setStatus(SubscriptionListParams.Status.ALL)
+      .setCreated(
+        SubscriptionListParams.Created.builder().setGte(from).setLt(to).build()
+      )
+      .setLimit(100L)
+      .addAllExpand(Arrays.asList("data.default_payment_method"))
+      .build();
+
+    // The log isn't flushed per subscription here: the backfill ends by
+    // compacting it, and one that doesn't finish is simply run again.
+    long count = 0;
+    for (Subscription subscription : Subscription.list(params).autoPagingIterable()) {
+      JsonObject json = toJson(subscription);
+      JsonElement paymentMethod = json.get("default_payment_method");
+      if (paymentMethod != null && paymentMethod.isJsonObject()) {
+        putPaymentMethod(paymentMethod.getAsJsonObject(), false);
+      }
+      putSubscription(json, version, false);
+      count++;
+    }
+    return count;
+  }
+
+  private synchronized boolean putSubscription(JsonObject subscription, long version, boolean flush) {
+    String id = subscription.get("id").getAsString();
+    Stored existing = subscriptions.get(id);
+    if (existing != null && existing.version > version) {
+      return false;
+    }
+    normalize(subscription, "default_payment_method");
+    normalize(subscription, "latest_invoice");
+    subscriptions.put(id, new Stored(subscription, version));
+
+    String previousPaymentMethod = existing == null ? null : idOf(existing.subscription, "default_payment_method");
+    String paymentMethod = idOf(subscription, "default_payment_method");
+    if (previousPaymentMethod != null && !previousPaymentMethod.equals(paymentMethod)) {
+      Set<String> using = subscriptionsByPaymentMethod.get(previousPaymentMethod);
+      if (using != null) {
+        using.remove(id);
+        if (using.isEmpty()) {
+          subscriptionsByPaymentMethod.remove(previousPaymentMethod);
+        }
+      }
+    }
+    if (paymentMethod != null) {
+      subscriptionsByPaymentMethod
+        .computeIfAbsent(paymentMethod, key -> ConcurrentHashMap.newKeySet())
+        .add(id);
+    }
+
+    String customerId = subscription.get("customer").getAsString();
+    subscriptionsByCustomer
+      .computeIfAbsent(customerId, key -> ConcurrentHashMap.newKeySet())
+      .add(id);
+    responses.remove(customerId);
+
+    JsonObject entry = new JsonObject();
+    entry.addProperty("type", "subscription");
+    entry.addProperty("version", version);
+    entry.add("data", subscription);
+    append(entry, flush);
+    return true;
+  }
+
+  private synchronized boolean setLatestInvoice(Invoice invoice, long version) {
+    if (invoice.getParent() == null || invoice.getParent().getSubscriptionDetails() == null) {
+      return false;
+    }
+    Stored existing = subscriptions.get(
+      invoice.getParent().getSubscriptionDetails().getSubscription()
+    );
+    if (existing == null || existing.version > version) {
+      return false;
+    }
+    JsonObject subscription = existing.subscription.deepCopy();
+    subscription.addProperty("latest_invoice", invoice.getId());
+    return putSubscription(subscription, version, true);
+  }
+
+  private synchronized boolean putPaymentMethod(JsonObject paymentMethod, boolean flush) {
+    String id = paymentMethod.get("id").getAsString();
+    paymentMethods.put(id, paymentMethod);
+    dropResponsesUsing(id);
+
+    JsonObject entry = new JsonObject();
+    entry.addProperty("type", "payment_method");
+    entry.add("data", paymentMethod);
+    append(entry, flush);
+    return true;
+  }
+
+  private synchronized boolean removePaymentMethod(String id) {
+    if (paymentMethods.remove(id) == null) {
+      return false;
+    }
+    dropResponsesUsing(id);
+
+    JsonObject entry = new JsonObject();
+    entry.addProperty("type", "payment_method_detached");
+    entry.addProperty("id", id);
+    append(entry, true);
+    return true;
+  }
+
+  private void dropResponsesUsing(String paymentMethodId) {
+    Set<String> using = subscriptionsByPaymentMethod.get(paymentMethodId);
+    if (using == null) {
+      return;
+    }
+    for (String subscriptionId : using) {
+      Stored stored = subscriptions.get(subscriptionId);
+      if (stored != null) {
+        responses.remove(stored.subscription.get("customer").getAsString());
+      }
+    }
+  }
+
+  // The ID in `field`, which has already been normalized, or null.
+  private static String idOf(JsonObject object, String field) {
+    JsonElement value = object.get(field);
+    return value == null || value.isJsonNull() ? null : value.getAsString();
+  }
+
+  private String render(String customerId) {
+    List<JsonObject> list = new ArrayList<>();
+    // No customer cookie: an empty list, as Stripe would return for an
+    // unknown customer. ConcurrentHashMap doesn't take null keys.
+    Set<String> ids = customerId == null ? null : subscriptionsByCustomer.get(customerId);
+    if (ids != null) {
+      for (String id : ids) {
+        JsonObject subscription = subscriptions.get(id).subscription.deepCopy();
+        JsonElement paymentMethodId = subscription.get("default_payment_method");
+        if (paymentMethodId != null && !paymentMethodId.isJsonNull()) {
+          JsonObject paymentMethod = paymentMethods.get(paymentMethodId.getAsString());
+          if (paymentMethod != null) {
+            subscription.add("default_payment_method", paymentMethod);
+          }
+        }
+        list.add(subscription);
+      }
+    }
+    // Newest first, like Subscription.list.
+    Collections.sort(
+      list,
+      Comparator.comparingLong((JsonObject s) -> s.get("created").getAsLong()).reversed()
+    );
+
+    JsonArray data = new JsonArray();
+    for (JsonObject subscription : list) {
+      data.add(subscription);
+    }
+    JsonObject collection = new JsonObject();
+    collection.addProperty("object", "list");
+    collection.add("data", data);
+    collection.addProperty("has_more", false);
+    collection.addProperty("url", "/v1/subscriptions");
+
+    JsonObject response = new JsonObject();
+    response.add("subscriptions", collection);
+    return ResponseWriter.write(response, responseFields);
+  }
+
+  // Replaces an expanded object with its ID.
+  private static void normalize(JsonObject object, String field) {
+    JsonElement value = object.get(field);
+    if (value != null && value.isJsonObject()) {
+      object.add(field, value.getAsJsonObject().get("id"));
+    }
+  }
+
+  private static JsonObject toJson(StripeObject object) {
+    JsonObject raw = object.getRawJsonObject();
+    if (raw != null) {
+      return raw.deepCopy();
+    }
+    return JsonParser.parseString(object.toJson()).getAsJsonObject();
+  }
+
+  private void replay(JsonObject entry) {
+    String type = entry.get("type").getAsString();
+    if ("subscription".equals(type)) {
+      putSubscription(entry.getAsJsonObject("data"), entry.get("version").getAsLong(), false);
+    } else if ("payment_method".equals(type)) {
+      putPaymentMethod(entry.getAsJsonObject("data"), false);
+    } else if ("payment_method_detached".equals(type)) {
+      removePaymentMethod(entry.get("id").getAsString());
+    }
+  }
+
+  private void append(JsonObject entry, boolean flush) {
+    if (log == null) {
+      // Still replaying the saved file.
+      return;
+    }
+    try {
+      log.write(entry.toString());
+      log.newLine();
+      if (flush) {
+        log.flush();
+      }
+    } catch (IOException e) {
+      System.out.println("Could not save subscription projection: " + e.getMessage());
+    }
+  }
+
+  // Rewrites the log with one entry per subscription and payment method.
+  private synchronized void compact() throws IOException {
+    if (log != null) {
+      log.close();
+    }
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      for (JsonObject paymentMethod : paymentMethods.values()) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("type", "payment_method");
+        entry.add("data", paymentMethod);
+        writer.write(entry.toString());
+        writer.newLine();
+      }
+      for (Stored stored : subscriptions.values()) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("type", "subscription");
+        entry.addProperty("version", stored.version);
+        entry.add("data", stored.subscription);
+        writer.write(entry.toString());
+        writer.newLine();
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log = Files.newBufferedWriter(
+      file,
+      StandardCharsets.UTF_8,
+      StandardOpenOption.CREATE,
+      StandardOpenOption.APPEND
+    );
+  }
+}
@@ -0,0 +1,200 @@
+package com.stripe.sample;
+
+import com.google.gson.Gson;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionCollection;
+import com.stripe.param.SubscriptionListParams;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+// Writes all of a customer's subscriptions to a response as Stripe pages
+// them in, where `/subscriptions` answers with the first page only.
+//
+// Each subscription is written out as soon as its page arrives, and each page
+// is flushed to the client before the one after it is written, so however
+// many subscriptions a customer has, a stream holds at most two pages: the
+// one being written and, with prefetch on, the next one, which is fetched
+// while the current one is written.
+//
+// The output is NDJSON, one subscription per line, or a single JSON object
+// `{"data":[...],"next_cursor":null}` written as it goes. Either way a
+// subscription's ID is a cursor: passed back as `cursor`, the stream starts
+// after it. If Stripe fails after the first page, the stream ends with an
+// `error` and the `next_cursor` to resume from, since the status line has
+// already been sent.
+public class SubscriptionStream {
+  public enum Format {
+    NDJSON("application/x-ndjson"),
+    JSON("application/json");
+
+    final String contentType;
+
+    Format(String contentType) {
+      this.contentType = contentType;
+    }
+  }
+
+  private static final Gson gson = new Gson();
+
+  private final long pageSize;
+  private final ResponseWriter.Fields fields;
+  // Null when prefetch is off.
+  private final ExecutorService prefetcher;
+
+  private final LongAdder streams = new LongAdder();
+  private final LongAdder pages = new LongAdder();
+  private final LongAdder prefetchedPages = new LongAdder();
+  private final LongAdder subscriptions = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder abandoned = new LongAdder();
+
+  public SubscriptionStream(long pageSize, boolean prefetch, ResponseWriter.Fields fields) {
+    this.pageSize = pageSize;
+    this.fields = fields;
+    // A stream has at most one page being prefetched, so this grows with the
+    // number of streams being written at once.
+    this.prefetcher = prefetch
+      ? Executors.newCachedThreadPool(r -> {
+          Thread thread = new Thread(
+            StripeCallScheduler.withPriority(StripeCallScheduler.Priority.INTERACTIVE, r),
+            "subscription-stream-prefetch"
+          );
+          thread.setDaemon(true);
+          return thread;
+        })
+      : null;
+  }
+
+  // Writes the subscriptions after `cursor` (all of them when it is null)
+  // to `out`. Only a failure to get the first page, before anything has been
+  // written, is thrown as a StripeException; later ones end the stream.
+  public void write(String customerId, String cursor, Format format, Writer out)
+    throws IOException, StripeException {
+    streams.increment();
+    SubscriptionCollection page = list(customerId, cursor);
+    if (format == Format.JSON) {
+      out.write("{\"data\":[");
+    }
+    boolean first = true;
+    String last = cursor;
+    String error = null;
+    Future<SubscriptionCollection> next = null;
+    try {
+      while (page != null) {
+        pages.increment();
+        List<Subscription> data = page.getData();
+        String pageLast = data.isEmpty() ? null : data.get(data.size() - 1).getId();
+        boolean more = Boolean.TRUE.equals(page.getHasMore()) && pageLast != null;
+        if (more && prefetcher != null) {
+          next = prefetcher.submit(() -> list(customerId, pageLast));
+          prefetchedPages.increment();
+        }
+
+        for (Subscription subscription : data) {
+          if (format == Format.JSON && !first) {
+            out.write(',');
+          }
+          ResponseWriter.writeTo(out, subscription, fields);
+          if (format == Format.NDJSON) {
+            out.write('\n');
+          }
+          first = false;
+          last = subscription.getId();
+          subscriptions.increment();
+        }
+        // Sent on as a chunk, so the client sees each page as it arrives.
+        out.flush();
+
+        if (!more) {
+          page = null;
+        } else if (next != null) {
+          page = await(next);
+          next = null;
+        } else {
+          page = list(customerId, pageLast);
+        }
+      }
+    } catch (StripeException e) {
+      errors.increment();
+      error = e.getMessage() == null ? "Listing subscriptions failed" : e.getMessage();
+    } catch (IOException | RuntimeException e) {
+      abandoned.increment();
+      throw e;
+    } finally {
+      if (next != null) {
+        next.cancel(true);
+      }
+    }
+
+    if (format == Format.JSON) {
+      out.write("],\"next_cursor\":" + gson.toJson(error == null ? null : last));
+      if (error != null) {
+        out.write(",\"error\":" + errorJson(error));
+      }
+      out.write('}');
+    } else if (error != null) {
+      out.write("{\"error\":" + errorJson(error) + ",\"next_cursor\":" + gson.toJson(last) + "}\n");
+    }
+    out.flush();
+  }
+
+  private SubscriptionCollection list(String customerId, String startingAfter) throws StripeException {
+    SubscriptionListParams.Builder params = SubscriptionListParams
+      .builder()
+      .setStatus(SubscriptionListParams.Status.ALL)
+      .setCustomer(customerId)
+      .setLimit(pageSize)
+      .addAllExpand(Arrays.asList("data.default_payment_method"));
+    if (startingAfter != null) {
+      params.setStartingAfter(startingAfter);
+    }
+    return Subscription.list(params.build());
+  }
+
+  private static SubscriptionCollection await(Future<SubscriptionCollection> page) throws StripeException {
+    try {
+      return page.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ApiConnectionException("Interrupted while waiting for a page of subscriptions", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof StripeException) {
+        throw (StripeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (RuntimeException) cause;
+    }
+  }
+
+  private static String errorJson(String message) {
+    return "{\"message\":" + gson.toJson(message) + "}";
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("streams", streams.sum());
+    stats.put("pages", pages.sum());
+    stats.put("prefetchedPages", prefetchedPages.sum());
+    stats.put("subscriptions", subscriptions.sum());
+    stats.put("errors", errors.sum());
+    stats.put("abandoned", abandoned.sum());
+    stats.put("prefetch", prefetcher != null);
+    return stats;
+  }
+}
@@ -0,0 +1,231 @@
+package com.stripe.sample;
+
+import com.stripe.model.Event;
+import com.stripe.net.ApiResource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// A small durable queue for webhook events. The `/webhook` route only
+// verifies the signature and writes the payload here, so Stripe gets its 200
+// right away; a bounded pool of workers then runs the event handlers.
+//
+// Each event is stored as its own file under `<dir>/pending`, written to a
+// temporary name, fsynced and renamed into place, and the directory fsynced,
+// before the route responds.
+// The file is deleted once the handler succeeds, retried with backoff when it
+// fails, and moved to `<dir>/dead` after `maxAttempts`. Anything still in
+// `pending` on startup is processed again.
+public class WebhookQueue {
+  public interface Handler {
+    void handle(Event event) throws Exception;
+  }
+
+  private static final long BASE_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 60000;
+
+  private final Path pendingDir;
+  private final Path deadDir;
+  private final Handler handler;
+  private final int maxAttempts;
+  private final ExecutorService workers;
+  private final ScheduledExecutorService retries;
+
+  private final AtomicInteger depth = new AtomicInteger();
+  private final LongAdder processed = new LongAdder();
+  private final LongAdder failedAttempts = new LongAdder();
+  private final LongAdder deadLettered = new LongAdder();
+  private final LongAdder lagMillis = new LongAdder();
+  private final LongAccumulator maxLagMillis = new LongAccumulator(Math::max, 0);
+  private volatile long lastLagMillis;
+
+  public WebhookQueue(Path dir, int workerCount, int maxAttempts, Handler handler) {
+    this.pendingDir = dir.resolve("pending");
+    this.deadDir = dir.resolve("dead");
+    this.handler = handler;
+    this.maxAttempts = maxAttempts;
+    this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+      Thread thread = new Thread(
+        StripeCallScheduler.withPriority(StripeCallScheduler.Priority.WEBHOOK, r),
+        "webhook-worker"
+      );
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(
+        StripeCallScheduler.withPriority(StripeCallScheduler.Priority.WEBHOOK, r),
+        "webhook-retry"
+      );
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Creates the queue directories and picks up events that were accepted but
+  // not yet processed when the server last stopped.
+  public void start() throws IOException {
+    Files.createDirectories(pendingDir);
+    Files.createDirectories(deadDir);
+
+    List<Path> leftover = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(pendingDir)) {
+      for (Path file : files) {
+        if (file.getFileName().toString().endsWith(".tmp")) {
+          // A rename that didn't reach the disk, or a write cut short. The
+          // first may have been acknowledged, so it is processed; the second
+          // never was, since the payload is fsynced before the route
+          // responds, and Stripe will deliver it again.
+          Path recovered = recover(file);
+          if (recovered != null) {
+            leftover.add(recovered);
+          }
+        } else {
+          leftover.add(file);
+        }
+      }
+    }
+
+    // File names start with the time they were received, so this replays
+    // them in arrival order.
+    Collections.sort(leftover);
+    for (Path file : leftover) {
+      depth.incrementAndGet();
+      submit(file, 1);
+    }
+  }
+
+  // Durably stores the payload and schedules it for processing. Once this
+  // returns it is safe to acknowledge the event to Stripe.
+  public void enqueue(String eventId, String payload) throws IOException {
+    String name = System.currentTimeMillis() + "-" + eventId + ".json";
+    Path tmp = pendingDir.resolve(name + ".tmp");
+    Path file = pendingDir.resolve(name);
+
+    try (
+      FileChannel channel = FileChannel.open(
+        tmp,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING
+      )
+    ) {
+      ByteBuffer buffer = ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    // The rename is only durable once the directory is.
+    try (FileChannel dir = FileChannel.open(pendingDir, StandardOpenOption.READ)) {
+      dir.force(true);
+    }
+
+    depth.incrementAndGet();
+    submit(file, 1);
+  }
+
+  // Renames a complete leftover temporary file into place and returns it, or
+  // deletes a partial one and returns null.
+  private static Path recover(Path tmp) throws IOException {
+    String payload = new String(Files.readAllBytes(tmp), StandardCharsets.UTF_8);
+    Event event;
+    try {
+      event = ApiResource.GSON.fromJson(payload, Event.class);
+    } catch (RuntimeException e) {
+      event = null;
+    }
+    if (event == null || event.getId() == null) {
+      Files.delete(tmp);
+      return null;
+    }
+    String name = tmp.getFileName().toString();
+    Path file = tmp.resolveSibling(name.substring(0, name.length() - ".tmp".length()));
+    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    return file;
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long processedCount = processed.sum();
+    stats.put("depth", depth.get());
+    stats.put("processed", processedCount);
+    stats.put("failedAttempts", failedAttempts.sum());
+    stats.put("deadLettered", deadLettered.sum());
+    stats.put("lastLagMillis", lastLagMillis);
+    stats.put("maxLagMillis", maxLagMillis.get());
+    stats.put("avgLagMillis", processedCount == 0 ? 0 : lagMillis.sum() / processedCount);
+    return stats;
+  }
+
+  private void submit(Path file, int attempt) {
+    workers.execute(() -> process(file, attempt));
+  }
+
+  private void process(Path file, int attempt) {
+    try {
+      String payload = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+      // The signature was checked before the payload was queued, so it can
+      // be parsed directly here.
+      Event event = ApiResource.GSON.fromJson(payload, Event.class);
+      handler.handle(event);
+
+      Files.deleteIfExists(file);
+      depth.decrementAndGet();
+      processed.increment();
+      recordLag(file);
+    } catch (Exception e) {
+      failedAttempts.increment();
+      System.out.println(
+        "Webhook " + file.getFileName() + " failed on attempt " + attempt + ": " + e.getMessage()
+      );
+      if (attempt >= maxAttempts) {
+        deadLetter(file);
+      } else {
+        long backoff = Math.min(BASE_BACKOFF_MILLIS << (attempt - 1), MAX_BACKOFF_MILLIS);
+        retries.schedule(() -> submit(file, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private void deadLetter(Path file) {
+    try {
+      Files.move(file, deadDir.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("Could not move " + file.getFileName() + " to dead letters: " + e.getMessage());
+    }
+    depth.decrementAndGet();
+    deadLettered.increment();
+  }
+
+  // Lag is measured from when the route accepted the event to when its
+  // handler finished.
+  private void recordLag(Path file) {
+    String name = file.getFileName().toString();
+    long receivedAt = Long.parseLong(name.substring(0, name.indexOf('-')));
+    long lag = System.currentTimeMillis() - receivedAt;
+    lastLagMillis = lag;
+    lagMillis.add(lag);
+    maxLagMillis.accumulate(lag);
+  }
+}
@@ -0,0 +1,127 @@
+package com.stripe.sample;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// What the stand-in does to each API request before answering it: wait for a
+// latency drawn from a distribution, then possibly fail it.
+//
+// Latency is given as one of:
+//
+//   fixed:50            always 50 ms
+//   uniform:20-200      anywhere from 20 to 200 ms
+//   lognormal:40,250    median 40 ms, 99th percentile 250 ms (a long tail,
+//                       like real API latency)
+//
+// A request is answered 429 when it is over `rateLimit` requests per second
+// (0 for no limit) or, at random, for a `rateLimitedRate` fraction of
+// requests; and 500 for an `errorRate` fraction of the rest.
+final class Faults {
+  enum Outcome { OK, RATE_LIMITED, ERROR }
+
+  // The 99th percentile of the standard normal distribution.
+  private static final double Z_99 = 2.326;
+
+  private final String latency;
+  private final String kind;
+  private final double first;
+  private final double second;
+  private final double errorRate;
+  private final double rateLimitedRate;
+  private final double rateLimit;
+
+  // Token bucket for `rateLimit`, holding up to a second's worth.
+  private double tokens;
+  private long refilledAt = System.nanoTime();
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder rateLimited = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder delayMillis = new LongAdder();
+
+  Faults(String latency, double errorRate, double rateLimitedRate, double rateLimit) {
+    this.latency = latency;
+    String[] parts = latency.split(":", 2);
+    this.kind = parts[0];
+    String[] values = parts.length > 1 ? parts[1].split("[,-]") : new String[0];
+    switch (kind) {
+      case "fixed":
+        this.first = Double.parseDouble(values[0]);
+        this.second = first;
+        break;
+      case "uniform":
+      case "lognormal":
+        this.first = Double.parseDouble(values[0]);
+        this.second = Double.parseDouble(values[1]);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown latency distribution: " + latency);
+    }
+    this.errorRate = errorRate;
+    this.rateLimitedRate = rateLimitedRate;
+    this.rateLimit = rateLimit;
+    this.tokens = rateLimit;
+  }
+
+  // Waits out the request's latency and decides how it is answered.
+  Outcome apply() throws InterruptedException {
+    requests.increment();
+    long delay = sampleMillis();
+    delayMillis.add(delay);
+    if (delay > 0) {
+      TimeUnit.MILLISECONDS.sleep(delay);
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (!takeToken() || random.nextDouble() < rateLimitedRate) {
+      rateLimited.increment();
+      return Outcome.RATE_LIMITED;
+    }
+    if (random.nextDouble() < errorRate) {
+      errors.increment();
+      return Outcome.ERROR;
+    }
+    return Outcome.OK;
+  }
+
+  Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long count = requests.sum();
+    stats.put("latency", latency);
+    stats.put("requests", count);
+    stats.put("rateLimited", rateLimited.sum());
+    stats.put("errors", errors.sum());
+    stats.put("averageDelayMillis", count == 0 ? 0.0 : (double) delayMillis.sum() / count);
+    return stats;
+  }
+
+  private long sampleMillis() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    switch (kind) {
+      case "uniform":
+        return Math.round(first + random.nextDouble() * (second - first));
+      case "lognormal":
+        double mu = Math.log(first);
+        double sigma = (Math.log(second) - mu) / Z_99;
+        return Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+      default:
+        return Math.round(first);
+    }
+  }
+
+  private synchronized boolean takeToken() {
+    if (rateLimit <= 0) {
+      return true;
+    }
+    long now = System.nanoTime();
+    tokens = Math.min(rateLimit, tokens + (now - refilledAt) / 1e9 * rateLimit);
+    refilledAt = now;
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+}
@@ -0,0 +1,108 @@
+package com.stripe.sample;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Decodes the form encoding the Stripe API uses for v1 requests, in bodies
+// and query strings alike, into JSON:
+//
+//   items[0][price]=price_123&expand[0]=latest_invoice
+//
+// becomes {"items": [{"price": "price_123"}], "expand": ["latest_invoice"]}.
+// Values stay strings, and an empty value (how a field is unset) becomes null.
+final class FormBody {
+  private FormBody() {}
+
+  static JsonObject parse(String encoded) {
+    JsonObject root = new JsonObject();
+    if (encoded == null || encoded.isEmpty()) {
+      return root;
+    }
+    for (String pair : encoded.split("&")) {
+      if (pair.isEmpty()) {
+        continue;
+      }
+      int equals = pair.indexOf('=');
+      String key = decode(equals < 0 ? pair : pair.substring(0, equals));
+      String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+
+      List<String> path = path(key);
+      JsonObject node = root;
+      for (int i = 0; i < path.size() - 1; i++) {
+        JsonElement child = node.get(path.get(i));
+        if (child == null || !child.isJsonObject()) {
+          child = new JsonObject();
+          node.add(path.get(i), child);
+        }
+        node = child.getAsJsonObject();
+      }
+      String name = path.get(path.size() - 1);
+      if (value.isEmpty()) {
+        node.add(name, JsonNull.INSTANCE);
+      } else {
+        node.addProperty(name, value);
+      }
+    }
+    return toArrays(root).getAsJsonObject();
+  }
+
+  // "items[0][price]" -> ["items", "0", "price"]
+  private static List<String> path(String key) {
+    List<String> path = new ArrayList<>();
+    int bracket = key.indexOf('[');
+    path.add(bracket < 0 ? key : key.substring(0, bracket));
+    while (bracket >= 0) {
+      int close = key.indexOf(']', bracket);
+      if (close < 0) {
+        break;
+      }
+      path.add(key.substring(bracket + 1, close));
+      bracket = key.indexOf('[', close);
+    }
+    return path;
+  }
+
+  // Objects whose keys are all indexes become arrays.
+  private static JsonElement toArrays(JsonElement element) {
+    if (!element.isJsonObject()) {
+      return element;
+    }
+    JsonObject object = element.getAsJsonObject();
+    boolean indexed = object.size() > 0;
+    for (String key : object.keySet()) {
+      if (!key.matches("\\d+")) {
+        indexed = false;
+      }
+      object.add(key, toArrays(object.get(key)));
+    }
+    if (!indexed) {
+      return object;
+    }
+    Map<Integer, JsonElement> ordered = new TreeMap<>();
+    for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+      ordered.put(Integer.parseInt(entry.getKey()), entry.getValue());
+    }
+    JsonArray array = new JsonArray();
+    for (JsonElement value : ordered.values()) {
+      array.add(value);
+    }
+    return array;
+  }
+
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
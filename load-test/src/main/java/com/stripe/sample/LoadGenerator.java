@@ -0,0 +1,491 @@
+package com.stripe.sample;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.stripe.net.Webhook;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import java.net.HttpCookie;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpResponseException;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.util.HttpCookieStore;
+
+// Drives one of the sample servers at fixed request rates and reports the
+// latency of each route, for running against StripeStandIn.
+//
+// Load is open-loop: requests go out on schedule whether or not earlier ones
+// have been answered, and latency is measured from when a request was due
+// rather than from when it was actually sent, so a server that falls behind
+// shows it in the percentiles instead of quietly slowing the test down.
+// Requests that would take more than LOAD_MAX_IN_FLIGHT outstanding are not
+// sent and are counted as dropped.
+//
+// Before the timed run, LOAD_CUSTOMERS customers are created through the
+// server, each with a subscription; the routes then pick one at random.
+// Webhooks replay the events the stand-in recorded, each under a fresh ID and
+// signed with LOAD_WEBHOOK_SECRET, which must match the server's
+// STRIPE_WEBHOOK_SECRET.
+public class LoadGenerator {
+  private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  private final String target;
+  private final String standIn;
+  private final String webhookSecret;
+  private final String meterEventName;
+  private final HttpClient client;
+  private final Semaphore inFlight;
+
+  private final List<Customer> customers = new ArrayList<>();
+  private final AtomicReference<JsonArray> events = new AtomicReference<>(new JsonArray());
+  private final AtomicLong eventSequence = new AtomicLong();
+  // Servers remember the event IDs they have handled, even across restarts,
+  // so each run needs IDs of its own.
+  private final String eventIdPrefix = "evt_load_" + Long.toString(System.currentTimeMillis(), 36) + "_";
+  private String basicPrice;
+  private String premiumPrice;
+
+  static final class Customer {
+    final String id;
+    final String cookie;
+    volatile String subscriptionId;
+
+    Customer(String id, String cookie) {
+      this.id = id;
+      this.cookie = cookie;
+    }
+  }
+
+  public LoadGenerator(String target, String standIn, String webhookSecret, String meterEventName, int maxInFlight)
+    throws Exception {
+    this.target = target;
+    this.standIn = standIn;
+    this.webhookSecret = webhookSecret;
+    this.meterEventName = meterEventName;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.client = new HttpClient();
+    // Each simulated customer carries its own `customer` cookie.
+    client.setCookieStore(new HttpCookieStore.Empty());
+    client.setMaxConnectionsPerDestination(maxInFlight);
+    client.setMaxRequestsQueuedPerDestination(maxInFlight);
+    client.setFollowRedirects(false);
+    client.start();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Dotenv dotenv = Dotenv.configure().ignoreIfMissing().load();
+    LoadGenerator generator = new LoadGenerator(
+      setting(dotenv, "LOAD_TARGET", "http://localhost:4242"),
+      setting(dotenv, "LOAD_STANDIN", "http://localhost:12111"),
+      setting(dotenv, "LOAD_WEBHOOK_SECRET", "whsec_load_test"),
+      setting(dotenv, "LOAD_METER_EVENT_NAME", "api_requests"),
+      Integer.parseInt(setting(dotenv, "LOAD_MAX_IN_FLIGHT", "1000"))
+    );
+    Map<String, Double> rates = rates(
+      setting(dotenv, "LOAD_RATES", "create-subscription=5,update-subscription=5,subscriptions=50,webhook=20")
+    );
+    try {
+      generator.setUp(Integer.parseInt(setting(dotenv, "LOAD_CUSTOMERS", "50")));
+      generator.run(rates, Long.parseLong(setting(dotenv, "LOAD_DURATION_SECONDS", "60")));
+    } finally {
+      generator.client.stop();
+    }
+  }
+
+  // "subscriptions=50,webhook=20" -> {subscriptions: 50.0, webhook: 20.0}
+  static Map<String, Double> rates(String spec) {
+    Map<String, Double> rates = new LinkedHashMap<>();
+    for (String entry : spec.split(",")) {
+      String[] parts = entry.trim().split("=");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Expected route=requestsPerSecond, got: " + entry);
+      }
+      rates.put(parts[0].trim(), Double.parseDouble(parts[1].trim()));
+    }
+    return rates;
+  }
+
+  void setUp(int customerCount) throws Exception {
+    basicPrice = priceId("sample_basic");
+    premiumPrice = priceId("sample_premium");
+    for (int i = 0; i < customerCount; i++) {
+      JsonObject body = new JsonObject();
+      body.addProperty("email", "load-" + i + "@example.com");
+      body.addProperty("name", "Load " + i);
+      ContentResponse response = send(post(target + "/create-customer", body, null));
+      Customer customer = customer(response);
+      customers.add(customer);
+
+      JsonObject subscription = new JsonObject();
+      subscription.addProperty("priceId", basicPrice);
+      subscription.addProperty("customerId", customer.id);
+      subscription.addProperty("paymentMethodId", "pm_load_" + i);
+      customer.subscriptionId = subscriptionId(send(post(target + "/create-subscription", subscription, customer)));
+    }
+    refreshEvents();
+    System.out.println(
+      String.format("Set up %d customers with subscriptions; %d events to replay", customers.size(), events.get().size())
+    );
+  }
+
+  void run(Map<String, Double> rates, long durationSeconds) throws Exception {
+    Map<String, RouteStats> stats = new LinkedHashMap<>();
+    List<Thread> threads = new ArrayList<>();
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+    for (Map.Entry<String, Double> rate : rates.entrySet()) {
+      String route = rate.getKey();
+      RouteStats routeStats = new RouteStats();
+      stats.put(route, routeStats);
+      long intervalNanos = (long) (1e9 / rate.getValue());
+      Thread thread = new Thread(() -> {
+        // Each request is due at a fixed offset from the start, so a slow
+        // send doesn't push the rest of the schedule back.
+        for (long due = start; due < end; due += intervalNanos) {
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            try {
+              TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          routeStats.sent.increment();
+          if (!inFlight.tryAcquire()) {
+            routeStats.dropped.increment();
+            continue;
+          }
+          fire(route, due, routeStats);
+        }
+      }, "load-" + route);
+      thread.start();
+      threads.add(thread);
+    }
+
+    Thread refresher = new Thread(() -> {
+      long nextProgress = start + PROGRESS_INTERVAL_NANOS;
+      while (System.nanoTime() < end) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(Math.max(0, nextProgress - System.nanoTime()));
+          refreshEvents();
+        } catch (InterruptedException e) {
+          return;
+        } catch (Exception e) {
+          // Keep replaying the events we already have.
+        }
+        progress(stats, System.nanoTime() - start);
+        nextProgress += PROGRESS_INTERVAL_NANOS;
+      }
+    }, "load-progress");
+    refresher.setDaemon(true);
+    refresher.start();
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // Let the stragglers finish (or time out) before reporting.
+    long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (System.nanoTime() < drainUntil && outstanding(stats) > 0) {
+      TimeUnit.MILLISECONDS.sleep(50);
+    }
+    summarize(stats, System.nanoTime() - start);
+
+    try {
+      System.out.println();
+      System.out.println("Stand-in: " + send(client.newRequest(standIn + "/_standin/stats")).getContentAsString());
+    } catch (Exception e) {
+      System.out.println("Stand-in stats unavailable: " + e.getMessage());
+    }
+  }
+
+  private void fire(String route, long due, RouteStats stats) {
+    Request request;
+    try {
+      request = request(route);
+    } catch (Exception e) {
+      inFlight.release();
+      stats.failed.increment();
+      return;
+    }
+    request.send(result -> {
+      inFlight.release();
+      stats.latencies.add(System.nanoTime() - due);
+      if (result.isFailed()) {
+        stats.failed.increment();
+      } else if (result.getResponse().getStatus() / 100 == 2) {
+        stats.ok.increment();
+      } else {
+        stats.non2xx.increment();
+      }
+    });
+  }
+
+  private Request request(String route) throws Exception {
+    Customer customer = customers.get(ThreadLocalRandom.current().nextInt(customers.size()));
+    JsonObject body = new JsonObject();
+    switch (route) {
+      case "create-customer":
+        body.addProperty("email", "load-" + System.nanoTime() + "@example.com");
+        body.addProperty("name", "Load");
+        return post(target + "/create-customer", body, null);
+      case "create-subscription":
+        body.addProperty("priceId", basicPrice);
+        body.addProperty("customerId", customer.id);
+        body.addProperty("paymentMethodId", "pm_load_" + System.nanoTime());
+        return post(target + "/create-subscription", body, customer);
+      case "update-subscription":
+        body.addProperty("subscriptionId", customer.subscriptionId);
+        body.addProperty("newPriceLookupKey", "sample_premium");
+        body.addProperty("newPriceId", premiumPrice);
+        return post(target + "/update-subscription", body, customer);
+      case "invoice-preview":
+        return get(
+          target + "/invoice-preview?subscriptionId=" + customer.subscriptionId + "&newPriceLookupKey=sample_premium",
+          customer
+        );
+      case "retrieve-upcoming-invoice":
+        body.addProperty("customerId", customer.id);
+        body.addProperty("subscriptionId", customer.subscriptionId);
+        body.addProperty("newPriceId", premiumPrice);
+        return post(target + "/retrieve-upcoming-invoice", body, customer);
+      case "create-meter-event":
+        body.addProperty("eventName", meterEventName);
+        body.addProperty("customerId", customer.id);
+        body.addProperty("value", "1");
+        return post(target + "/create-meter-event", body, customer);
+      case "webhook":
+        return webhook();
+      default:
+        // Any other route is a plain GET, e.g. `subscriptions` or `config`.
+        return get(target + "/" + route, customer);
+    }
+  }
+
+  private Request webhook() throws NoSuchAlgorithmException, InvalidKeyException {
+    JsonArray recorded = events.get();
+    if (recorded.size() == 0) {
+      throw new IllegalStateException("No events to replay yet");
+    }
+    JsonObject event = recorded.get(ThreadLocalRandom.current().nextInt(recorded.size())).getAsJsonObject().deepCopy();
+    long now = System.currentTimeMillis() / 1000;
+    event.addProperty("id", eventIdPrefix + eventSequence.incrementAndGet());
+    event.addProperty("created", now);
+    String payload = event.toString();
+    String signature = "t=" + now + ",v1=" + Webhook.Util.computeHmacSha256(webhookSecret, now + "." + payload);
+    return client
+      .newRequest(target + "/webhook")
+      .method(HttpMethod.POST)
+      .header("Stripe-Signature", signature)
+      .content(new StringContentProvider("application/json", payload, StandardCharsets.UTF_8));
+  }
+
+  private void refreshEvents() throws Exception {
+    ContentResponse response = send(client.newRequest(standIn + "/_standin/events?limit=1000"));
+    JsonArray data = JsonParser.parseString(response.getContentAsString()).getAsJsonObject().getAsJsonArray("data");
+    if (data.size() > 0) {
+      events.set(data);
+    }
+  }
+
+  private String priceId(String lookupKey) throws Exception {
+    ContentResponse response = send(client.newRequest(standIn + "/v1/prices?lookup_keys[0]=" + lookupKey));
+    JsonArray data = JsonParser.parseString(response.getContentAsString()).getAsJsonObject().getAsJsonArray("data");
+    if (data.size() == 0) {
+      throw new IllegalStateException("The stand-in has no price " + lookupKey);
+    }
+    return data.get(0).getAsJsonObject().get("id").getAsString();
+  }
+
+  private Request post(String url, JsonObject body, Customer customer) {
+    Request request = client
+      .newRequest(url)
+      .method(HttpMethod.POST)
+      .content(new StringContentProvider("application/json", body.toString(), StandardCharsets.UTF_8));
+    return withCookie(request, customer);
+  }
+
+  private Request get(String url, Customer customer) {
+    return withCookie(client.newRequest(url), customer);
+  }
+
+  private static Request withCookie(Request request, Customer customer) {
+    if (customer != null && customer.cookie != null) {
+      request.cookie(new HttpCookie("customer", customer.cookie));
+    }
+    return request.timeout(30, TimeUnit.SECONDS);
+  }
+
+  private ContentResponse send(Request request) throws Exception {
+    ContentResponse response = request.timeout(30, TimeUnit.SECONDS).send();
+    if (response.getStatus() / 100 != 2) {
+      throw new HttpResponseException(
+        request.getURI() + " answered " + response.getStatus() + ": " + response.getContentAsString(),
+        response
+      );
+    }
+    return response;
+  }
+
+  // The servers answer `{"customer": {...}}` and set a `customer` cookie.
+  private static Customer customer(ContentResponse response) {
+    String cookie = null;
+    for (HttpField field : response.getHeaders().getFields(HttpHeader.SET_COOKIE)) {
+      for (HttpCookie parsed : HttpCookie.parse(field.getValue())) {
+        if ("customer".equals(parsed.getName())) {
+          cookie = parsed.getValue();
+        }
+      }
+    }
+    JsonObject body = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    String id = id(body.get("customer"));
+    if (id == null) {
+      id = cookie;
+    }
+    if (id == null) {
+      throw new IllegalStateException("No customer ID in " + body);
+    }
+    return new Customer(id, cookie);
+  }
+
+  // The servers answer with the subscription ID in one of a few shapes.
+  private static String subscriptionId(ContentResponse response) {
+    JsonObject body = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    for (String field : Arrays.asList("subscriptionId", "subscription", "id")) {
+      String id = id(body.get(field));
+      if (id != null) {
+        return id;
+      }
+    }
+    throw new IllegalStateException("No subscription ID in " + body);
+  }
+
+  private static String id(JsonElement element) {
+    if (element == null || element.isJsonNull()) {
+      return null;
+    }
+    if (element.isJsonPrimitive()) {
+      return element.getAsString();
+    }
+    JsonElement id = element.isJsonObject() ? element.getAsJsonObject().get("id") : null;
+    return id == null || id.isJsonNull() ? null : id.getAsString();
+  }
+
+  private static long outstanding(Map<String, RouteStats> stats) {
+    long outstanding = 0;
+    for (RouteStats routeStats : stats.values()) {
+      outstanding += routeStats.sent.sum() - routeStats.dropped.sum() - routeStats.done();
+    }
+    return outstanding;
+  }
+
+  private static void progress(Map<String, RouteStats> stats, long elapsedNanos) {
+    StringBuilder line = new StringBuilder(String.format("%5.0fs", elapsedNanos / 1e9));
+    for (Map.Entry<String, RouteStats> entry : stats.entrySet()) {
+      RouteStats routeStats = entry.getValue();
+      line.append(
+        String.format(
+          "  %s %d ok %d err %d drop",
+          entry.getKey(),
+          routeStats.ok.sum(),
+          routeStats.non2xx.sum() + routeStats.failed.sum(),
+          routeStats.dropped.sum()
+        )
+      );
+    }
+    System.out.println(line);
+  }
+
+  private static void summarize(Map<String, RouteStats> stats, long elapsedNanos) {
+    System.out.println();
+    System.out.println(
+      String.format(
+        "%-26s %8s %8s %8s %8s %8s %9s %9s %9s %9s %9s",
+        "Route", "Sent", "OK", "Non-2xx", "Failed", "Dropped", "Req/s", "p50 ms", "p99 ms", "p99.9 ms", "Max ms"
+      )
+    );
+    for (Map.Entry<String, RouteStats> entry : stats.entrySet()) {
+      RouteStats routeStats = entry.getValue();
+      System.out.println(
+        String.format(
+          "%-26s %8d %8d %8d %8d %8d %9.1f %9.1f %9.1f %9.1f %9.1f",
+          entry.getKey(),
+          routeStats.sent.sum(),
+          routeStats.ok.sum(),
+          routeStats.non2xx.sum(),
+          routeStats.failed.sum(),
+          routeStats.dropped.sum(),
+          routeStats.done() / (elapsedNanos / 1e9),
+          routeStats.latencies.percentile(50) / 1e6,
+          routeStats.latencies.percentile(99) / 1e6,
+          routeStats.latencies.percentile(99.9) / 1e6,
+          routeStats.latencies.percentile(100) / 1e6
+        )
+      );
+    }
+  }
+
+  private static String setting(Dotenv dotenv, String name, String defaultValue) {
+    String value = dotenv.get(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+
+  static final class RouteStats {
+    final LongAdder sent = new LongAdder();
+    final LongAdder ok = new LongAdder();
+    final LongAdder non2xx = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final Latencies latencies = new Latencies();
+
+    long done() {
+      return ok.sum() + non2xx.sum() + failed.sum();
+    }
+  }
+
+  // Every response's latency, kept so the summary can show exact percentiles.
+  static final class Latencies {
+    private long[] values = new long[1024];
+    private int size;
+
+    synchronized void add(long nanos) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = nanos;
+    }
+
+    synchronized long percentile(double percentile) {
+      if (size == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(values, size);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * size) - 1;
+      return sorted[Math.max(0, Math.min(index, size - 1))];
+    }
+  }
+}
@@ -0,0 +1,923 @@
+package com.stripe.sample;
+
+import static spark.Spark.before;
+import static spark.Spark.delete;
+import static spark.Spark.get;
+import static spark.Spark.halt;
+import static spark.Spark.port;
+import static spark.Spark.post;
+import static spark.Spark.threadPool;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.stripe.Stripe;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+// An in-memory stand-in for the parts of the Stripe API the sample servers
+// call, for load testing them without touching Stripe:
+//
+// - customers, payment methods and payment intents
+// - prices and products (`price_sample_basic` and `price_sample_premium`,
+//   with lookup keys `sample_basic` and `sample_premium`, exist at start)
+// - subscriptions: create, retrieve, list, update and cancel
+// - invoices: retrieve, create_preview and the legacy upcoming invoice
+// - billing meters, legacy usage records, and v2 meter events, meter event
+//   sessions and the meter event stream
+//
+// Objects are just JSON, shaped closely enough to what Stripe returns for
+// stripe-java to read them; `expand` works for any field holding an ID the
+// stand-in knows. Every API request first goes through Faults, which adds
+// latency and injects 429s and 500s.
+//
+// The events a real account would send for these changes are kept, newest
+// first, at `/_standin/events`; LoadGenerator signs them and sends them to
+// the server's `/webhook`. Request counts, injected faults and meter event
+// totals are at `/_standin/stats`.
+//
+// Point a server at it with STRIPE_API_BASE=http://localhost:12111.
+public class StripeStandIn {
+  private static final long PERIOD_SECONDS = TimeUnit.DAYS.toSeconds(30);
+  private static final int MAX_METER_EVENT_IDENTIFIERS = 1_000_000;
+
+  private static Gson gson = new Gson();
+
+  private final Faults faults;
+  private final int maxEvents;
+  private final Map<String, JsonObject> objects = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> subscriptionsByCustomer = new ConcurrentHashMap<>();
+  private final Deque<JsonObject> events = new ArrayDeque<>();
+  private final Set<String> meterEventIdentifiers = ConcurrentHashMap.newKeySet();
+  // Successful POST responses by Idempotency-Key, replayed like Stripe does.
+  private final Map<String, Object[]> idempotentResponses = new ConcurrentHashMap<>();
+
+  private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+  private final LongAdder meterEvents = new LongAdder();
+  private final LongAdder duplicateMeterEvents = new LongAdder();
+  private final LongAdder meterEventValue = new LongAdder();
+  private final LongAdder usageRecords = new LongAdder();
+  private final LongAdder idempotentReplays = new LongAdder();
+
+  public StripeStandIn(Faults faults, int maxEvents) {
+    this.faults = faults;
+    this.maxEvents = maxEvents;
+    JsonObject basic = product("Basic");
+    JsonObject premium = product("Premium");
+    // Fixed IDs, so the servers' SAMPLE_BASIC and SAMPLE_PREMIUM can name them.
+    price(basic, "price_sample_basic", "sample_basic", 500);
+    price(premium, "price_sample_premium", "sample_premium", 1500);
+  }
+
+  public static void main(String[] args) {
+    Dotenv dotenv = Dotenv.configure().ignoreIfMissing().load();
+    port(Integer.parseInt(setting(dotenv, "STANDIN_PORT", "12111")));
+    // Injected latency holds a thread per request, so allow plenty.
+    threadPool(Integer.parseInt(setting(dotenv, "STANDIN_THREADS", "1000")));
+
+    Faults faults = new Faults(
+      setting(dotenv, "STANDIN_LATENCY", "lognormal:40,250"),
+      Double.parseDouble(setting(dotenv, "STANDIN_ERROR_RATE", "0")),
+      Double.parseDouble(setting(dotenv, "STANDIN_429_RATE", "0")),
+      Double.parseDouble(setting(dotenv, "STANDIN_RATE_LIMIT", "0"))
+    );
+    new StripeStandIn(faults, Integer.parseInt(setting(dotenv, "STANDIN_EVENTS", "1000"))).start();
+  }
+
+  public void start() {
+    before("/v1/*", this::injectFaults);
+    before("/v2/*", this::injectFaults);
+
+    get("/_standin/stats", (request, response) -> {
+      response.type("application/json");
+      Map<String, Object> responseData = new HashMap<>();
+      Map<String, Long> counts = new HashMap<>();
+      for (Map.Entry<String, LongAdder> entry : requests.entrySet()) {
+        counts.put(entry.getKey(), entry.getValue().sum());
+      }
+      responseData.put("requests", counts);
+      responseData.put("faults", faults.stats());
+      responseData.put("objects", objects.size());
+      responseData.put("meterEvents", meterEvents.sum());
+      responseData.put("duplicateMeterEvents", duplicateMeterEvents.sum());
+      responseData.put("meterEventValue", meterEventValue.sum());
+      responseData.put("usageRecords", usageRecords.sum());
+      responseData.put("idempotentReplays", idempotentReplays.sum());
+      return gson.toJson(responseData);
+    });
+
+    get("/_standin/events", (request, response) -> {
+      int limit = request.queryParams("limit") == null ? 100 : Integer.parseInt(request.queryParams("limit"));
+      JsonArray data = new JsonArray();
+      synchronized (events) {
+        for (JsonObject event : events) {
+          if (data.size() == limit) {
+            break;
+          }
+          data.add(event);
+        }
+      }
+      return json(response, list(data, false, "/_standin/events"));
+    });
+
+    route("POST", "/v1/customers", (request, response) -> {
+      JsonObject params = params(request);
+      JsonObject customer = new JsonObject();
+      customer.addProperty("id", id("cus"));
+      customer.addProperty("object", "customer");
+      customer.addProperty("created", now());
+      customer.add("email", params.get("email"));
+      customer.add("name", params.get("name"));
+      customer.addProperty("livemode", false);
+      customer.add("metadata", new JsonObject());
+      JsonObject invoiceSettings = new JsonObject();
+      invoiceSettings.add("default_payment_method", JsonNull.INSTANCE);
+      customer.add("invoice_settings", invoiceSettings);
+      store(customer);
+      event("customer.created", customer);
+      return json(response, expand(snapshot(customer), params));
+    });
+
+    route("GET", "/v1/customers/:id", (request, response) ->
+      json(response, expand(snapshot(find(request, "customer")), params(request)))
+    );
+
+    route("POST", "/v1/customers/:id", (request, response) -> {
+      JsonObject customer = find(request, "customer");
+      JsonObject params = params(request);
+      synchronized (customer) {
+        copy(params, customer, "email", "name");
+        JsonElement invoiceSettings = params.get("invoice_settings");
+        if (invoiceSettings != null && invoiceSettings.isJsonObject()) {
+          copy(invoiceSettings.getAsJsonObject(), customer.getAsJsonObject("invoice_settings"), "default_payment_method");
+        }
+      }
+      event("customer.updated", customer);
+      return json(response, expand(snapshot(customer), params));
+    });
+
+    route("GET", "/v1/payment_methods/:id", (request, response) ->
+      json(response, expand(snapshot(paymentMethod(request.params("id"), null)), params(request)))
+    );
+
+    route("POST", "/v1/payment_methods/:id/attach", (request, response) -> {
+      JsonObject params = params(request);
+      JsonObject paymentMethod = paymentMethod(request.params("id"), null);
+      synchronized (paymentMethod) {
+        copy(params, paymentMethod, "customer");
+      }
+      event("payment_method.attached", paymentMethod);
+      return json(response, expand(snapshot(paymentMethod), params));
+    });
+
+    route("GET", "/v1/payment_intents/:id", (request, response) ->
+      json(response, expand(snapshot(find(request, "payment_intent")), params(request)))
+    );
+
+    route("GET", "/v1/products/:id", (request, response) ->
+      json(response, expand(snapshot(find(request, "product")), params(request)))
+    );
+
+    route("GET", "/v1/prices", (request, response) -> {
+      JsonObject params = params(request);
+      List<String> lookupKeys = strings(params.get("lookup_keys"));
+      JsonArray data = new JsonArray();
+      for (JsonObject object : objects.values()) {
+        if (
+          "price".equals(string(object, "object")) &&
+          (lookupKeys.isEmpty() || lookupKeys.contains(string(object, "lookup_key")))
+        ) {
+          data.add(snapshot(object));
+        }
+      }
+      return json(response, expand(list(data, false, "/v1/prices"), params));
+    });
+
+    route("GET", "/v1/prices/:id", (request, response) ->
+      json(response, expand(snapshot(find(request, "price")), params(request)))
+    );
+
+    route("POST", "/v1/prices", (request, response) -> {
+      JsonObject params = params(request);
+      JsonObject product;
+      if (params.get("product_data") != null && params.get("product_data").isJsonObject()) {
+        product = product(string(params.getAsJsonObject("product_data"), "name"));
+      } else {
+        product = objects.get(string(params, "product"));
+        if (product == null) {
+          product = product("Product");
+        }
+      }
+      long unitAmount = params.has("unit_amount") && !params.get("unit_amount").isJsonNull()
+        ? params.get("unit_amount").getAsLong()
+        : 0;
+      JsonObject price = price(product, id("price"), string(params, "lookup_key"), unitAmount);
+      synchronized (price) {
+        copy(params, price, "currency", "nickname");
+        JsonElement recurring = params.get("recurring");
+        if (recurring != null && recurring.isJsonObject()) {
+          price.add("recurring", recurring);
+        }
+      }
+      event("price.created", price);
+      return json(response, expand(snapshot(price), params));
+    });
+
+    route("POST", "/v1/subscriptions", (request, response) -> {
+      JsonObject params = params(request);
+      JsonObject subscription = createSubscription(params);
+      return json(response, expand(snapshot(subscription), params));
+    });
+
+    route("GET", "/v1/subscriptions", (request, response) -> {
+      JsonObject params = params(request);
+      String customer = string(params, "customer");
+      String status = string(params, "status");
+      int limit = params.has("limit") ? params.get("limit").getAsInt() : 10;
+
+      List<JsonObject> matches = new ArrayList<>();
+      Iterable<String> ids = customer == null
+        ? objects.keySet()
+        : subscriptionsByCustomer.getOrDefault(customer, ConcurrentHashMap.newKeySet());
+      for (String id : ids) {
+        JsonObject subscription = objects.get(id);
+        if (subscription == null || !"subscription".equals(string(subscription, "object"))) {
+          continue;
+        }
+        JsonObject copy = snapshot(subscription);
+        String subscriptionStatus = string(copy, "status");
+        boolean wanted = status == null
+          ? !"canceled".equals(subscriptionStatus)
+          : "all".equals(status) || status.equals(subscriptionStatus);
+        if (wanted) {
+          matches.add(copy);
+        }
+      }
+      // Newest first, like Stripe, with IDs breaking ties so pages are stable.
+      matches.sort(
+        Comparator
+          .comparingLong((JsonObject s) -> s.get("created").getAsLong())
+          .thenComparing((JsonObject s) -> string(s, "id"))
+          .reversed()
+      );
+      int from = 0;
+      String startingAfter = string(params, "starting_after");
+      for (int i = 0; startingAfter != null && i < matches.size(); i++) {
+        if (startingAfter.equals(string(matches.get(i), "id"))) {
+          from = i + 1;
+          break;
+        }
+      }
+      JsonArray data = new JsonArray();
+      for (int i = from; i < matches.size() && i < from + limit; i++) {
+        data.add(matches.get(i));
+      }
+      return json(response, expand(list(data, matches.size() > from + limit, "/v1/subscriptions"), params));
+    });
+
+    route("GET", "/v1/subscriptions/:id", (request, response) ->
+      json(response, expand(snapshot(find(request, "subscription")), params(request)))
+    );
+
+    route("POST", "/v1/subscriptions/:id", (request, response) -> {
+      JsonObject params = params(request);
+      JsonObject subscription = find(request, "subscription");
+      synchronized (subscription) {
+        copy(params, subscription, "default_payment_method");
+        if (params.has("cancel_at_period_end")) {
+          subscription.addProperty("cancel_at_period_end", "true".equals(string(params, "cancel_at_period_end")));
+        }
+        for (JsonElement change : array(params.get("items"))) {
+          String itemId = string(change.getAsJsonObject(), "id");
+          String priceId = string(change.getAsJsonObject(), "price");
+          for (JsonElement item : subscription.getAsJsonObject("items").getAsJsonArray("data")) {
+            if (item.getAsJsonObject().get("id").getAsString().equals(itemId) && objects.containsKey(priceId)) {
+              item.getAsJsonObject().add("price", snapshot(objects.get(priceId)));
+            }
+          }
+        }
+      }
+      event("customer.subscription.updated", subscription);
+      return json(response, expand(snapshot(subscription), params));
+    });
+
+    route("DELETE", "/v1/subscriptions/:id", (request, response) -> {
+      JsonObject subscription = find(request, "subscription");
+      synchronized (subscription) {
+        subscription.addProperty("status", "canceled");
+        subscription.addProperty("canceled_at", now());
+        subscription.addProperty("ended_at", now());
+      }
+      event("customer.subscription.deleted", subscription);
+      return json(response, expand(snapshot(subscription), params(request)));
+    });
+
+    route("POST", "/v1/invoices/create_preview", (request, response) -> {
+      JsonObject params = params(request);
+      JsonObject details = params.get("subscription_details") != null && params.get("subscription_details").isJsonObject()
+        ? params.getAsJsonObject("subscription_details")
+        : new JsonObject();
+      return json(response, expand(preview(request, params, array(details.get("items"))), params));
+    });
+
+    route("GET", "/v1/invoices/upcoming", (request, response) -> {
+      JsonObject params = params(request);
+      return json(response, expand(preview(request, params, array(params.get("subscription_items"))), params));
+    });
+
+    route("GET", "/v1/invoices/:id", (request, response) ->
+      json(response, expand(snapshot(find(request, "invoice")), params(request)))
+    );
+
+    route("POST", "/v1/billing/meters", (request, response) -> {
+      JsonObject params = params(request);
+      JsonObject meter = new JsonObject();
+      meter.addProperty("id", id("mtr"));
+      meter.addProperty("object", "billing.meter");
+      meter.addProperty("created", now());
+      meter.addProperty("status", "active");
+      meter.addProperty("livemode", false);
+      copy(params, meter, "display_name", "event_name", "default_aggregation", "customer_mapping", "value_settings");
+      store(meter);
+      return json(response, snapshot(meter));
+    });
+
+    route("POST", "/v1/subscription_items/:id/usage_records", (request, response) -> {
+      JsonObject params = params(request);
+      usageRecords.increment();
+      JsonObject usageRecord = new JsonObject();
+      usageRecord.addProperty("id", id("mbur"));
+      usageRecord.addProperty("object", "usage_record");
+      usageRecord.addProperty("subscription_item", request.params("id"));
+      usageRecord.addProperty("livemode", false);
+      usageRecord.addProperty("quantity", params.has("quantity") ? params.get("quantity").getAsLong() : 0);
+      usageRecord.addProperty("timestamp", params.has("timestamp") ? params.get("timestamp").getAsLong() : now());
+      return json(response, usageRecord);
+    });
+
+    route("POST", "/v2/billing/meter_events", (request, response) -> {
+      JsonObject event = JsonParser.parseString(request.body()).getAsJsonObject();
+      recordMeterEvent(event);
+      JsonObject meterEvent = event.deepCopy();
+      meterEvent.addProperty("object", "v2.billing.meter_event");
+      meterEvent.addProperty("created", Instant.now().toString());
+      meterEvent.addProperty("livemode", false);
+      if (!meterEvent.has("timestamp")) {
+        meterEvent.addProperty("timestamp", Instant.now().toString());
+      }
+      return json(response, meterEvent);
+    });
+
+    route("POST", "/v2/billing/meter_event_session", (request, response) -> {
+      JsonObject session = new JsonObject();
+      session.addProperty("id", id("mes"));
+      session.addProperty("object", "v2.billing.meter_event_session");
+      session.addProperty("authentication_token", id("mes_token"));
+      session.addProperty("created", Instant.now().toString());
+      session.addProperty("expires_at", Instant.now().plusSeconds(900).toString());
+      session.addProperty("livemode", false);
+      return json(response, session);
+    });
+
+    route("POST", "/v2/billing/meter_event_stream", (request, response) -> {
+      JsonObject body = JsonParser.parseString(request.body()).getAsJsonObject();
+      for (JsonElement event : array(body.get("events"))) {
+        recordMeterEvent(event.getAsJsonObject());
+      }
+      response.status(202);
+      return json(response, new JsonObject());
+    });
+  }
+
+  private void injectFaults(Request request, Response response) throws InterruptedException {
+    Faults.Outcome outcome = faults.apply();
+    if (outcome == Faults.Outcome.RATE_LIMITED) {
+      response.type("application/json");
+      halt(429, error("invalid_request_error", "rate_limit", "Request rate limit exceeded.").toString());
+    } else if (outcome == Faults.Outcome.ERROR) {
+      response.type("application/json");
+      halt(500, error("api_error", null, "An unexpected error occurred (injected by the stand-in).").toString());
+    }
+  }
+
+  private void route(String method, String path, Route route) {
+    LongAdder count = requests.computeIfAbsent(method + " " + path, key -> new LongAdder());
+    Route counted = (request, response) -> {
+      count.increment();
+      String idempotencyKey = request.headers("Idempotency-Key");
+      if (!"POST".equals(method) || idempotencyKey == null) {
+        return route.handle(request, response);
+      }
+      // Requests with the same key wait for each other; errors aren't kept,
+      // so a retry after one runs again.
+      Object[] saved = idempotentResponses.computeIfAbsent(idempotencyKey, key -> new Object[1]);
+      synchronized (saved) {
+        if (saved[0] != null) {
+          idempotentReplays.increment();
+          response.type("application/json");
+          response.header("Idempotent-Replayed", "true");
+          return saved[0];
+        }
+        saved[0] = route.handle(request, response);
+        return saved[0];
+      }
+    };
+    switch (method) {
+      case "GET":
+        get(path, counted);
+        break;
+      case "DELETE":
+        delete(path, counted);
+        break;
+      default:
+        post(path, counted);
+    }
+  }
+
+  private JsonObject createSubscription(JsonObject params) {
+    String customerId = string(params, "customer");
+    if (customerId == null || !objects.containsKey(customerId)) {
+      throw notFound("customer", customerId);
+    }
+    long now = now();
+    String subscriptionId = id("sub");
+    String paymentMethodId = string(params, "default_payment_method");
+    boolean incomplete = "default_incomplete".equals(string(params, "payment_behavior")) || paymentMethodId == null;
+
+    JsonArray items = new JsonArray();
+    long amount = 0;
+    for (JsonElement requested : array(params.get("items"))) {
+      String priceId = string(requested.getAsJsonObject(), "price");
+      JsonObject price = objects.get(priceId);
+      if (price == null) {
+        throw notFound("price", priceId);
+      }
+      JsonObject item = new JsonObject();
+      item.addProperty("id", id("si"));
+      item.addProperty("object", "subscription_item");
+      item.addProperty("subscription", subscriptionId);
+      item.addProperty("created", now);
+      item.addProperty("quantity", 1);
+      item.addProperty("current_period_start", now);
+      item.addProperty("current_period_end", now + PERIOD_SECONDS);
+      item.add("price", snapshot(price));
+      item.add("metadata", new JsonObject());
+      items.add(item);
+      amount += unitAmount(price);
+    }
+
+    JsonObject paymentMethod = paymentMethod(paymentMethodId == null ? id("pm") : paymentMethodId, customerId);
+    JsonObject paymentIntent = new JsonObject();
+    String paymentIntentId = id("pi");
+    paymentIntent.addProperty("id", paymentIntentId);
+    paymentIntent.addProperty("object", "payment_intent");
+    paymentIntent.addProperty("amount", amount);
+    paymentIntent.addProperty("currency", "usd");
+    paymentIntent.addProperty("client_secret", paymentIntentId + "_secret_" + id("").substring(1));
+    paymentIntent.addProperty("created", now);
+    paymentIntent.addProperty("customer", customerId);
+    paymentIntent.addProperty("livemode", false);
+    paymentIntent.addProperty("payment_method", paymentMethod.get("id").getAsString());
+    paymentIntent.addProperty("status", incomplete ? "requires_payment_method" : "succeeded");
+    store(paymentIntent);
+
+    JsonObject invoice = invoice(customerId, subscriptionId, "subscription_create", now, now + PERIOD_SECONDS);
+    JsonArray lines = invoice.getAsJsonObject("lines").getAsJsonArray("data");
+    for (JsonElement item : items) {
+      JsonObject price = item.getAsJsonObject().getAsJsonObject("price");
+      lines.add(line(subscriptionId, item.getAsJsonObject(), price, unitAmount(price), now, now + PERIOD_SECONDS, false));
+    }
+    total(invoice);
+    invoice.addProperty("status", incomplete ? "open" : "paid");
+    JsonObject payment = new JsonObject();
+    payment.addProperty("type", "payment_intent");
+    payment.addProperty("payment_intent", paymentIntentId);
+    JsonObject invoicePayment = new JsonObject();
+    invoicePayment.addProperty("id", id("inpay"));
+    invoicePayment.addProperty("object", "invoice_payment");
+    invoicePayment.addProperty("amount_requested", amount);
+    invoicePayment.addProperty("currency", "usd");
+    invoicePayment.addProperty("invoice", invoice.get("id").getAsString());
+    invoicePayment.addProperty("is_default", true);
+    invoicePayment.addProperty("status", incomplete ? "open" : "paid");
+    invoicePayment.add("payment", payment);
+    JsonArray payments = new JsonArray();
+    payments.add(invoicePayment);
+    invoice.add("payments", list(payments, false, "/v1/invoice_payments"));
+    store(invoice);
+
+    JsonObject subscription = new JsonObject();
+    subscription.addProperty("id", subscriptionId);
+    subscription.addProperty("object", "subscription");
+    subscription.addProperty("customer", customerId);
+    subscription.addProperty("created", now);
+    subscription.addProperty("start_date", now);
+    subscription.addProperty("billing_cycle_anchor", now);
+    subscription.addProperty("cancel_at_period_end", false);
+    subscription.add("canceled_at", JsonNull.INSTANCE);
+    subscription.add("ended_at", JsonNull.INSTANCE);
+    subscription.addProperty("collection_method", "charge_automatically");
+    subscription.addProperty("currency", "usd");
+    subscription.add("default_payment_method", paymentMethodId == null ? JsonNull.INSTANCE : paymentMethod.get("id"));
+    subscription.add("items", list(items, false, "/v1/subscription_items?subscription=" + subscriptionId));
+    subscription.addProperty("latest_invoice", invoice.get("id").getAsString());
+    subscription.addProperty("livemode", false);
+    subscription.add("metadata", new JsonObject());
+    subscription.add("pending_setup_intent", JsonNull.INSTANCE);
+    subscription.addProperty("status", incomplete ? "incomplete" : "active");
+    store(subscription);
+    subscriptionsByCustomer.computeIfAbsent(customerId, key -> ConcurrentHashMap.newKeySet()).add(subscriptionId);
+
+    event("customer.subscription.created", subscription);
+    event("invoice.finalized", invoice);
+    event("invoice.payment_succeeded", invoice);
+    event("invoice.paid", invoice);
+    return subscription;
+  }
+
+  // The invoice a subscription would get at its next renewal, with
+  // prorations for `changes` (each an item `id` and its new `price`).
+  private JsonObject preview(Request request, JsonObject params, JsonArray changes) {
+    String subscriptionId = string(params, "subscription");
+    JsonObject subscription = objects.get(subscriptionId);
+    if (subscription == null) {
+      throw notFound("subscription", subscriptionId);
+    }
+    subscription = snapshot(subscription);
+    Map<String, String> newPrices = new HashMap<>();
+    for (JsonElement change : changes) {
+      newPrices.put(string(change.getAsJsonObject(), "id"), string(change.getAsJsonObject(), "price"));
+    }
+
+    long now = now();
+    JsonObject invoice = null;
+    for (JsonElement element : subscription.getAsJsonObject("items").getAsJsonArray("data")) {
+      JsonObject item = element.getAsJsonObject();
+      JsonObject oldPrice = item.getAsJsonObject("price");
+      JsonObject newPrice = objects.get(newPrices.getOrDefault(item.get("id").getAsString(), oldPrice.get("id").getAsString()));
+      if (newPrice == null) {
+        newPrice = oldPrice;
+      }
+      long periodStart = item.get("current_period_start").getAsLong();
+      long periodEnd = item.get("current_period_end").getAsLong();
+      if (invoice == null) {
+        invoice = invoice(string(subscription, "customer"), subscriptionId, "upcoming", periodEnd, periodEnd + PERIOD_SECONDS);
+        invoice.addProperty("id", "upcoming_" + id("in"));
+        invoice.addProperty("next_payment_attempt", periodEnd);
+      }
+      JsonArray lines = invoice.getAsJsonObject("lines").getAsJsonArray("data");
+      if (!newPrice.get("id").equals(oldPrice.get("id"))) {
+        double unused = Math.max(0, periodEnd - now) / (double) Math.max(1, periodEnd - periodStart);
+        lines.add(line(subscriptionId, item, oldPrice, -Math.round(unitAmount(oldPrice) * unused), now, periodEnd, true));
+        lines.add(line(subscriptionId, item, newPrice, Math.round(unitAmount(newPrice) * unused), now, periodEnd, true));
+      }
+      lines.add(line(subscriptionId, item, newPrice, unitAmount(newPrice), periodEnd, periodEnd + PERIOD_SECONDS, false));
+    }
+    if (invoice == null) {
+      throw notFound("subscription item", subscriptionId);
+    }
+    total(invoice);
+    return invoice;
+  }
+
+  private JsonObject invoice(String customerId, String subscriptionId, String billingReason, long periodStart, long periodEnd) {
+    JsonObject invoice = new JsonObject();
+    invoice.addProperty("id", id("in"));
+    invoice.addProperty("object", "invoice");
+    invoice.addProperty("customer", customerId);
+    invoice.addProperty("billing_reason", billingReason);
+    invoice.addProperty("collection_method", "charge_automatically");
+    invoice.addProperty("created", now());
+    invoice.addProperty("currency", "usd");
+    invoice.addProperty("livemode", false);
+    invoice.add("metadata", new JsonObject());
+    invoice.addProperty("period_start", periodStart);
+    invoice.addProperty("period_end", periodEnd);
+    invoice.addProperty("status", "draft");
+    JsonObject subscriptionDetails = new JsonObject();
+    subscriptionDetails.addProperty("subscription", subscriptionId);
+    JsonObject parent = new JsonObject();
+    parent.addProperty("type", "subscription_details");
+    parent.add("subscription_details", subscriptionDetails);
+    invoice.add("parent", parent);
+    invoice.add("lines", list(new JsonArray(), false, "/v1/invoices/lines"));
+    return invoice;
+  }
+
+  private JsonObject line(
+    String subscriptionId,
+    JsonObject item,
+    JsonObject price,
+    long amount,
+    long start,
+    long end,
+    boolean proration
+  ) {
+    String productName = productName(price);
+    JsonObject line = new JsonObject();
+    line.addProperty("id", id("il"));
+    line.addProperty("object", "line_item");
+    line.addProperty("amount", amount);
+    line.addProperty("currency", "usd");
+    line.addProperty(
+      "description",
+      proration
+        ? (amount < 0 ? "Unused time on " : "Remaining time on ") + productName
+        : "1 x " + productName + String.format(" (at $%.2f / month)", unitAmount(price) / 100.0)
+    );
+    line.addProperty("livemode", false);
+    line.addProperty("quantity", 1);
+    JsonObject period = new JsonObject();
+    period.addProperty("start", start);
+    period.addProperty("end", end);
+    line.add("period", period);
+    JsonObject priceDetails = new JsonObject();
+    priceDetails.addProperty("price", price.get("id").getAsString());
+    priceDetails.add("product", price.get("product"));
+    JsonObject pricing = new JsonObject();
+    pricing.addProperty("type", "price_details");
+    pricing.add("price_details", priceDetails);
+    line.add("pricing", pricing);
+    JsonObject itemDetails = new JsonObject();
+    itemDetails.addProperty("subscription", subscriptionId);
+    itemDetails.addProperty("subscription_item", item.get("id").getAsString());
+    itemDetails.addProperty("proration", proration);
+    JsonObject parent = new JsonObject();
+    parent.addProperty("type", "subscription_item_details");
+    parent.add("subscription_item_details", itemDetails);
+    line.add("parent", parent);
+    return line;
+  }
+
+  private static void total(JsonObject invoice) {
+    long total = 0;
+    for (JsonElement line : invoice.getAsJsonObject("lines").getAsJsonArray("data")) {
+      total += line.getAsJsonObject().get("amount").getAsLong();
+    }
+    invoice.addProperty("subtotal", total);
+    invoice.addProperty("total", total);
+    invoice.addProperty("amount_due", Math.max(0, total));
+    invoice.addProperty("amount_paid", 0);
+    invoice.addProperty("amount_remaining", Math.max(0, total));
+  }
+
+  private JsonObject product(String name) {
+    JsonObject product = new JsonObject();
+    product.addProperty("id", id("prod"));
+    product.addProperty("object", "product");
+    product.addProperty("active", true);
+    product.addProperty("created", now());
+    product.addProperty("livemode", false);
+    product.addProperty("name", name);
+    product.add("metadata", new JsonObject());
+    store(product);
+    return product;
+  }
+
+  private JsonObject price(JsonObject product, String id, String lookupKey, long unitAmount) {
+    JsonObject recurring = new JsonObject();
+    recurring.addProperty("interval", "month");
+    recurring.addProperty("interval_count", 1);
+    recurring.addProperty("usage_type", "licensed");
+    JsonObject price = new JsonObject();
+    price.addProperty("id", id);
+    price.addProperty("object", "price");
+    price.addProperty("active", true);
+    price.addProperty("created", now());
+    price.addProperty("currency", "usd");
+    price.addProperty("livemode", false);
+    price.addProperty("lookup_key", lookupKey);
+    price.add("metadata", new JsonObject());
+    price.addProperty("product", product.get("id").getAsString());
+    price.add("recurring", recurring);
+    price.addProperty("type", "recurring");
+    price.addProperty("unit_amount", unitAmount);
+    store(price);
+    return price;
+  }
+
+  // Payment methods come from the browser in the real flow, so any ID is
+  // accepted and a card is made up for it the first time it is seen.
+  private JsonObject paymentMethod(String id, String customerId) {
+    return objects.computeIfAbsent(id, key -> {
+      JsonObject card = new JsonObject();
+      card.addProperty("brand", "visa");
+      card.addProperty("last4", "4242");
+      card.addProperty("exp_month", 12);
+      card.addProperty("exp_year", 2034);
+      card.addProperty("country", "US");
+      JsonObject paymentMethod = new JsonObject();
+      paymentMethod.addProperty("id", key);
+      paymentMethod.addProperty("object", "payment_method");
+      paymentMethod.addProperty("type", "card");
+      paymentMethod.add("card", card);
+      paymentMethod.addProperty("created", now());
+      paymentMethod.addProperty("customer", customerId);
+      paymentMethod.addProperty("livemode", false);
+      paymentMethod.add("metadata", new JsonObject());
+      return paymentMethod;
+    });
+  }
+
+  private void recordMeterEvent(JsonObject event) {
+    meterEvents.increment();
+    String identifier = string(event, "identifier");
+    if (identifier != null) {
+      if (meterEventIdentifiers.size() > MAX_METER_EVENT_IDENTIFIERS) {
+        meterEventIdentifiers.clear();
+      }
+      if (!meterEventIdentifiers.add(identifier)) {
+        duplicateMeterEvents.increment();
+        return;
+      }
+    }
+    JsonElement payload = event.get("payload");
+    if (payload != null && payload.isJsonObject()) {
+      try {
+        meterEventValue.add(Long.parseLong(string(payload.getAsJsonObject(), "value")));
+      } catch (NumberFormatException e) {
+        // Not a whole number; only counted.
+      }
+    }
+  }
+
+  private void event(String type, JsonObject object) {
+    JsonObject data = new JsonObject();
+    data.add("object", snapshot(object));
+    JsonObject event = new JsonObject();
+    event.addProperty("id", id("evt"));
+    event.addProperty("object", "event");
+    event.addProperty("api_version", Stripe.API_VERSION);
+    event.addProperty("created", now());
+    event.add("data", data);
+    event.addProperty("livemode", false);
+    event.addProperty("pending_webhooks", 1);
+    event.addProperty("type", type);
+    synchronized (events) {
+      events.addFirst(event);
+      while (events.size() > maxEvents) {
+        events.removeLast();
+      }
+    }
+  }
+
+  // Replaces the IDs at each `expand` path with the objects they refer to.
+  private JsonObject expand(JsonObject object, JsonObject params) {
+    for (String path : strings(params.get("expand"))) {
+      expand(object, path.split("\\."), 0);
+    }
+    return object;
+  }
+
+  private void expand(JsonElement element, String[] path, int index) {
+    if (index == path.length || element == null || !element.isJsonObject()) {
+      return;
+    }
+    JsonObject object = element.getAsJsonObject();
+    JsonElement value = object.get(path[index]);
+    if (value == null || value.isJsonNull()) {
+      return;
+    }
+    if (value.isJsonArray()) {
+      for (JsonElement item : value.getAsJsonArray()) {
+        expand(item, path, index + 1);
+      }
+      return;
+    }
+    if (value.isJsonPrimitive() && objects.containsKey(value.getAsString())) {
+      value = snapshot(objects.get(value.getAsString()));
+      object.add(path[index], value);
+    }
+    expand(value, path, index + 1);
+  }
+
+  private JsonObject find(Request request, String type) {
+    String id = request.params("id");
+    JsonObject object = objects.get(id);
+    if (object == null || !type.equals(string(object, "object"))) {
+      throw notFound(type, id);
+    }
+    return object;
+  }
+
+  private void store(JsonObject object) {
+    objects.put(object.get("id").getAsString(), object);
+  }
+
+  private static JsonObject params(Request request) {
+    JsonObject params = FormBody.parse(request.queryString());
+    for (Map.Entry<String, JsonElement> entry : FormBody.parse(request.body()).entrySet()) {
+      params.add(entry.getKey(), entry.getValue());
+    }
+    return params;
+  }
+
+  private static JsonObject snapshot(JsonObject object) {
+    synchronized (object) {
+      return object.deepCopy();
+    }
+  }
+
+  private static JsonObject list(JsonArray data, boolean hasMore, String url) {
+    JsonObject list = new JsonObject();
+    list.addProperty("object", "list");
+    list.add("data", data);
+    list.addProperty("has_more", hasMore);
+    list.addProperty("url", url);
+    return list;
+  }
+
+  private static void copy(JsonObject from, JsonObject to, String... fields) {
+    for (String field : fields) {
+      if (from.has(field)) {
+        to.add(field, from.get(field));
+      }
+    }
+  }
+
+  private static JsonArray array(JsonElement element) {
+    return element != null && element.isJsonArray() ? element.getAsJsonArray() : new JsonArray();
+  }
+
+  private static List<String> strings(JsonElement element) {
+    List<String> strings = new ArrayList<>();
+    for (JsonElement value : array(element)) {
+      strings.add(value.getAsString());
+    }
+    return strings;
+  }
+
+  private static String string(JsonObject object, String field) {
+    JsonElement value = object.get(field);
+    return value == null || value.isJsonNull() || !value.isJsonPrimitive() ? null : value.getAsString();
+  }
+
+  private static long unitAmount(JsonObject price) {
+    JsonElement unitAmount = price.get("unit_amount");
+    return unitAmount == null || unitAmount.isJsonNull() ? 0 : unitAmount.getAsLong();
+  }
+
+  private String productName(JsonObject price) {
+    JsonObject product = objects.get(string(price, "product"));
+    return product == null ? "Product" : string(product, "name");
+  }
+
+  private static spark.HaltException notFound(String type, String id) {
+    return halt(
+      404,
+      error("invalid_request_error", "resource_missing", "No such " + type + ": '" + id + "'").toString()
+    );
+  }
+
+  private static JsonObject error(String type, String code, String message) {
+    JsonObject error = new JsonObject();
+    error.addProperty("type", type);
+    if (code != null) {
+      error.addProperty("code", code);
+    }
+    error.addProperty("message", message);
+    JsonObject body = new JsonObject();
+    body.add("error", error);
+    return body;
+  }
+
+  private static String json(Response response, JsonObject body) {
+    response.type("application/json");
+    response.header("Request-Id", id("req"));
+    return body.toString();
+  }
+
+  private static String id(String prefix) {
+    return prefix + "_" + UUID.randomUUID().toString().replace("-", "").substring(0, 24);
+  }
+
+  private static long now() {
+    return System.currentTimeMillis() / 1000;
+  }
+
+  private static String setting(Dotenv dotenv, String name, String defaultValue) {
+    String value = dotenv.get(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+}
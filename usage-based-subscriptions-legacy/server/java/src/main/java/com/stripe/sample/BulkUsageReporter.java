@@ -0,0 +1,371 @@
+package com.stripe.sample;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.RateLimitException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.UsageRecord;
+import com.stripe.net.RequestOptions;
+import com.stripe.param.UsageRecordCreateOnSubscriptionItemParams;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Reports usage for many subscription items from a file, one line per usage
+// record:
+//
+//   subscription_item_id,quantity,timestamp
+//
+// Records are sent by `concurrency` worker threads, paced by a request rate
+// that is halved whenever Stripe answers 429 and slowly raised again while
+// requests succeed. Each record's idempotency key is derived from the whole
+// record, so sending the same record twice (a retry, or a re-run of the same
+// file) doesn't count it twice, while different records for the same item
+// never share a key.
+//
+// The line numbers of reported records are appended to a checkpoint file. A
+// run that is restarted with the same file and checkpoint skips them, so a
+// crashed run carries on where it stopped. Records that fail for good are
+// copied to a `.failed` file and left out of the checkpoint.
+public class BulkUsageReporter {
+  private static final int MAX_ATTEMPTS = 5;
+
+  private final int concurrency;
+  private final RateLimiter rateLimiter;
+
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder reported = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder rateLimited = new LongAdder();
+  private final Latencies latencies = new Latencies();
+
+  private BufferedWriter checkpoint;
+  private BufferedWriter failures;
+
+  static final class UsageLine {
+    final long lineNumber;
+    final String raw;
+    final String subscriptionItemId;
+    final long quantity;
+    final long timestamp;
+
+    UsageLine(long lineNumber, String raw) {
+      String[] fields = raw.split(",");
+      if (fields.length != 3) {
+        throw new IllegalArgumentException("expected item,quantity,timestamp");
+      }
+      this.lineNumber = lineNumber;
+      this.raw = raw;
+      this.subscriptionItemId = fields[0].trim();
+      this.quantity = Long.parseLong(fields[1].trim());
+      this.timestamp = Long.parseLong(fields[2].trim());
+    }
+  }
+
+  public BulkUsageReporter(int concurrency, double requestsPerSecond) {
+    this.concurrency = concurrency;
+    this.rateLimiter = new RateLimiter(requestsPerSecond);
+  }
+
+  // The same record always gives the same key. Stripe rejects a key reused
+  // with other parameters, so the quantity is part of it as well as the item
+  // and timestamp.
+  static String idempotencyKey(String subscriptionItemId, long quantity, long timestamp) {
+    return "usage-" + subscriptionItemId + "-" + timestamp + "-" + quantity;
+  }
+
+  // Returns the number of records that could not be reported.
+  public long run(Path input, Path checkpointFile) throws IOException, InterruptedException {
+    BitSet done = readCheckpoint(checkpointFile);
+    Path failuresFile = input.resolveSibling(input.getFileName() + ".failed");
+    checkpoint = Files.newBufferedWriter(
+      checkpointFile, StandardCharsets.UTF_8,
+      StandardOpenOption.CREATE, StandardOpenOption.APPEND
+    );
+    failures = Files.newBufferedWriter(
+      failuresFile, StandardCharsets.UTF_8,
+      StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+    );
+
+    ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+    // Keeps the reader at most a few records ahead of the workers.
+    Semaphore slots = new Semaphore(concurrency * 2);
+    // The checkpoint is flushed once a second rather than per record; after a
+    // crash, the few records reported since the last flush are sent again
+    // with the same idempotency keys.
+    ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+    flusher.scheduleAtFixedRate(this::flushQuietly, 1, 1, TimeUnit.SECONDS);
+
+    long started = System.nanoTime();
+    try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+      String line;
+      long lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        if (done.get((int) lineNumber)) {
+          skipped.increment();
+          continue;
+        }
+        UsageLine usage;
+        try {
+          usage = new UsageLine(lineNumber, line);
+        } catch (IllegalArgumentException e) {
+          System.out.println("Line " + lineNumber + " is not a usage record: " + e.getMessage());
+          failed.increment();
+          recordFailure(line);
+          continue;
+        }
+        slots.acquire();
+        workers.execute(() -> {
+          try {
+            report(usage);
+          } finally {
+            slots.release();
+          }
+        });
+      }
+    } finally {
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      flusher.shutdownNow();
+      synchronized (this) {
+        checkpoint.close();
+        failures.close();
+      }
+    }
+    printSummary(System.nanoTime() - started, failuresFile);
+    return failed.sum();
+  }
+
+  private void report(UsageLine usage) {
+    String idempotencyKey = idempotencyKey(usage.subscriptionItemId, usage.quantity, usage.timestamp);
+    UsageRecordCreateOnSubscriptionItemParams params = UsageRecordCreateOnSubscriptionItemParams
+      .builder()
+      .setQuantity(usage.quantity)
+      .setTimestamp(usage.timestamp)
+      .setAction(UsageRecordCreateOnSubscriptionItemParams.Action.SET)
+      .build();
+    RequestOptions options = RequestOptions
+      .builder()
+      .setIdempotencyKey(idempotencyKey)
+      .build();
+
+    String error = null;
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      try {
+        rateLimiter.acquire();
+        long callStarted = System.nanoTime();
+        UsageRecord.createOnSubscriptionItem(usage.subscriptionItemId, params, options);
+        latencies.add(System.nanoTime() - callStarted);
+        rateLimiter.onSuccess();
+        reported.increment();
+        markDone(usage.lineNumber);
+        return;
+      } catch (RateLimitException e) {
+        error = e.getMessage();
+        rateLimited.increment();
+        rateLimiter.onRateLimited();
+      } catch (StripeException e) {
+        error = e.getMessage();
+        if (!isRetryable(e)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        error = "interrupted";
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (attempt == MAX_ATTEMPTS) {
+        break;
+      }
+      retries.increment();
+      if (!sleepBeforeRetry(attempt)) {
+        break;
+      }
+    }
+    System.out.println(
+      "Usage report failed for item ID " +
+      usage.subscriptionItemId +
+      " with idempotency key " +
+      idempotencyKey +
+      ": " +
+      error
+    );
+    failed.increment();
+    recordFailure(usage.raw);
+  }
+
+  // Whether the same request could succeed later. Anything else, such as an
+  // invalid request, fails the same way every time.
+  static boolean isRetryable(StripeException e) {
+    return e instanceof ApiConnectionException ||
+      e instanceof RateLimitException ||
+      (e.getStatusCode() != null && e.getStatusCode() >= 500);
+  }
+
+  private static boolean sleepBeforeRetry(int attempt) {
+    try {
+      long backoff = 250L << attempt;
+      Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private synchronized void markDone(long lineNumber) {
+    try {
+      checkpoint.write(Long.toString(lineNumber));
+      checkpoint.newLine();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private synchronized void recordFailure(String line) {
+    try {
+      failures.write(line);
+      failures.newLine();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private synchronized void flushQuietly() {
+    try {
+      checkpoint.flush();
+      failures.flush();
+    } catch (IOException e) {
+      System.out.println("Could not write checkpoint: " + e.getMessage());
+    }
+  }
+
+  private static BitSet readCheckpoint(Path checkpointFile) throws IOException {
+    BitSet done = new BitSet();
+    if (!Files.exists(checkpointFile)) {
+      return done;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        // The last line may be cut short if the previous run crashed mid-write.
+        try {
+          done.set(Integer.parseInt(line.trim()));
+        } catch (NumberFormatException e) {
+          // Ignore it; that record is sent again.
+        }
+      }
+    }
+    return done;
+  }
+
+  private void printSummary(long elapsedNanos, Path failuresFile) {
+    double seconds = elapsedNanos / 1e9;
+    long sent = reported.sum();
+    System.out.println("Reported:      " + sent);
+    System.out.println("Failed:        " + failed.sum() + (failed.sum() > 0 ? " (see " + failuresFile + ")" : ""));
+    System.out.println("Skipped:       " + skipped.sum() + " (already in checkpoint)");
+    System.out.println("Retries:       " + retries.sum() + " (" + rateLimited.sum() + " rate limited)");
+    System.out.println(String.format("Elapsed:       %.1f s", seconds));
+    System.out.println(String.format("Throughput:    %.1f records/s", seconds == 0 ? 0.0 : sent / seconds));
+    System.out.println(String.format("Final rate:    %.1f requests/s", rateLimiter.rate()));
+    System.out.println(
+      String.format(
+        "Latency (ms):  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f",
+        latencies.percentile(50) / 1e6,
+        latencies.percentile(90) / 1e6,
+        latencies.percentile(99) / 1e6,
+        latencies.percentile(100) / 1e6
+      )
+    );
+  }
+
+  // Spaces requests evenly at the current rate. A 429 halves the rate (at
+  // most once a second, since the requests already in flight will hit the
+  // same limit) and successful requests raise it back to the configured rate
+  // over about ten seconds.
+  static final class RateLimiter {
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double maxRate;
+    private double rate;
+    private long nextSlot = System.nanoTime();
+    private long lastDecrease = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+
+    RateLimiter(double maxRate) {
+      this.maxRate = maxRate;
+      this.rate = maxRate;
+    }
+
+    void acquire() throws InterruptedException {
+      long wait;
+      synchronized (this) {
+        long now = System.nanoTime();
+        long slot = Math.max(nextSlot, now);
+        nextSlot = slot + (long) (1e9 / rate);
+        wait = slot - now;
+      }
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+
+    synchronized void onSuccess() {
+      rate = Math.min(maxRate, rate + maxRate / (10 * rate));
+    }
+
+    synchronized void onRateLimited() {
+      long now = System.nanoTime();
+      if (now - lastDecrease >= DECREASE_INTERVAL_NANOS) {
+        rate = Math.max(1.0, rate / 2);
+        lastDecrease = now;
+      }
+    }
+
+    synchronized double rate() {
+      return rate;
+    }
+  }
+
+  // Every call's latency, kept so the summary can show exact percentiles.
+  static final class Latencies {
+    private long[] values = new long[1024];
+    private int size;
+
+    synchronized void add(long nanos) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = nanos;
+    }
+
+    synchronized long percentile(double percentile) {
+      if (size == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(values, size);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * size) - 1;
+      return sorted[Math.max(0, Math.min(index, size - 1))];
+    }
+  }
+}
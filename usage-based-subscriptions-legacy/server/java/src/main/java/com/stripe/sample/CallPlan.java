@@ -0,0 +1,220 @@
+package com.stripe.sample;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.StripeException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// The Stripe calls a route makes, as a graph of steps that each start as soon
+// as the steps they depend on are done, rather than one after another.
+//
+// A route starts a Run, adds its steps with the steps each one needs, waits
+// for them with `finish()` and then takes each step's result with `get()`.
+// A step whose dependency failed is never sent and fails with the same
+// exception, so `get()` on any step reports the first thing that went wrong
+// on its path.
+//
+// Each step's time is recorded per plan on `/metrics` and `/stats`, and a
+// finished Run describes its own steps as a Server-Timing header, so the
+// time of one slow request can be read straight off its response.
+public class CallPlan {
+  @FunctionalInterface
+  public interface Call<T> {
+    T call() throws StripeException;
+  }
+
+  public final class Step<T> {
+    private final String name;
+    private final CompletableFuture<T> future;
+    private volatile long nanos = -1;
+
+    private Step(String name, CompletableFuture<T> future) {
+      this.name = name;
+      this.future = future;
+    }
+
+    // Waits for the step if it hasn't finished yet.
+    public T get() throws StripeException {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ApiConnectionException("Interrupted while waiting for " + name, e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof StripeException) {
+          throw (StripeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw (RuntimeException) cause;
+      }
+    }
+  }
+
+  public final class Run {
+    private final long started = System.nanoTime();
+    private final List<Step<?>> steps = new ArrayList<>();
+    private long nanos = -1;
+
+    private Run() {
+      runs.increment();
+    }
+
+    // Adds a step that is sent once all of `after` have succeeded.
+    public <T> Step<T> step(String name, Call<T> call, Step<?>... after) {
+      Histogram latency = stepLatency(name);
+      CompletableFuture<?>[] dependencies = new CompletableFuture<?>[after.length];
+      for (int i = 0; i < after.length; i++) {
+        dependencies[i] = after[i].future;
+      }
+      CompletableFuture<Void> ready = dependencies.length == 0
+        ? CompletableFuture.completedFuture(null)
+        : CompletableFuture.allOf(dependencies);
+
+      CompletableFuture<T> future = new CompletableFuture<>();
+      Step<T> step = new Step<>(name, future);
+      ready.whenComplete((ignored, failure) -> {
+        if (failure != null) {
+          skippedSteps.increment();
+          future.completeExceptionally(failure);
+          return;
+        }
+        executor.execute(() -> {
+          long stepStarted = System.nanoTime();
+          T result = null;
+          Throwable error = null;
+          try {
+            result = call.call();
+          } catch (StripeException | RuntimeException | Error e) {
+            error = e;
+          }
+          // Timed before completing, so the time is there once `finish()`
+          // returns.
+          step.nanos = System.nanoTime() - stepStarted;
+          latency.record(step.nanos);
+          if (error == null) {
+            future.complete(result);
+          } else {
+            future.completeExceptionally(error);
+          }
+        });
+      });
+      steps.add(step);
+      return step;
+    }
+
+    // Waits until every step has succeeded, failed or been skipped.
+    public void finish() {
+      CompletableFuture<?>[] futures = new CompletableFuture<?>[steps.size()];
+      for (int i = 0; i < futures.length; i++) {
+        futures[i] = steps.get(i).future;
+      }
+      try {
+        CompletableFuture.allOf(futures).join();
+      } catch (CompletionException e) {
+        failedRuns.increment();
+      }
+      nanos = System.nanoTime() - started;
+    }
+
+    // `attach_payment_method;dur=41.2, ..., total;dur=97.5`, for the steps
+    // that were sent, in the order they were added.
+    public String serverTiming() {
+      StringBuilder timing = new StringBuilder();
+      for (Step<?> step : steps) {
+        if (step.nanos >= 0) {
+          appendTiming(timing, step.name, step.nanos);
+        }
+      }
+      if (nanos >= 0) {
+        appendTiming(timing, "total", nanos);
+      }
+      return timing.toString();
+    }
+  }
+
+  private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+    // Steps are sent on behalf of a waiting route, so they keep its priority.
+    Thread thread = new Thread(
+      StripeCallScheduler.withPriority(StripeCallScheduler.Priority.INTERACTIVE, r),
+      "call-plan"
+    );
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final String name;
+  private final Metrics metrics;
+  private final Map<String, Histogram> stepLatencies = new ConcurrentHashMap<>();
+
+  private final LongAdder runs = new LongAdder();
+  private final LongAdder failedRuns = new LongAdder();
+  private final LongAdder skippedSteps = new LongAdder();
+
+  public CallPlan(String name, Metrics metrics) {
+    this.name = name;
+    this.metrics = metrics;
+  }
+
+  public Run start() {
+    return new Run();
+  }
+
+  private Histogram stepLatency(String step) {
+    Histogram latency = stepLatencies.get(step);
+    if (latency != null) {
+      return latency;
+    }
+    return stepLatencies.computeIfAbsent(step, key -> {
+      Histogram histogram = new Histogram();
+      metrics.register(
+        "stripe_call_plan_step_duration_seconds",
+        "Time each step of a route's Stripe call plan took, by plan and step.",
+        "plan=\"" + name + "\",step=\"" + key + "\"",
+        histogram
+      );
+      return histogram;
+    });
+  }
+
+  private static void appendTiming(StringBuilder timing, String step, long nanos) {
+    if (timing.length() > 0) {
+      timing.append(", ");
+    }
+    timing
+      .append(step)
+      .append(";dur=")
+      .append(String.format(Locale.ROOT, "%.1f", nanos / 1e6));
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("runs", runs.sum());
+    stats.put("failedRuns", failedRuns.sum());
+    stats.put("skippedSteps", skippedSteps.sum());
+    Map<String, Object> steps = new HashMap<>();
+    for (Map.Entry<String, Histogram> entry : stepLatencies.entrySet()) {
+      Histogram latency = entry.getValue();
+      Map<String, Object> step = new HashMap<>();
+      step.put("count", latency.count());
+      step.put("millisP50", latency.percentile(50) / 1e6);
+      step.put("millisP99", latency.percentile(99) / 1e6);
+      steps.put(entry.getKey(), step);
+    }
+    stats.put("steps", steps);
+    return stats;
+  }
+}
@@ -0,0 +1,107 @@
+package com.stripe.sample;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+// Stripe delivers webhook events at least once, so the same event can reach
+// `/webhook` more than once. This remembers the IDs of events that were
+// already handled so redeliveries can be acknowledged without running the
+// handler again.
+//
+// Recent IDs are kept in a small in-memory LRU that expires entries after
+// `windowMillis`; everything is also written to an EventIdIndex on disk so
+// duplicates are still recognised after a restart. An event being handled is
+// claimed first, so a redelivery that arrives in the meantime is turned away
+// too instead of running the handler a second time alongside it.
+public class EventDeduplicator {
+  private final long windowMillis;
+  private final LinkedHashMap<String, Long> recent;
+  // Events being handled right now; guarded by `recent`.
+  private final Set<String> claimed = new HashSet<>();
+  private final EventIdIndex index;
+
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder recentHits = new LongAdder();
+  private final LongAdder indexHits = new LongAdder();
+  private final LongAdder claimedHits = new LongAdder();
+
+  public EventDeduplicator(Path dir, int recentCapacity, long windowMillis, int indexSlots)
+    throws IOException {
+    this.windowMillis = windowMillis;
+    this.recent = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > recentCapacity;
+      }
+    };
+    this.index = new EventIdIndex(dir, indexSlots);
+  }
+
+  // Reserves the event for the caller and returns true, or returns false if
+  // it was already handled or is being handled. A caller that gets true must
+  // call `markProcessed` once it is handled, and `release` either way.
+  public boolean tryClaim(String eventId) {
+    long now = System.currentTimeMillis();
+    synchronized (recent) {
+      if (claimed.contains(eventId)) {
+        claimedHits.increment();
+        duplicates.increment();
+        return false;
+      }
+      Long seenAt = recent.get(eventId);
+      if (seenAt != null) {
+        if (now - seenAt <= windowMillis) {
+          recentHits.increment();
+          duplicates.increment();
+          return false;
+        }
+        recent.remove(eventId);
+      }
+      claimed.add(eventId);
+    }
+    // Holding the claim, so nobody else can be checking or adding this ID.
+    if (index.contains(eventId)) {
+      release(eventId);
+      indexHits.increment();
+      duplicates.increment();
+      return false;
+    }
+    return true;
+  }
+
+  // Call once the event has been handled (or durably queued), so that a
+  // failed attempt is still retried when Stripe redelivers it.
+  public void markProcessed(String eventId) {
+    synchronized (recent) {
+      recent.put(eventId, System.currentTimeMillis());
+    }
+    index.add(eventId);
+  }
+
+  // Gives up the claim from `tryClaim`. If the event wasn't marked as
+  // processed, a redelivery will run the handler again.
+  public void release(String eventId) {
+    synchronized (recent) {
+      claimed.remove(eventId);
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("duplicates", duplicates.sum());
+    stats.put("recentHits", recentHits.sum());
+    stats.put("indexHits", indexHits.sum());
+    stats.put("claimedHits", claimedHits.sum());
+    synchronized (recent) {
+      stats.put("recentSize", recent.size());
+      stats.put("claimed", claimed.size());
+    }
+    return stats;
+  }
+}
@@ -0,0 +1,124 @@
+package com.stripe.sample;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A latency histogram in the style of HdrHistogram: each power of two is
+// split into SUB_BUCKETS equal buckets, so any recorded value is known to
+// within 1/SUB_BUCKETS (about 6%) whether it is 20 microseconds or 20
+// seconds, in a fixed 608 counters.
+//
+// Recording is an index computation and two atomic adds, with no locking or
+// allocation, so it is cheap enough to do on every request.
+public final class Histogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values are nanoseconds; anything over about 18 minutes lands in the top
+  // bucket.
+  private static final int MAX_EXPONENT = 40;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+
+  public void record(long nanos) {
+    long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+    counts.incrementAndGet(index(value));
+    sum.add(value);
+  }
+
+  public long count() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public long sumNanos() {
+    return sum.sum();
+  }
+
+  // The highest value that could have been recorded in the bucket the given
+  // percentile falls into, so this never understates latency.
+  public long percentile(double percentile) {
+    long[] snapshot = snapshot();
+    long total = 0;
+    for (long count : snapshot) {
+      total += count;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return highestValue(i);
+      }
+    }
+    return MAX_VALUE;
+  }
+
+  // Appends the histogram in Prometheus text format, as cumulative counts at
+  // each of `bounds` (in seconds). A bucket counts towards a bound only if
+  // every value it could hold is within the bound.
+  void appendPrometheus(StringBuilder out, String name, String labels, double[] bounds) {
+    long[] snapshot = snapshot();
+    String prefix = labels.isEmpty() ? "" : labels + ",";
+    long cumulative = 0;
+    int bucket = 0;
+    for (double bound : bounds) {
+      long boundNanos = (long) (bound * TimeUnit.SECONDS.toNanos(1));
+      while (bucket < BUCKETS && highestValue(bucket) <= boundNanos) {
+        cumulative += snapshot[bucket++];
+      }
+      out.append(name).append("_bucket{").append(prefix).append("le=\"").append(bound).append("\"} ")
+        .append(cumulative).append('\n');
+    }
+    long total = cumulative;
+    while (bucket < BUCKETS) {
+      total += snapshot[bucket++];
+    }
+    out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(total).append('\n');
+    out.append(name).append("_sum{").append(labels).append("} ")
+      .append(sum.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+    out.append(name).append("_count{").append(labels).append("} ").append(total).append('\n');
+  }
+
+  private long[] snapshot() {
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+    }
+    return snapshot;
+  }
+
+  // Values below SUB_BUCKETS get a bucket each. Above that, the position of
+  // the highest set bit picks the power of two and the next SUB_BUCKET_BITS
+  // bits pick the bucket within it.
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long lowestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  static long highestValue(int index) {
+    return index + 1 < BUCKETS ? lowestValue(index + 1) - 1 : MAX_VALUE;
+  }
+}
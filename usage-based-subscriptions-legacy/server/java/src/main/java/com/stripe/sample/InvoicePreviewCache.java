@@ -0,0 +1,185 @@
+package com.stripe.sample;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Event;
+import com.stripe.model.Invoice;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Invoice previews are among the slowest Stripe calls, and the pricing page
+// asks for one every time a plan option is toggled. This keeps the response
+// for each (customer, subscription, target price) so toggling back and forth
+// only calls Stripe once.
+//
+// The prorations in a preview depend on when it was made, so entries are also
+// keyed by a time bucket of `bucketMillis`: a cached preview is at most that
+// old. Anything that changes what a preview would show drops the affected
+// entries: an update to the subscription, any invoice event for the customer,
+// and any price change. Requests for a preview that is still being loaded
+// wait for it instead of making their own call.
+public class InvoicePreviewCache {
+  public interface Loader {
+    String load() throws StripeException;
+  }
+
+  static final class Preview {
+    final String customerId;
+    final String subscriptionId;
+    final CompletableFuture<String> response = new CompletableFuture<>();
+
+    Preview(String customerId, String subscriptionId) {
+      this.customerId = customerId;
+      this.subscriptionId = subscriptionId;
+    }
+  }
+
+  private final long bucketMillis;
+  private final LinkedHashMap<String, Preview> entries;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder joinedInFlight = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  public InvoicePreviewCache(long bucketMillis, int capacity) {
+    this.bucketMillis = bucketMillis;
+    this.entries = new LinkedHashMap<String, Preview>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Preview> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  public String get(String customerId, String subscriptionId, String priceId, Loader loader)
+    throws StripeException {
+    String key = customerId + "|" + subscriptionId + "|" + priceId + "|" +
+      System.currentTimeMillis() / bucketMillis;
+    Preview preview;
+    synchronized (entries) {
+      preview = entries.get(key);
+      if (preview == null) {
+        preview = new Preview(customerId, subscriptionId);
+        entries.put(key, preview);
+      } else {
+        if (preview.response.isDone()) {
+          hits.increment();
+        } else {
+          joinedInFlight.increment();
+        }
+        return await(preview);
+      }
+    }
+
+    misses.increment();
+    try {
+      String response = loader.load();
+      preview.response.complete(response);
+      return response;
+    } catch (StripeException | RuntimeException | Error e) {
+      synchronized (entries) {
+        entries.remove(key, preview);
+      }
+      preview.response.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  // Called for every verified webhook event, before its handlers run.
+  public void applyEvent(Event event) {
+    String type = event.getType();
+    if (type.startsWith("price.")) {
+      clear();
+      return;
+    }
+    StripeObject object = event.getDataObjectDeserializer().getObject().orElse(null);
+    if (type.startsWith("customer.subscription.") && object instanceof Subscription) {
+      invalidateSubscription(((Subscription) object).getId());
+    } else if (type.startsWith("invoice.") && object instanceof Invoice) {
+      invalidateCustomer(((Invoice) object).getCustomer());
+    }
+  }
+
+  // For our own updates and cancellations, which shouldn't wait for the
+  // webhook to stop serving the old previews.
+  public void invalidateSubscription(String subscriptionId) {
+    synchronized (entries) {
+      removeIf(null, subscriptionId);
+    }
+  }
+
+  public void invalidateCustomer(String customerId) {
+    synchronized (entries) {
+      removeIf(customerId, null);
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      invalidations.add(entries.size());
+      entries.clear();
+    }
+  }
+
+  // A preview still loading is dropped too; whoever is waiting for it gets
+  // it, but the next request loads a fresh one.
+  private void removeIf(String customerId, String subscriptionId) {
+    Iterator<Preview> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Preview preview = it.next();
+      if (
+        (customerId != null && customerId.equals(preview.customerId)) ||
+        (subscriptionId != null && subscriptionId.equals(preview.subscriptionId))
+      ) {
+        it.remove();
+        invalidations.increment();
+      }
+    }
+  }
+
+  private static String await(Preview preview) throws StripeException {
+    try {
+      return preview.response.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ApiConnectionException("Interrupted while waiting for an invoice preview", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof StripeException) {
+        throw (StripeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (RuntimeException) cause;
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long hitCount = hits.sum();
+    long joined = joinedInFlight.sum();
+    long missCount = misses.sum();
+    stats.put("hits", hitCount);
+    stats.put("joinedInFlight", joined);
+    stats.put("misses", missCount);
+    stats.put("invalidations", invalidations.sum());
+    stats.put(
+      "hitRate",
+      hitCount + joined + missCount == 0 ? 0.0 : (double) (hitCount + joined) / (hitCount + joined + missCount)
+    );
+    synchronized (entries) {
+      stats.put("size", entries.size());
+    }
+    return stats;
+  }
+}
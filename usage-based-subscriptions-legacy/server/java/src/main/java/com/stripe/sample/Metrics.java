@@ -0,0 +1,495 @@
+package com.stripe.sample;
+
+import static spark.Spark.afterAfter;
+import static spark.Spark.before;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import spark.RouteImpl;
+import spark.Spark;
+import spark.route.HttpMethod;
+import spark.route.Routes;
+import spark.routematch.RouteMatch;
+
+// Latency histograms and outcome counts for every route this server handles
+// and for every call it makes to Stripe, served in Prometheus text format on
+// `/metrics`.
+//
+// Routes are timed by a `before` and an `afterAfter` filter and labelled with
+// their method, the path they were defined with (`/bulk-provision/:job`,
+// not each job's own path) and status class. Stripe calls are recorded by
+// PooledStripeHttpClient and labelled with the operation, named the way
+// stripe-java names it (`Subscription.retrieve`, `Invoice.createPreview`,
+// ...), and the outcome: `success`, `card_error`, `rate_limited`,
+// `invalid_request`, `api_error` or `connection_error`. Each retry stripe-java
+// makes is recorded as its own call.
+//
+// Other parts of the server can add their own histograms with register().
+//
+// Once a route or operation has been seen, recording it allocates nothing:
+// the lookups are by strings the request already holds, and the counters are
+// preallocated. See MetricsBenchmark.
+public class Metrics {
+  // Prometheus histogram bounds, in seconds.
+  private static final double[] BOUNDS = {
+    0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+  };
+  // Paths a scanner makes up shouldn't each get their own series.
+  private static final int MAX_ROUTES = 100;
+  private static final int MAX_OPERATIONS = 200;
+  private static final String UNMATCHED = "unmatched";
+  private static final String OTHER = "other";
+
+  // Path segments that name an action rather than an ID when they directly
+  // follow the resource, as in /v1/invoices/create_preview.
+  private static final String[] ACTIONS = {"create_preview", "upcoming", "search"};
+  // The first path segments that group resources, as in /v1/billing/meters.
+  private static final String[] NAMESPACES = {
+    "apps", "billing", "billing_portal", "checkout", "climate", "entitlements",
+    "financial_connections", "forwarding", "identity", "issuing", "radar",
+    "reporting", "sigma", "tax", "terminal", "test_helpers", "treasury"
+  };
+
+  public enum Outcome {
+    SUCCESS("success"),
+    CARD_ERROR("card_error"),
+    RATE_LIMITED("rate_limited"),
+    INVALID_REQUEST("invalid_request"),
+    API_ERROR("api_error"),
+    CONNECTION_ERROR("connection_error");
+
+    private static final Outcome[] VALUES = values();
+
+    final String label;
+
+    Outcome(String label) {
+      this.label = label;
+    }
+
+    static Outcome of(int status) {
+      if (status < 400) {
+        return SUCCESS;
+      } else if (status == 402) {
+        return CARD_ERROR;
+      } else if (status == 429) {
+        return RATE_LIMITED;
+      } else if (status < 500) {
+        return INVALID_REQUEST;
+      }
+      return API_ERROR;
+    }
+  }
+
+  static final class Route {
+    final String method;
+    final String path;
+    final Histogram latency = new Histogram();
+    // Indexed by status / 100; 0 holds anything outside 100-599.
+    final AtomicLongArray statuses = new AtomicLongArray(6);
+
+    Route(String method, String path) {
+      this.method = method;
+      this.path = path;
+    }
+
+    void record(int status, long nanos) {
+      latency.record(nanos);
+      statuses.incrementAndGet(status >= 100 && status < 600 ? status / 100 : 0);
+    }
+  }
+
+  public static final class Operation {
+    final long key;
+    final String name;
+    final Histogram latency = new Histogram();
+    final AtomicLongArray outcomes = new AtomicLongArray(Outcome.VALUES.length);
+
+    Operation(long key, String name) {
+      this.key = key;
+      this.name = name;
+    }
+
+    public void record(int status, long nanos) {
+      record(Outcome.of(status), nanos);
+    }
+
+    public void record(Outcome outcome, long nanos) {
+      latency.record(nanos);
+      outcomes.incrementAndGet(outcome.ordinal());
+    }
+  }
+
+  static final class Registered {
+    final String name;
+    final String help;
+    final String labels;
+    final Histogram histogram;
+
+    Registered(String name, String help, String labels, Histogram histogram) {
+      this.name = name;
+      this.help = help;
+      this.labels = labels;
+      this.histogram = histogram;
+    }
+  }
+
+  // Spark's routes as they were when first needed. A filter's matchedPath()
+  // is the filter's own, so the afterAfter filter finds the route again here.
+  private static final class RouteTable {
+    final int size;
+    // Paths without parameters, by method, which a request's path can be
+    // looked up in as it is.
+    final Map<String, Set<String>> paths = new HashMap<>();
+    final Routes patterns = Routes.create();
+
+    RouteTable(List<RouteMatch> defined) {
+      size = defined.size();
+      for (RouteMatch route : defined) {
+        if (!(route.getTarget() instanceof RouteImpl)) {
+          continue;
+        }
+        String path = route.getMatchUri();
+        if (path.indexOf(':') < 0 && path.indexOf('*') < 0) {
+          paths
+            .computeIfAbsent(route.getHttpMethod().name().toUpperCase(Locale.ROOT), key -> new HashSet<>())
+            .add(path);
+        }
+        patterns.add(
+          route.getHttpMethod(),
+          RouteImpl.create(path, route.getAcceptType(), (request, response) -> null)
+        );
+      }
+    }
+
+    String find(String method, String path, String acceptType) {
+      Set<String> exact = paths.get(method);
+      if (exact != null && exact.contains(path)) {
+        return path;
+      }
+      RouteMatch match = patterns.find(HttpMethod.get(method.toLowerCase(Locale.ROOT)), path, acceptType);
+      return match == null ? null : match.getMatchUri();
+    }
+  }
+
+  private final Map<String, Map<String, Route>> routes = new ConcurrentHashMap<>();
+  private final Route otherRoute = new Route(OTHER, OTHER);
+  private int routeCount;
+  private volatile RouteTable routeTable;
+
+  private volatile Operation[] operations = new Operation[0];
+  private final Operation otherOperation = new Operation(0, OTHER);
+
+  private final List<Registered> registered = new CopyOnWriteArrayList<>();
+
+  // The time each request started, kept per thread so that timing a request
+  // doesn't box a Long into a request attribute.
+  private final ThreadLocal<long[]> started = ThreadLocal.withInitial(() -> new long[1]);
+
+  // Must be called before the first route is defined, as for RouteThreads.
+  public void install() {
+    before((request, response) -> started.get()[0] = System.nanoTime());
+    afterAfter((request, response) -> {
+      long nanos = System.nanoTime() - started.get()[0];
+      int status = response.status();
+      String method = request.requestMethod();
+      route(method, routePath(method, request.pathInfo(), request.headers("Accept"))).record(status, nanos);
+    });
+  }
+
+  // Adds `histogram` to `/metrics` as the series `name{labels}`. Series of
+  // the same name share `help`.
+  public void register(String name, String help, String labels, Histogram histogram) {
+    registered.add(new Registered(name, help, labels, histogram));
+  }
+
+  // The path of the route Spark sent the request to. Requests for paths with
+  // no route, which Spark answers with a 404, share one series.
+  String routePath(String method, String path, String acceptType) {
+    RouteTable table = routeTable;
+    if (table == null) {
+      table = loadRouteTable(null);
+    }
+    String found = table.find(method, path, acceptType);
+    if (found == null) {
+      // A request that came in while the routes were still being defined
+      // may have seen only some of them.
+      table = loadRouteTable(table);
+      found = table.find(method, path, acceptType);
+    }
+    return found == null ? UNMATCHED : found;
+  }
+
+  private synchronized RouteTable loadRouteTable(RouteTable stale) {
+    List<RouteMatch> defined = Spark.routes();
+    if (routeTable == null || (routeTable == stale && defined.size() != stale.size)) {
+      routeTable = new RouteTable(defined);
+    }
+    return routeTable;
+  }
+
+  Route route(String method, String path) {
+    Map<String, Route> byPath = routes.get(method);
+    Route route = byPath == null ? null : byPath.get(path);
+    if (route != null) {
+      return route;
+    }
+    return addRoute(method, path);
+  }
+
+  private synchronized Route addRoute(String method, String path) {
+    Map<String, Route> byPath = routes.computeIfAbsent(method, key -> new ConcurrentHashMap<>());
+    Route route = byPath.get(path);
+    if (route == null) {
+      if (routeCount >= MAX_ROUTES) {
+        return otherRoute;
+      }
+      route = new Route(method, path);
+      byPath.put(path, route);
+      routeCount++;
+    }
+    return route;
+  }
+
+  // The operation for a Stripe API request. The path's IDs are skipped
+  // rather than copied out, so finding an operation seen before is just a
+  // hash of the path and a scan of a short array.
+  public Operation operation(String method, String path) {
+    long key = walk(method, path, null);
+    for (Operation operation : operations) {
+      if (operation.key == key) {
+        return operation;
+      }
+    }
+    return addOperation(key, method, path);
+  }
+
+  private synchronized Operation addOperation(long key, String method, String path) {
+    Operation[] current = operations;
+    for (Operation operation : current) {
+      if (operation.key == key) {
+        return operation;
+      }
+    }
+    if (current.length >= MAX_OPERATIONS) {
+      return otherOperation;
+    }
+    StringBuilder name = new StringBuilder();
+    walk(method, path, name);
+    Operation[] next = new Operation[current.length + 1];
+    System.arraycopy(current, 0, next, 0, current.length);
+    next[current.length] = new Operation(key, name.toString());
+    operations = next;
+    return next[current.length];
+  }
+
+  // Hashes the parts of `method path` that identify the operation, and, if
+  // `name` is given, writes its name there:
+  //
+  //   GET    /v1/subscriptions/sub_123           Subscription.retrieve
+  //   DELETE /v1/subscriptions/sub_123           Subscription.cancel
+  //   POST   /v1/invoices/create_preview         Invoice.createPreview
+  //   POST   /v1/payment_methods/pm_123/attach   PaymentMethod.attach
+  //   POST   /v2/billing/meter_events            v2.billing.MeterEvent.create
+  static long walk(String method, String path, StringBuilder name) {
+    long hash = hash(0xcbf29ce484222325L, method, 0, method.length());
+    int start = path.startsWith("/") ? 1 : 0;
+    int segment = 0;
+    boolean expectId = false;
+    boolean hadId = false;
+    boolean hadAction = false;
+    boolean subscriptions = false;
+    while (start <= path.length()) {
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = path.length();
+      }
+      int length = end - start;
+      if (length > 0) {
+        if (segment == 0) {
+          // The API version; only v2 is named.
+          hash = hash(hash, path, start, end);
+          if (name != null && length == 2 && path.regionMatches(start, "v2", 0, 2)) {
+            name.append("v2.");
+          }
+        } else if (segment == 1 && isOneOf(path, start, length, NAMESPACES)) {
+          hash = hash(hash, path, start, end);
+          if (name != null) {
+            name.append(path, start, end).append('.');
+          }
+          segment--;
+        } else if (segment == 1) {
+          hash = hash(hash, path, start, end);
+          subscriptions = length == 13 && path.regionMatches(start, "subscriptions", 0, 13);
+          if (name != null) {
+            appendCamel(name, path, start, singular(path, start, end), true);
+          }
+          expectId = true;
+        } else if (expectId && !isOneOf(path, start, length, ACTIONS)) {
+          hash = hash * 31 + '*';
+          hadId = true;
+          expectId = false;
+        } else {
+          hash = hash(hash, path, start, end);
+          if (name != null) {
+            name.append(hadAction ? "" : ".");
+            appendCamel(name, path, start, end, hadAction);
+          }
+          expectId = !isOneOf(path, start, length, ACTIONS);
+          hadAction = true;
+        }
+        segment++;
+      }
+      start = end + 1;
+    }
+    if (name != null && !hadAction) {
+      name.append('.').append(verb(method, hadId, subscriptions));
+    }
+    return hash;
+  }
+
+  private static String verb(String method, boolean hadId, boolean subscriptions) {
+    switch (method) {
+      case "GET":
+        return hadId ? "retrieve" : "list";
+      case "DELETE":
+        // Deleting a subscription cancels it.
+        return subscriptions ? "cancel" : "delete";
+      default:
+        return hadId ? "update" : "create";
+    }
+  }
+
+  // Prometheus text format.
+  public String render() {
+    StringBuilder out = new StringBuilder(16384);
+
+    Map<String, Route> sortedRoutes = new TreeMap<>();
+    for (Map<String, Route> byPath : routes.values()) {
+      for (Route route : byPath.values()) {
+        sortedRoutes.put(route.path + " " + route.method, route);
+      }
+    }
+    if (otherRoute.latency.count() > 0) {
+      sortedRoutes.put(OTHER, otherRoute);
+    }
+    out.append("# HELP http_server_requests_total Requests handled, by route and status class.\n");
+    out.append("# TYPE http_server_requests_total counter\n");
+    for (Route route : sortedRoutes.values()) {
+      for (int i = 0; i < route.statuses.length(); i++) {
+        long count = route.statuses.get(i);
+        if (count > 0) {
+          out.append("http_server_requests_total{").append(labels(route))
+            .append(",status=\"").append(i == 0 ? "other" : i + "xx").append("\"} ")
+            .append(count).append('\n');
+        }
+      }
+    }
+    out.append("# HELP http_server_request_duration_seconds Time spent handling requests, by route.\n");
+    out.append("# TYPE http_server_request_duration_seconds histogram\n");
+    for (Route route : sortedRoutes.values()) {
+      route.latency.appendPrometheus(out, "http_server_request_duration_seconds", labels(route), BOUNDS);
+    }
+
+    Map<String, Operation> sortedOperations = new TreeMap<>();
+    for (Operation operation : operations) {
+      sortedOperations.put(operation.name, operation);
+    }
+    if (otherOperation.latency.count() > 0) {
+      sortedOperations.put(OTHER, otherOperation);
+    }
+    out.append("# HELP stripe_requests_total Stripe API requests, by operation and outcome.\n");
+    out.append("# TYPE stripe_requests_total counter\n");
+    for (Operation operation : sortedOperations.values()) {
+      for (Outcome outcome : Outcome.VALUES) {
+        long count = operation.outcomes.get(outcome.ordinal());
+        if (count > 0) {
+          out.append("stripe_requests_total{operation=\"").append(escape(operation.name))
+            .append("\",outcome=\"").append(outcome.label).append("\"} ")
+            .append(count).append('\n');
+        }
+      }
+    }
+    out.append("# HELP stripe_request_duration_seconds Time waiting for Stripe API responses, by operation.\n");
+    out.append("# TYPE stripe_request_duration_seconds histogram\n");
+    for (Operation operation : sortedOperations.values()) {
+      operation.latency.appendPrometheus(
+        out,
+        "stripe_request_duration_seconds",
+        "operation=\"" + escape(operation.name) + "\"",
+        BOUNDS
+      );
+    }
+
+    Map<String, List<Registered>> byName = new LinkedHashMap<>();
+    for (Registered series : registered) {
+      byName.computeIfAbsent(series.name, name -> new ArrayList<>()).add(series);
+    }
+    for (List<Registered> series : byName.values()) {
+      out.append("# HELP ").append(series.get(0).name).append(' ').append(series.get(0).help).append('\n');
+      out.append("# TYPE ").append(series.get(0).name).append(" histogram\n");
+      for (Registered one : series) {
+        one.histogram.appendPrometheus(out, one.name, one.labels, BOUNDS);
+      }
+    }
+    return out.toString();
+  }
+
+  private static String labels(Route route) {
+    return "method=\"" + escape(route.method) + "\",route=\"" + escape(route.path) + "\"";
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static long hash(long hash, String value, int start, int end) {
+    for (int i = start; i < end; i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    // Separates segments, so "ab/c" and "a/bc" differ.
+    hash ^= '/';
+    return hash * 0x100000001b3L;
+  }
+
+  private static boolean isOneOf(String path, int start, int length, String[] values) {
+    for (String value : values) {
+      if (value.length() == length && path.regionMatches(start, value, 0, length)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // The end of the segment without a plural "s": "payment_methods" ->
+  // "payment_method".
+  private static int singular(String path, int start, int end) {
+    return end - start > 2 && path.charAt(end - 1) == 's' && path.charAt(end - 2) != 's' ? end - 1 : end;
+  }
+
+  // "payment_method" -> "PaymentMethod", or "paymentMethod" when not
+  // `capitalized`.
+  private static void appendCamel(StringBuilder name, String path, int start, int end, boolean capitalized) {
+    boolean upper = capitalized;
+    for (int i = start; i < end; i++) {
+      char c = path.charAt(i);
+      if (c == '_') {
+        upper = true;
+      } else {
+        name.append(upper ? Character.toUpperCase(c) : c);
+        upper = false;
+      }
+    }
+  }
+}
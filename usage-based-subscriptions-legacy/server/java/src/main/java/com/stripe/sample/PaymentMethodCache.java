@@ -0,0 +1,212 @@
+package com.stripe.sample;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import com.stripe.model.Event;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.StripeObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// The account page shows the customer's card on every visit, and card details
+// hardly ever change. This keeps the `/retrieve-customer-payment-method`
+// response for each payment method, so a visit only calls Stripe when the
+// card is new to us or has changed since.
+//
+// Entries are the response's UTF-8 bytes, holding only `fields`, rather than
+// PaymentMethod objects: a deserialized PaymentMethod is a graph of dozens of
+// objects with a field, mostly null, for every kind of payment method there
+// is. The cache is bounded by the total size of those bytes, dropping the
+// least recently used entries first, and an entry is also dropped once it is
+// `maxAgeMillis` old in case a webhook never arrives.
+//
+// Attaching a card fills its entry, since the attach response is the card
+// as it is now. `payment_method.updated`, `payment_method.automatically_updated`
+// and `payment_method.detached` drop the card; `customer.updated` drops all
+// of that customer's cards, unless only its invoice settings changed, which is
+// how our own routes make a card the default and which leaves the cards as
+// they were.
+public class PaymentMethodCache {
+  public interface Loader {
+    PaymentMethod load() throws StripeException;
+  }
+
+  // Roughly what a map entry, its key and the Entry cost on top of the bytes.
+  private static final int ENTRY_OVERHEAD = 160;
+
+  static final class Entry {
+    final byte[] json;
+    final String customerId;
+    final long loadedAt;
+
+    Entry(byte[] json, String customerId, long loadedAt) {
+      this.json = json;
+      this.customerId = customerId;
+      this.loadedAt = loadedAt;
+    }
+
+    int size(String id) {
+      return json.length + 2 * id.length() + ENTRY_OVERHEAD;
+    }
+  }
+
+  private final ResponseWriter.Fields fields;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+  // Bumped by every invalidation, so a load that started before one doesn't
+  // put back what it dropped.
+  private long generation;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder fills = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  public PaymentMethodCache(ResponseWriter.Fields fields, long maxBytes, long maxAgeMillis) {
+    this.fields = fields;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  // The response for `id`, from the cache or from `loader`.
+  public String get(String id, Loader loader) throws StripeException {
+    long started;
+    synchronized (entries) {
+      Entry entry = entries.get(id);
+      if (entry != null && System.currentTimeMillis() - entry.loadedAt < maxAgeMillis) {
+        hits.increment();
+        return new String(entry.json, StandardCharsets.UTF_8);
+      }
+      if (entry != null) {
+        remove(id);
+        expirations.increment();
+      }
+      started = generation;
+    }
+
+    misses.increment();
+    PaymentMethod paymentMethod = loader.load();
+    String response = ResponseWriter.write(paymentMethod, fields);
+    put(paymentMethod, response, started);
+    return response;
+  }
+
+  // For the payment method returned by attaching it to a customer.
+  public void put(PaymentMethod paymentMethod) {
+    long started;
+    synchronized (entries) {
+      started = generation;
+    }
+    put(paymentMethod, ResponseWriter.write(paymentMethod, fields), started);
+    fills.increment();
+  }
+
+  private void put(PaymentMethod paymentMethod, String response, long started) {
+    Entry entry = new Entry(
+      response.getBytes(StandardCharsets.UTF_8),
+      paymentMethod.getCustomer(),
+      System.currentTimeMillis()
+    );
+    String id = paymentMethod.getId();
+    if (entry.size(id) > maxBytes) {
+      return;
+    }
+    synchronized (entries) {
+      if (generation != started) {
+        return;
+      }
+      remove(id);
+      entries.put(id, entry);
+      bytes += entry.size(id);
+      Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+      while (bytes > maxBytes && eldest.hasNext()) {
+        Map.Entry<String, Entry> evicted = eldest.next();
+        bytes -= evicted.getValue().size(evicted.getKey());
+        eldest.remove();
+        evictions.increment();
+      }
+    }
+  }
+
+  // Called for every verified webhook event, before its handlers run.
+  public void applyEvent(Event event) {
+    String type = event.getType();
+    StripeObject object = event.getDataObjectDeserializer().getObject().orElse(null);
+    if (
+      (
+        "payment_method.updated".equals(type) ||
+        "payment_method.automatically_updated".equals(type) ||
+        "payment_method.detached".equals(type)
+      ) &&
+      object instanceof PaymentMethod
+    ) {
+      invalidate(((PaymentMethod) object).getId());
+    } else if ("customer.updated".equals(type) && object instanceof Customer) {
+      Map<String, Object> previous = event.getData().getPreviousAttributes();
+      if (previous == null || !previous.keySet().stream().allMatch("invoice_settings"::equals)) {
+        invalidateCustomer(((Customer) object).getId());
+      }
+    }
+  }
+
+  public void invalidate(String id) {
+    synchronized (entries) {
+      generation++;
+      if (remove(id)) {
+        invalidations.increment();
+      }
+    }
+  }
+
+  public void invalidateCustomer(String customerId) {
+    synchronized (entries) {
+      generation++;
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Entry> entry = it.next();
+        if (customerId.equals(entry.getValue().customerId)) {
+          bytes -= entry.getValue().size(entry.getKey());
+          it.remove();
+          invalidations.increment();
+        }
+      }
+    }
+  }
+
+  private boolean remove(String id) {
+    Entry removed = entries.remove(id);
+    if (removed == null) {
+      return false;
+    }
+    bytes -= removed.size(id);
+    return true;
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put("fills", fills.sum());
+    stats.put("invalidations", invalidations.sum());
+    stats.put("evictions", evictions.sum());
+    stats.put("expirations", expirations.sum());
+    stats.put("hitRate", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+    synchronized (entries) {
+      stats.put("size", entries.size());
+      stats.put("bytes", bytes);
+    }
+    stats.put("maxBytes", maxBytes);
+    return stats;
+  }
+}
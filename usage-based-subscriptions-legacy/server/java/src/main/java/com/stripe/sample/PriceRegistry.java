@@ -0,0 +1,226 @@
+package com.stripe.sample;
+
+import com.stripe.model.Price;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import io.github.cdimascio.dotenv.DotenvEntry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Resolves the price names our front end sends (`basic`, `sample_premium`,
+// ...) to Stripe price IDs, without building an upper-cased copy of the name
+// and looking it up in the environment on every request.
+//
+// Names come from the env file, where any setting whose value is a price ID
+// (`price_...`, or `plan_...` for older plans) names that price, and from the
+// lookup keys of prices loaded by PriceCatalog. The env file wins when both
+// name a price. Names match case-insensitively; anything else isn't a price,
+// so routes can reject it before calling Stripe.
+//
+// The table is rebuilt whenever the env file changes or the catalog is
+// reloaded, and swapped in whole, so lookups never lock.
+public class PriceRegistry {
+  // Open addressing with linear probing; at most half full.
+  static final class Table {
+    final String[] names;
+    final String[] ids;
+    final int mask;
+
+    Table(Map<String, String> prices) {
+      int capacity = Integer.highestOneBit(Math.max(8, prices.size() * 2 - 1)) << 1;
+      this.names = new String[capacity];
+      this.ids = new String[capacity];
+      this.mask = capacity - 1;
+      for (Map.Entry<String, String> price : prices.entrySet()) {
+        int i = hash(price.getKey()) & mask;
+        while (names[i] != null) {
+          i = (i + 1) & mask;
+        }
+        names[i] = price.getKey();
+        ids[i] = price.getValue();
+      }
+    }
+
+    String get(String name) {
+      int length = name.length();
+      int i = hash(name) & mask;
+      String candidate;
+      while ((candidate = names[i]) != null) {
+        if (candidate.length() == length && matches(candidate, name)) {
+          return ids[i];
+        }
+        i = (i + 1) & mask;
+      }
+      return null;
+    }
+  }
+
+  private final Path envFile;
+  private final ScheduledExecutorService watcher;
+
+  private volatile Map<String, String> envPrices;
+  private volatile Map<String, String> catalogPrices = Collections.emptyMap();
+  private volatile Table table;
+  private long envFileModified;
+
+  private final LongAdder lookups = new LongAdder();
+  private final LongAdder unknown = new LongAdder();
+  private final LongAdder reloads = new LongAdder();
+  private final LongAdder reloadFailures = new LongAdder();
+
+  public PriceRegistry(Dotenv dotenv, Path envFile) {
+    this.envFile = envFile;
+    this.envFileModified = lastModified();
+    this.envPrices = envPrices(dotenv);
+    this.table = new Table(envPrices);
+    this.watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "price-registry-reload");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Checks the env file for changes every `intervalSeconds`.
+  public void watch(long intervalSeconds) {
+    watcher.scheduleWithFixedDelay(
+      this::reloadIfChanged,
+      intervalSeconds,
+      intervalSeconds,
+      TimeUnit.SECONDS
+    );
+  }
+
+  // The price ID for `name`, or null if it doesn't name a price.
+  public String resolve(String name) {
+    lookups.increment();
+    String id = name == null ? null : table.get(name);
+    if (id == null) {
+      unknown.increment();
+    }
+    return id;
+  }
+
+  // Called by PriceCatalog after each load.
+  public void setCatalogPrices(List<Price> prices) {
+    Map<String, String> loaded = new HashMap<>();
+    for (Price price : prices) {
+      if (price.getLookupKey() != null) {
+        loaded.put(fold(price.getLookupKey()), price.getId());
+      }
+    }
+    synchronized (this) {
+      catalogPrices = loaded;
+      rebuild();
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    Map<String, String> names = new HashMap<>(catalogPrices);
+    names.putAll(envPrices);
+    stats.put("prices", names);
+    stats.put("lookups", lookups.sum());
+    stats.put("unknown", unknown.sum());
+    stats.put("reloads", reloads.sum());
+    stats.put("reloadFailures", reloadFailures.sum());
+    return stats;
+  }
+
+  private void reloadIfChanged() {
+    long modified = lastModified();
+    if (modified == envFileModified) {
+      return;
+    }
+    try {
+      Map<String, String> loaded = envPrices(
+        Dotenv
+          .configure()
+          .directory(envFile.toAbsolutePath().getParent().toString())
+          .filename(envFile.getFileName().toString())
+          .ignoreIfMissing()
+          .load()
+      );
+      synchronized (this) {
+        envFileModified = modified;
+        envPrices = loaded;
+        rebuild();
+      }
+      reloads.increment();
+      System.out.println("Reloaded " + loaded.size() + " prices from " + envFile);
+    } catch (RuntimeException e) {
+      // Probably caught half-written; try again on the next check.
+      reloadFailures.increment();
+      System.out.println("Reloading prices from " + envFile + " failed: " + e.getMessage());
+    }
+  }
+
+  private void rebuild() {
+    Map<String, String> prices = new LinkedHashMap<>(catalogPrices);
+    prices.putAll(envPrices);
+    table = new Table(prices);
+  }
+
+  private long lastModified() {
+    try {
+      return Files.getLastModifiedTime(envFile).toMillis();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static Map<String, String> envPrices(Dotenv dotenv) {
+    Map<String, String> prices = new HashMap<>();
+    for (DotenvEntry entry : dotenv.entries()) {
+      String value = entry.getValue();
+      if (value != null && (value.startsWith("price_") || value.startsWith("plan_"))) {
+        prices.put(fold(entry.getKey()), value);
+      }
+    }
+    return prices;
+  }
+
+  private static String fold(String name) {
+    StringBuilder folded = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      folded.append(fold(name.charAt(i)));
+    }
+    return folded.toString();
+  }
+
+  // Names in the table are already folded.
+  static boolean matches(String folded, String name) {
+    for (int i = 0; i < folded.length(); i++) {
+      if (folded.charAt(i) != fold(name.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // The same folding String.regionMatches(true, ...) compares with, with a
+  // shortcut for ASCII, which is what names almost always are.
+  private static char fold(char c) {
+    if (c < 0x80) {
+      return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+
+  static int hash(String name) {
+    int h = 0;
+    for (int i = 0; i < name.length(); i++) {
+      h = 31 * h + fold(name.charAt(i));
+    }
+    return h ^ (h >>> 16);
+  }
+}
@@ -3,23 +3,48 @@ package com.stripe.sample;
 import com.stripe.Stripe;
 import com.stripe.exception.StripeException;
 import com.stripe.model.UsageRecord;
+import com.stripe.net.ApiResource;
+import com.stripe.net.LiveStripeResponseGetter;
 import com.stripe.net.RequestOptions;
 import com.stripe.param.UsageRecordCreateOnSubscriptionItemParams;
 import io.github.cdimascio.dotenv.Dotenv;
 // This code can be run on an interval (e.g., every 24 hours) for each active
 // metered subscription.
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
-import java.util.UUID;
 
 public class ReportUsage {
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException, InterruptedException {
     // Set your secret key. Remember to switch to your live secret key in production!
     // See your keys here: https://dashboard.stripe.com/account/apikeys
     Dotenv dotenv = Dotenv.load();
     Stripe.apiKey = dotenv.get("STRIPE_SECRET_KEY");
 
+    // Bulk mode: ReportUsage <usage-file> [checkpoint-file]
+    if (args.length > 0) {
+      Path input = Paths.get(args[0]);
+      Path checkpoint = args.length > 1
+        ? Paths.get(args[1])
+        : input.resolveSibling(input.getFileName() + ".checkpoint");
+      int concurrency = Integer.parseInt(setting(dotenv, "USAGE_REPORT_CONCURRENCY", "16"));
+      // Keep-alive connections for the workers instead of a TLS handshake per
+      // record.
+      ApiResource.setGlobalResponseGetter(
+        new LiveStripeResponseGetter(new PooledStripeHttpClient(concurrency, 30000, 80000, 60000))
+      );
+      long failed = new BulkUsageReporter(
+        concurrency,
+        Double.parseDouble(setting(dotenv, "USAGE_REPORT_RATE", "80"))
+      ).run(input, checkpoint);
+      // Non-zero when records ended up in the `.failed` file, so a scheduler
+      // running this can tell.
+      System.exit(failed > 0 ? 1 : 0);
+    }
+
     // You need to write some of your own business logic before creating the
     // usage record. Pull a record of a customer from your database
     // and extract the customer's Stripe Subscription Item ID and
@@ -32,8 +57,46 @@ public class ReportUsage {
 
     long timestamp = Instant.now().getEpochSecond();
     // The idempotency key allows you to retry this usage record call if it fails.
-    String idempotencyKey = UUID.randomUUID().toString();
+    // It is derived from the record and kept in the usage journal with it, so
+    // a record retried by a later run is sent with the same key.
+    String idempotencyKey = BulkUsageReporter.idempotencyKey(subscriptionItemID, usageQuantity, timestamp);
+
+    // Usage is written to a journal before it is reported and marked as done
+    // once Stripe has it, or has turned it down for good. Anything an earlier
+    // run didn't get to Stripe, because it crashed or the call failed, is
+    // reported first.
+    UsageJournal usageJournal = new UsageJournal(
+      Paths.get(setting(dotenv, "USAGE_JOURNAL_DIR", "usage-journal")),
+      1 << 20,
+      UsageJournal.SyncMode.EVERY,
+      0
+    );
+    for (UsageJournal.Entry entry : usageJournal.recover()) {
+      String[] fields = entry.fields;
+      if (report(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3])) {
+        usageJournal.commit(entry.id);
+      }
+    }
 
+    long journalId = usageJournal.append(
+      subscriptionItemID,
+      Long.toString(usageQuantity),
+      Long.toString(timestamp),
+      idempotencyKey
+    );
+    if (report(subscriptionItemID, usageQuantity, timestamp, idempotencyKey)) {
+      usageJournal.commit(journalId);
+    }
+  }
+
+  // Returns true once the record needs no further attempts: Stripe has it, or
+  // rejected it in a way a retry can't fix.
+  private static boolean report(
+    String subscriptionItemID,
+    long usageQuantity,
+    long timestamp,
+    String idempotencyKey
+  ) {
     try {
       UsageRecordCreateOnSubscriptionItemParams params = UsageRecordCreateOnSubscriptionItemParams
         .builder()
@@ -48,15 +111,34 @@ public class ReportUsage {
         .build();
 
       UsageRecord.createOnSubscriptionItem(subscriptionItemID, params, options);
+      return true;
     } catch (StripeException e) {
+      if (!BulkUsageReporter.isRetryable(e)) {
+        System.out.println(
+          "Dropping usage report for item ID " +
+          subscriptionItemID +
+          " with idempotency key " +
+          idempotencyKey +
+          ": " +
+          e.getMessage()
+        );
+        return true;
+      }
       System.out.println(
         "Usage report failed for item ID " +
         subscriptionItemID +
         " with idempotency key " +
         idempotencyKey +
         ": " +
-        e.getMessage()
+        e.getMessage() +
+        ". It stays in the usage journal and is reported again on the next run."
       );
+      return false;
     }
   }
+
+  private static String setting(Dotenv dotenv, String name, String defaultValue) {
+    String value = dotenv.get(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
 }
@@ -0,0 +1,141 @@
+package com.stripe.sample;
+
+import static spark.Spark.afterAfter;
+import static spark.Spark.before;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
+// The threads Spark's Jetty server runs route handlers on.
+//
+// In `platform` mode this is Jetty's usual bounded pool, so at most
+// `maxThreads` requests are handled at once, each holding its thread while it
+// waits on Stripe. In `virtual` mode every request gets a new virtual thread,
+// which gives up its carrier thread while blocked on I/O. Virtual threads
+// need Java 21; that pool (VirtualThreadPool) lives in src/main/java21 and is
+// only compiled by the `java21` Maven profile, which is switched on
+// automatically when building with JDK 21 or later.
+//
+// Both modes count requests, so the two can be compared under the same load
+// on `/stats`.
+public class RouteThreads {
+  private static final String VIRTUAL_THREAD_POOL = "com.stripe.sample.VirtualThreadPool";
+  private static final int RATE_WINDOW_SECONDS = 10;
+
+  // Implemented by VirtualThreadPool.
+  interface StatsThreadPool extends ThreadPool {
+    Map<String, Object> stats();
+  }
+
+  private final String mode;
+  private final ThreadPool pool;
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder inFlight = new LongAdder();
+  // Requests completed at each of the last few seconds, for the rate.
+  private final AtomicLongArray samples = new AtomicLongArray(RATE_WINDOW_SECONDS + 1);
+  private volatile int sampled;
+
+  private RouteThreads(String mode, ThreadPool pool) {
+    this.mode = mode;
+    this.pool = pool;
+  }
+
+  public static RouteThreads platform(int maxThreads) {
+    QueuedThreadPool pool = new QueuedThreadPool(maxThreads, Math.min(8, maxThreads), 60000);
+    pool.setName("route");
+    return new RouteThreads("platform", pool);
+  }
+
+  // Fails if this isn't Java 21 or the server wasn't built with it.
+  public static RouteThreads virtual(long pinnedThresholdMillis) {
+    try {
+      ThreadPool pool = (ThreadPool) Class
+        .forName(VIRTUAL_THREAD_POOL)
+        .getConstructor(long.class)
+        .newInstance(pinnedThresholdMillis);
+      return new RouteThreads("virtual", pool);
+    } catch (ClassNotFoundException | UnsupportedClassVersionError e) {
+      throw new IllegalStateException(
+        "SERVER_THREADS=virtual needs Java 21 and a server built with it (mvn package on JDK 21)",
+        e
+      );
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not create the virtual thread pool", e);
+    }
+  }
+
+  // Must be called before the first route is defined, which starts the
+  // server.
+  public void install() {
+    EmbeddedServers.add(
+      EmbeddedServers.Identifiers.JETTY,
+      new EmbeddedJettyFactory().withThreadPool(pool)
+    );
+    before((request, response) -> inFlight.increment());
+    afterAfter((request, response) -> {
+      inFlight.decrement();
+      requests.increment();
+    });
+
+    ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "route-threads-sampler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("mode", mode);
+    stats.put("requests", requests.sum());
+    stats.put("inFlight", inFlight.sum());
+    stats.put("requestsPerSecond", requestsPerSecond());
+    stats.put("platformThreads", threads.getThreadCount());
+    stats.put("peakPlatformThreads", threads.getPeakThreadCount());
+    if (pool instanceof QueuedThreadPool) {
+      QueuedThreadPool queued = (QueuedThreadPool) pool;
+      stats.put("poolThreads", queued.getThreads());
+      stats.put("busyThreads", queued.getBusyThreads());
+      stats.put("idleThreads", queued.getIdleThreads());
+      stats.put("maxThreads", queued.getMaxThreads());
+      stats.put("queued", queued.getQueueSize());
+    } else if (pool instanceof StatsThreadPool) {
+      stats.putAll(((StatsThreadPool) pool).stats());
+    }
+    return stats;
+  }
+
+  private void sample() {
+    int next = sampled + 1;
+    samples.set(next % samples.length(), requests.sum());
+    sampled = next;
+  }
+
+  // Requests completed per second, averaged over the last few seconds.
+  private double requestsPerSecond() {
+    int latest = sampled;
+    int seconds = Math.min(latest, RATE_WINDOW_SECONDS);
+    if (seconds == 0) {
+      return 0.0;
+    }
+    long now = samples.get(latest % samples.length());
+    long then = samples.get((latest - seconds) % samples.length());
+    return (double) (now - then) / seconds;
+  }
+}
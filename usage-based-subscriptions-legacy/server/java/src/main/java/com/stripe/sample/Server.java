@@ -8,6 +8,7 @@ import static spark.Spark.staticFiles;
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 import com.stripe.Stripe;
+import com.stripe.StripeClient;
 import com.stripe.exception.CardException;
 import com.stripe.exception.SignatureVerificationException;
 import com.stripe.model.Customer;
@@ -17,6 +18,9 @@ import com.stripe.model.Invoice;
 import com.stripe.model.PaymentMethod;
 import com.stripe.model.StripeObject;
 import com.stripe.model.Subscription;
+import com.stripe.net.ApiResource;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.stripe.net.StripeResponseGetter;
 import com.stripe.net.Webhook;
 import com.stripe.param.CustomerCreateParams;
 import com.stripe.param.CustomerUpdateParams;
@@ -28,17 +32,44 @@ import com.stripe.param.SubscriptionCreateParams;
 import com.stripe.param.SubscriptionUpdateParams;
 import com.stripe.param.SubscriptionUpdateParams;
 import io.github.cdimascio.dotenv.Dotenv;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import spark.Response;
 
 public class Server {
   private static Gson gson = new Gson();
 
+  // The fields of a payment method the account page reads, which is all
+  // `/retrieve-customer-payment-method` sends and PaymentMethodCache keeps.
+  static final ResponseWriter.Fields PAYMENT_METHOD_FIELDS = ResponseWriter.Fields.of(
+    "id",
+    "type",
+    "customer",
+    "billing_details",
+    "card.brand",
+    "card.display_brand",
+    "card.country",
+    "card.exp_month",
+    "card.exp_year",
+    "card.funding",
+    "card.last4"
+  );
+
   static class CreateCustomerBody {
+    static final RequestBodies.BodyReader<CreateCustomerBody> READER = RequestBodies
+      .reader(CreateCustomerBody::new)
+      .string("name", (body, value) -> body.name = value)
+      .requiredString("email", (body, value) -> body.email = value);
+
     @SerializedName("name")
     String name;
 
@@ -55,6 +86,12 @@ public class Server {
   }
 
   static class CreateSubscriptionBody {
+    static final RequestBodies.BodyReader<CreateSubscriptionBody> READER = RequestBodies
+      .reader(CreateSubscriptionBody::new)
+      .requiredString("customerId", (body, value) -> body.customerId = value)
+      .requiredString("priceId", (body, value) -> body.priceId = value)
+      .requiredString("paymentMethodId", (body, value) -> body.paymentMethodId = value);
+
     @SerializedName("customerId")
     String customerId;
 
@@ -101,6 +138,12 @@ public class Server {
   }
 
   static class RetryInvoiceBody {
+    static final RequestBodies.BodyReader<RetryInvoiceBody> READER = RequestBodies
+      .reader(RetryInvoiceBody::new)
+      .requiredString("invoiceId", (body, value) -> body.invoiceId = value)
+      .requiredString("paymentMethodId", (body, value) -> body.paymentMethodId = value)
+      .requiredString("customerId", (body, value) -> body.customerId = value);
+
     @SerializedName("invoiceId")
     String invoiceId;
 
@@ -124,6 +167,11 @@ public class Server {
   }
 
   static class UpdatePostBody {
+    static final RequestBodies.BodyReader<UpdatePostBody> READER = RequestBodies
+      .reader(UpdatePostBody::new)
+      .requiredString("subscriptionId", (body, value) -> body.subscriptionId = value)
+      .requiredString("newPriceId", (body, value) -> body.newPriceId = value);
+
     @SerializedName("subscriptionId")
     String subscriptionId;
 
@@ -140,6 +188,10 @@ public class Server {
   }
 
   static class CancelPostBody {
+    static final RequestBodies.BodyReader<CancelPostBody> READER = RequestBodies
+      .reader(CancelPostBody::new)
+      .requiredString("subscriptionId", (body, value) -> body.subscriptionId = value);
+
     @SerializedName("subscriptionId")
     String subscriptionId;
 
@@ -149,6 +201,13 @@ public class Server {
   }
 
   static class UpcomingInvoicePostBody {
+    static final RequestBodies.BodyReader<UpcomingInvoicePostBody> READER = RequestBodies
+      .reader(UpcomingInvoicePostBody::new)
+      .requiredString("customerId", (body, value) -> body.customerId = value)
+      .requiredString("subscriptionId", (body, value) -> body.subscriptionId = value)
+      .requiredString("newPriceId", (body, value) -> body.newPriceId = value)
+      .string("subscription_trial_end", (body, value) -> body.subscription_trial_end = value);
+
     @SerializedName("customerId")
     String customerId;
 
@@ -179,6 +238,10 @@ public class Server {
   }
 
   static class PaymentMethodBody {
+    static final RequestBodies.BodyReader<PaymentMethodBody> READER = RequestBodies
+      .reader(PaymentMethodBody::new)
+      .requiredString("paymentMethodId", (body, value) -> body.paymentMethodId = value);
+
     @SerializedName("paymentMethodId")
     String paymentMethodId;
 
@@ -198,15 +261,127 @@ public class Server {
     );
     Stripe.apiKey = dotenv.get("STRIPE_SECRET_KEY");
 
-    staticFiles.externalLocation(
-      Paths
-        .get(
-          Paths.get("").toAbsolutePath().toString(),
-          dotenv.get("STATIC_DIR")
-        )
-        .normalize()
-        .toString()
+    // Send Stripe API calls somewhere other than api.stripe.com, such as the
+    // stand-in in load-test/.
+    String apiBase = setting(dotenv, "STRIPE_API_BASE", null);
+    if (apiBase != null) {
+      Stripe.overrideApiBase(apiBase);
+      Stripe.overrideMeterEventsBase(apiBase);
+    }
+
+    // One pooled HTTP client for every Stripe call in the process, shared by
+    // the static API (Customer.create, ...) and by StripeClient, so requests
+    // reuse keep-alive connections instead of doing a new TLS handshake.
+    // Latency and outcome of every route and Stripe call, on `/metrics`.
+    Metrics metrics = new Metrics();
+    PooledStripeHttpClient stripeHttpClient = createStripeHttpClient(dotenv, metrics);
+    // Every call then waits its turn in the scheduler, which keeps us under
+    // Stripe's rate limits and lets route handlers go ahead of background
+    // work. STRIPE_SCHEDULER=off sends calls straight away.
+    StripeCallScheduler stripeScheduler = "off".equals(setting(dotenv, "STRIPE_SCHEDULER", "on"))
+      ? null
+      : createStripeCallScheduler(dotenv, stripeHttpClient);
+    StripeResponseGetter stripeResponseGetter = new LiveStripeResponseGetter(
+      stripeScheduler == null ? stripeHttpClient : stripeScheduler
+    );
+    ApiResource.setGlobalResponseGetter(stripeResponseGetter);
+    StripeClient stripeClient = new StripeClient(stripeResponseGetter);
+
+    // Stripe may deliver the same event more than once. Remember which
+    // events were already handled so redeliveries are simply acknowledged.
+    EventDeduplicator eventDeduplicator = createEventDeduplicator(dotenv);
+
+    // Subscription item IDs seen in our own responses and in webhooks, so
+    // plan changes and previews can skip retrieving the subscription; the
+    // SUBSCRIPTION_ITEM_INDEX_SIZE most recently used are kept.
+    SubscriptionItemIndex subscriptionItemIndex = new SubscriptionItemIndex(
+      Integer.parseInt(setting(dotenv, "SUBSCRIPTION_ITEM_INDEX_SIZE", "100000"))
+    );
+
+    // Price names from the front end are resolved against the prices named
+    // in .env, instead of against whatever is in the environment. Edits to
+    // .env are picked up within PRICE_REGISTRY_RELOAD_SECONDS (0 turns this
+    // off).
+    PriceRegistry priceRegistry = new PriceRegistry(dotenv, Paths.get(".env"));
+    long priceReloadSeconds = Long.parseLong(setting(dotenv, "PRICE_REGISTRY_RELOAD_SECONDS", "5"));
+    if (priceReloadSeconds > 0) {
+      priceRegistry.watch(priceReloadSeconds);
+    }
+
+    // `/create-subscription` and `/retry-invoice` send their Stripe calls as
+    // a graph, so calls that don't depend on each other go out together.
+    // Each step's time is on `/stats`, `/metrics` and the response's
+    // Server-Timing header.
+    CallPlan createSubscriptionPlan = new CallPlan("create-subscription", metrics);
+    CallPlan retryInvoicePlan = new CallPlan("retry-invoice", metrics);
+
+    // A double click or a client retry of `/create-customer` or
+    // `/create-subscription` gets the result of the first request instead of
+    // creating a second customer or subscription.
+    long coalesceWindowMillis = TimeUnit.SECONDS.toMillis(
+      Long.parseLong(setting(dotenv, "REQUEST_COALESCE_WINDOW_SECONDS", "30"))
     );
+    RequestCoalescer<Customer> customerCoalescer =
+      new RequestCoalescer<>("create-customer", coalesceWindowMillis, 10000);
+    RequestCoalescer<String> subscriptionCoalescer =
+      new RequestCoalescer<>("create-subscription", coalesceWindowMillis, 10000);
+
+    // Switching between plans asks for the same few upcoming invoices over
+    // and over; keep them for up to INVOICE_PREVIEW_CACHE_SECONDS (0 turns
+    // this off).
+    long previewCacheSeconds = Long.parseLong(setting(dotenv, "INVOICE_PREVIEW_CACHE_SECONDS", "60"));
+    InvoicePreviewCache invoicePreviewCache = previewCacheSeconds == 0
+      ? null
+      : new InvoicePreviewCache(
+          TimeUnit.SECONDS.toMillis(previewCacheSeconds),
+          Integer.parseInt(setting(dotenv, "INVOICE_PREVIEW_CACHE_SIZE", "10000"))
+        );
+
+    // The account page's card details, kept as JSON for up to
+    // PAYMENT_METHOD_CACHE_SECONDS and PAYMENT_METHOD_CACHE_MB in all (0 turns
+    // this off), and dropped when a webhook says the card or its customer
+    // changed.
+    long paymentMethodCacheMb = Long.parseLong(setting(dotenv, "PAYMENT_METHOD_CACHE_MB", "16"));
+    PaymentMethodCache paymentMethodCache = paymentMethodCacheMb == 0
+      ? null
+      : new PaymentMethodCache(
+          PAYMENT_METHOD_FIELDS,
+          paymentMethodCacheMb * 1024 * 1024,
+          TimeUnit.SECONDS.toMillis(Long.parseLong(setting(dotenv, "PAYMENT_METHOD_CACHE_SECONDS", "3600")))
+        );
+
+    Path staticDir = Paths
+      .get(
+        Paths.get("").toAbsolutePath().toString(),
+        dotenv.get("STATIC_DIR")
+      )
+      .normalize();
+    // The front end is served from memory, compressed ahead of time and with
+    // ETags, and reloaded when STATIC_DIR changes. STATIC_CACHE=off has Spark
+    // read each file from disk on every request instead.
+    StaticAssets staticAssets = "off".equals(setting(dotenv, "STATIC_CACHE", "on"))
+      ? null
+      : startStaticAssets(staticDir);
+    if (staticAssets == null) {
+      staticFiles.externalLocation(staticDir.toString());
+    }
+
+    // SERVER_THREADS=virtual runs each request on its own virtual thread
+    // (Java 21) instead of on Jetty's pool of SERVER_MAX_THREADS threads. This
+    // has to happen before the first route is defined.
+    RouteThreads routeThreads = "virtual".equals(setting(dotenv, "SERVER_THREADS", "platform"))
+      ? RouteThreads.virtual(Long.parseLong(setting(dotenv, "VIRTUAL_THREAD_PINNED_THRESHOLD_MS", "20")))
+      : RouteThreads.platform(Integer.parseInt(setting(dotenv, "SERVER_MAX_THREADS", "200")));
+    routeThreads.install();
+    // Bodies larger than this are turned away before they are read.
+    RequestBodies.install(Integer.parseInt(setting(dotenv, "REQUEST_BODY_MAX_BYTES", "16384")));
+    metrics.install();
+    if (stripeScheduler != null) {
+      stripeScheduler.install(metrics);
+    }
+    if (staticAssets != null) {
+      staticAssets.install();
+    }
 
     get(
       "/config",
@@ -221,31 +396,74 @@ public class Server {
       }
     );
 
+    get(
+      "/metrics",
+      (request, response) -> {
+        response.type("text/plain; version=0.0.4");
+        return metrics.render();
+      }
+    );
+
+    get(
+      "/stats",
+      (request, response) -> {
+        response.type("application/json");
+        Map<String, Object> responseData = new HashMap<>();
+        responseData.put("webhookDedupe", eventDeduplicator.stats());
+        responseData.put("stripeHttpClient", stripeHttpClient.stats());
+        if (stripeScheduler != null) {
+          responseData.put("stripeScheduler", stripeScheduler.stats());
+        }
+        responseData.put("subscriptionItemIndex", subscriptionItemIndex.stats());
+        responseData.put("priceRegistry", priceRegistry.stats());
+        if (invoicePreviewCache != null) {
+          responseData.put("invoicePreviewCache", invoicePreviewCache.stats());
+        }
+        if (paymentMethodCache != null) {
+          responseData.put("paymentMethodCache", paymentMethodCache.stats());
+        }
+        Map<String, Object> callPlans = new HashMap<>();
+        callPlans.put("createSubscription", createSubscriptionPlan.stats());
+        callPlans.put("retryInvoice", retryInvoicePlan.stats());
+        responseData.put("callPlans", callPlans);
+        responseData.put("responses", ResponseWriter.stats());
+        responseData.put("routeThreads", routeThreads.stats());
+        if (staticAssets != null) {
+          responseData.put("staticAssets", staticAssets.stats());
+        }
+        Map<String, Object> coalescing = new HashMap<>();
+        coalescing.put("createCustomer", customerCoalescer.stats());
+        coalescing.put("createSubscription", subscriptionCoalescer.stats());
+        responseData.put("requestCoalescing", coalescing);
+        return gson.toJson(responseData);
+      }
+    );
+
     post(
       "/create-customer",
       (request, response) -> {
         response.type("application/json");
 
-        CreateCustomerBody postBody = gson.fromJson(
-          request.body(),
-          CreateCustomerBody.class
-        );
+        CreateCustomerBody postBody = RequestBodies.read(request, CreateCustomerBody.READER);
         CustomerCreateParams customerParams = CustomerCreateParams
           .builder()
           .setEmail(postBody.getEmail())
           .build();
-        // Create a new customer object
-        Customer customer = Customer.create(customerParams);
+        // Create a new customer object, once for repeated submissions
+        Customer customer = customerCoalescer.execute(
+          String.valueOf(postBody.getEmail()),
+          options -> Customer.create(customerParams, options)
+        );
 
         Map<String, Object> responseData = new HashMap<>();
         responseData.put("customer", customer);
 
-        //we use StripeObject.PRETTY_PRINT_GSON.toJson() so that we get the JSON our client is expecting on the polymorphic
+        //ResponseWriter serializes with StripeObject.PRETTY_PRINT_GSON so that we get the JSON our client is expecting on the polymorphic
         //parameters that can either be object ids or the object themselves. If we tried to generate the JSON without call this,
         //for example, by calling gson.toJson(responseData) we will see something like "customer":{"id":"cus_XXX"} instead of
         //"customer":"cus_XXX".
         //If you only need to return 1 object, you can use the built in serializers, i.e. Subscription.retrieve("sub_XXX").toJson()
-        return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+        return ResponseWriter.write(responseData);
       }
     );
 
@@ -254,22 +472,75 @@ public class Server {
       (request, response) -> {
         response.type("application/json");
         // Set the default payment method on the customer
-        CreateSubscriptionBody postBody = gson.fromJson(
-          request.body(),
-          CreateSubscriptionBody.class
-        );
-        Customer customer = Customer.retrieve(postBody.getCustomerId());
+        CreateSubscriptionBody postBody = RequestBodies.read(request, CreateSubscriptionBody.READER);
+        String priceId = priceRegistry.resolve(postBody.getPriceId());
+        if (priceId == null) {
+          return unknownPrice(response, postBody.getPriceId());
+        }
 
+        // Identical submissions attach the card and create the subscription
+        // once, and all get the same subscription back.
+        String coalesceKey = postBody.getCustomerId() + "|" +
+          postBody.getPaymentMethodId() + "|" +
+          priceId;
         try {
-          // Set the default payment method on the customer
-          PaymentMethod pm = PaymentMethod.retrieve(
-            postBody.getPaymentMethodId()
-          );
-          pm.attach(
-            PaymentMethodAttachParams
-              .builder()
-              .setCustomer(customer.getId())
-              .build()
+          return subscriptionCoalescer.execute(
+            coalesceKey,
+            options -> {
+              // The card is attached, made the customer's default and then
+              // charged by the new subscription, each step waiting for the
+              // one before. The subscription bills the customer's default,
+              // so `/retry-invoice` can replace the card later. There is
+              // nothing to retrieve: the calls only need the IDs from the
+              // request.
+              CallPlan.Run plan = createSubscriptionPlan.start();
+              CallPlan.Step<PaymentMethod> attach = plan.step(
+                "attach_payment_method",
+                () -> stripeClient.v1().paymentMethods().attach(
+                  postBody.getPaymentMethodId(),
+                  PaymentMethodAttachParams
+                    .builder()
+                    .setCustomer(postBody.getCustomerId())
+                    .build()
+                )
+              );
+              CallPlan.Step<Customer> setDefault = plan.step(
+                "set_default_payment_method",
+                () -> stripeClient.v1().customers().update(
+                  postBody.getCustomerId(),
+                  defaultPaymentMethod(postBody.getPaymentMethodId())
+                ),
+                attach
+              );
+              CallPlan.Step<Subscription> create = plan.step(
+                "create_subscription",
+                () -> stripeClient.v1().subscriptions().create(
+                  SubscriptionCreateParams
+                    .builder()
+                    .addItem(
+                      SubscriptionCreateParams
+                        .Item.builder()
+                        .setPrice(priceId)
+                        .build()
+                    )
+                    .setCustomer(postBody.getCustomerId())
+                    .addAllExpand(Arrays.asList("latest_invoice.payment_intent", "pending_setup_intent"))
+                    .build(),
+                  options
+                ),
+                setDefault
+              );
+              plan.finish();
+              response.header("Server-Timing", plan.serverTiming());
+
+              Subscription subscription = create.get();
+              subscriptionItemIndex.put(subscription);
+              if (paymentMethodCache != null) {
+                paymentMethodCache.put(attach.get());
+              }
+
+              return ResponseWriter.write(subscription);
+            }
           );
         } catch (CardException e) {
           // Since it's a decline, CardException will be caught
@@ -280,35 +551,6 @@ public class Server {
 
           return gson.toJson(responseError);
         }
-
-        CustomerUpdateParams customerUpdateParams = CustomerUpdateParams
-          .builder()
-          .setInvoiceSettings(
-            CustomerUpdateParams
-              .InvoiceSettings.builder()
-              .setDefaultPaymentMethod(postBody.getPaymentMethodId())
-              .build()
-          )
-          .build();
-
-        customer.update(customerUpdateParams);
-
-        // Create the subscription
-        SubscriptionCreateParams subCreateParams = SubscriptionCreateParams
-          .builder()
-          .addItem(
-            SubscriptionCreateParams
-              .Item.builder()
-              .setPrice(dotenv.get(postBody.getPriceId().toUpperCase()))
-              .build()
-          )
-          .setCustomer(customer.getId())
-          .addAllExpand(Arrays.asList("latest_invoice.payment_intent", "pending_setup_intent"))
-          .build();
-
-        Subscription subscription = Subscription.create(subCreateParams);
-
-        return subscription.toJson();
       }
     );
 
@@ -317,23 +559,48 @@ public class Server {
       (request, response) -> {
         response.type("application/json");
         // Set the default payment method on the customer
-        RetryInvoiceBody postBody = gson.fromJson(
-          request.body(),
-          RetryInvoiceBody.class
-        );
-        Customer customer = Customer.retrieve(postBody.getCustomerId());
-
-        try {
-          // Set the default payment method on the customer
-          PaymentMethod pm = PaymentMethod.retrieve(
-            postBody.getPaymentMethodId()
-          );
-          pm.attach(
+        RetryInvoiceBody postBody = RequestBodies.read(request, RetryInvoiceBody.READER);
+
+        // Attaching the card and then making it the customer's default is
+        // one chain; the invoice, with its payment intent expanded, doesn't
+        // depend on either and is retrieved alongside it.
+        CallPlan.Run plan = retryInvoicePlan.start();
+        CallPlan.Step<PaymentMethod> attach = plan.step(
+          "attach_payment_method",
+          () -> stripeClient.v1().paymentMethods().attach(
+            postBody.getPaymentMethodId(),
             PaymentMethodAttachParams
               .builder()
-              .setCustomer(customer.getId())
+              .setCustomer(postBody.getCustomerId())
               .build()
-          );
+          )
+        );
+        CallPlan.Step<Customer> setDefault = plan.step(
+          "set_default_payment_method",
+          () -> stripeClient.v1().customers().update(
+            postBody.getCustomerId(),
+            defaultPaymentMethod(postBody.getPaymentMethodId())
+          ),
+          attach
+        );
+        CallPlan.Step<Invoice> invoice = plan.step(
+          "retrieve_invoice",
+          () -> stripeClient.v1().invoices().retrieve(
+            postBody.getInvoiceId(),
+            InvoiceRetrieveParams
+              .builder()
+              .addAllExpand(Arrays.asList("payment_intent"))
+              .build()
+          )
+        );
+        plan.finish();
+        response.header("Server-Timing", plan.serverTiming());
+
+        try {
+          PaymentMethod paymentMethod = attach.get();
+          if (paymentMethodCache != null) {
+            paymentMethodCache.put(paymentMethod);
+          }
         } catch (CardException e) {
           // Since it's a decline, CardException will be caught
           Map<String, String> responseErrorMessage = new HashMap<>();
@@ -342,31 +609,9 @@ public class Server {
           responseError.put("error", responseErrorMessage);
           return gson.toJson(responseError);
         }
+        setDefault.get();
 
-        CustomerUpdateParams customerUpdateParams = CustomerUpdateParams
-          .builder()
-          .setInvoiceSettings(
-            CustomerUpdateParams
-              .InvoiceSettings.builder()
-              .setDefaultPaymentMethod(postBody.getPaymentMethodId())
-              .build()
-          )
-          .build();
-
-        customer.update(customerUpdateParams);
-
-        InvoiceRetrieveParams params = InvoiceRetrieveParams
-          .builder()
-          .addAllExpand(Arrays.asList("payment_intent"))
-          .build();
-
-        Invoice invoice = Invoice.retrieve(
-          postBody.getInvoiceId(),
-          params,
-          null
-        );
-
-        return invoice.toJson();
+        return ResponseWriter.write(invoice.get());
       }
     );
 
@@ -374,38 +619,55 @@ public class Server {
       "/retrieve-upcoming-invoice",
       (request, response) -> {
         response.type("application/json");
-        UpcomingInvoicePostBody postBody = gson.fromJson(
-          request.body(),
-          UpcomingInvoicePostBody.class
-        );
+        UpcomingInvoicePostBody postBody = RequestBodies.read(request, UpcomingInvoicePostBody.READER);
 
-        Subscription subscription = Subscription.retrieve(
-          postBody.getSubscriptionId()
-        );
-
-        InvoiceUpcomingParams invoiceParams = InvoiceUpcomingParams
-          .builder()
-          .setCustomer(postBody.getCustomerId())
-          .setSubscription(postBody.getSubscriptionId())
-          .addSubscriptionItem(
-            InvoiceUpcomingParams
-              .SubscriptionItem.builder()
-              .setId(subscription.getItems().getData().get(0).getId())
-              .setDeleted(true)
-              .setClearUsage(true)
-              .build()
-          )
-          .addSubscriptionItem(
-            InvoiceUpcomingParams
-              .SubscriptionItem.builder()
-              .setPrice(dotenv.get(postBody.getNewPriceId().toUpperCase()))
-              .build()
-          )
-          .build();
+        String newPriceId = priceRegistry.resolve(postBody.getNewPriceId());
+        if (newPriceId == null) {
+          return unknownPrice(response, postBody.getNewPriceId());
+        }
 
-        Invoice invoice = Invoice.upcoming(invoiceParams);
+        InvoicePreviewCache.Loader preview = () -> {
+          // The index remembers subscription item IDs from earlier responses
+          // and webhooks, so the subscription is only retrieved on a miss.
+          String subscriptionItemId = subscriptionItemIndex.firstItemId(
+            postBody.getSubscriptionId()
+          );
 
-        return invoice.toJson();
+          InvoiceUpcomingParams invoiceParams = InvoiceUpcomingParams
+            .builder()
+            .setCustomer(postBody.getCustomerId())
+            .setSubscription(postBody.getSubscriptionId())
+            .addSubscriptionItem(
+              InvoiceUpcomingParams
+                .SubscriptionItem.builder()
+                .setId(subscriptionItemId)
+                .setDeleted(true)
+                .setClearUsage(true)
+                .build()
+            )
+            .addSubscriptionItem(
+              InvoiceUpcomingParams
+                .SubscriptionItem.builder()
+                .setPrice(newPriceId)
+                .build()
+            )
+            .build();
+
+          Invoice invoice = Invoice.upcoming(invoiceParams);
+
+          return ResponseWriter.write(invoice);
+        };
+
+        // Identical previews are served from the cache, or wait for the one
+        // already being loaded.
+        return invoicePreviewCache == null
+          ? preview.load()
+          : invoicePreviewCache.get(
+              postBody.getCustomerId(),
+              postBody.getSubscriptionId(),
+              newPriceId,
+              preview
+            );
       }
     );
 
@@ -414,17 +676,17 @@ public class Server {
       (request, response) -> {
         response.type("application/json");
         // Set the default payment method on the customer
-        CancelPostBody postBody = gson.fromJson(
-          request.body(),
-          CancelPostBody.class
-        );
+        CancelPostBody postBody = RequestBodies.read(request, CancelPostBody.READER);
 
         Subscription subscription = Subscription.retrieve(
           postBody.getSubscriptionId()
         );
 
         Subscription deletedSubscription = subscription.cancel();
-        return deletedSubscription.toJson();
+        if (invoicePreviewCache != null) {
+          invoicePreviewCache.invalidateSubscription(deletedSubscription.getId());
+        }
+        return ResponseWriter.write(deletedSubscription);
       }
     );
 
@@ -433,12 +695,14 @@ public class Server {
       (request, response) -> {
         response.type("application/json");
         // Set the default payment method on the customer
-        UpdatePostBody postBody = gson.fromJson(
-          request.body(),
-          UpdatePostBody.class
-        );
+        UpdatePostBody postBody = RequestBodies.read(request, UpdatePostBody.READER);
 
-        Subscription subscription = Subscription.retrieve(
+        String newPriceId = priceRegistry.resolve(postBody.getNewPriceId());
+        if (newPriceId == null) {
+          return unknownPrice(response, postBody.getNewPriceId());
+        }
+
+        String subscriptionItemId = subscriptionItemIndex.firstItemId(
           postBody.getSubscriptionId()
         );
 
@@ -447,15 +711,22 @@ public class Server {
           .addItem(
             SubscriptionUpdateParams
               .Item.builder()
-              .setId(subscription.getItems().getData().get(0).getId())
-              .setPlan(dotenv.get(postBody.getNewPriceId().toUpperCase()))
+              .setId(subscriptionItemId)
+              .setPlan(newPriceId)
               .build()
           )
           .setCancelAtPeriodEnd(false)
           .build();
 
-        subscription.update(params);
-        return subscription.toJson();
+        Subscription subscription = stripeClient.v1().subscriptions().update(
+          postBody.getSubscriptionId(),
+          params
+        );
+        subscriptionItemIndex.put(subscription);
+        if (invoicePreviewCache != null) {
+          invoicePreviewCache.invalidateSubscription(subscription.getId());
+        }
+        return ResponseWriter.write(subscription);
       }
     );
 
@@ -464,15 +735,14 @@ public class Server {
       (request, response) -> {
         response.type("application/json");
         // Set the default payment method on the customer
-        PaymentMethodBody paymentMethodBody = gson.fromJson(
-          request.body(),
-          PaymentMethodBody.class
-        );
+        PaymentMethodBody paymentMethodBody = RequestBodies.read(request, PaymentMethodBody.READER);
 
-        PaymentMethod paymentMethod = PaymentMethod.retrieve(
+        PaymentMethodCache.Loader retrieve = () -> PaymentMethod.retrieve(
           paymentMethodBody.getPaymentMethodId()
         );
-        return paymentMethod.toJson();
+        return paymentMethodCache == null
+          ? ResponseWriter.write(retrieve.load(), PAYMENT_METHOD_FIELDS)
+          : paymentMethodCache.get(paymentMethodBody.getPaymentMethodId(), retrieve);
       }
     );
 
@@ -492,41 +762,61 @@ public class Server {
           return "";
         }
 
-        // Deserialize the nested object inside the event
-        EventDataObjectDeserializer dataObjectDeserializer = event.getDataObjectDeserializer();
-        StripeObject stripeObject = null;
-        if (dataObjectDeserializer.getObject().isPresent()) {
-          stripeObject = dataObjectDeserializer.getObject().get();
-        } else {
-          // Deserialization failed, probably due to an API version mismatch.
-          // Refer to the Javadoc documentation on `EventDataObjectDeserializer` for
-          // instructions on how to handle this case, or return an error here.
+        // Claimed before handling, so a redelivery arriving meanwhile isn't
+        // handled alongside it; a failed attempt gives the claim back.
+        if (!eventDeduplicator.tryClaim(event.getId())) {
+          response.status(200);
+          return "";
         }
 
-        switch (event.getType()) {
-          case "invoice.paid":
-            // Used to provision services after the trial has ended.
-            // The status of the invoice will show up as paid. Store the status in your
-            // database to reference when a user accesses your service to avoid hitting rate
-            // limits.
-            break;
-          case "invoice.payment_failed":
-            // If the payment fails or the customer does not have a valid payment method,
-            // an invoice.payment_failed event is sent, the subscription becomes past_due.
-            // Use this webhook to notify your user that their payment has
-            // failed and to retrieve new card details.
-            break;
-          case "invoice.finalized":
-            // If you want to manually send out invoices to your customers
-            // or store them locally to reference to avoid hitting Stripe rate limits.
-            break;
-          case "customer.subscription.deleted":
-            // handle subscription cancelled automatically based
-            // upon your subscription settings. Or if the user
-            // cancels it.
-            break;
-          default:
-          // Unhandled event type
+        try {
+          subscriptionItemIndex.applyEvent(event);
+          if (invoicePreviewCache != null) {
+            invoicePreviewCache.applyEvent(event);
+          }
+          if (paymentMethodCache != null) {
+            paymentMethodCache.applyEvent(event);
+          }
+
+          // Deserialize the nested object inside the event
+          EventDataObjectDeserializer dataObjectDeserializer = event.getDataObjectDeserializer();
+          StripeObject stripeObject = null;
+          if (dataObjectDeserializer.getObject().isPresent()) {
+            stripeObject = dataObjectDeserializer.getObject().get();
+          } else {
+            // Deserialization failed, probably due to an API version mismatch.
+            // Refer to the Javadoc documentation on `EventDataObjectDeserializer` for
+            // instructions on how to handle this case, or return an error here.
+          }
+
+          switch (event.getType()) {
+            case "invoice.paid":
+              // Used to provision services after the trial has ended.
+              // The status of the invoice will show up as paid. Store the status in your
+              // database to reference when a user accesses your service to avoid hitting rate
+              // limits.
+              break;
+            case "invoice.payment_failed":
+              // If the payment fails or the customer does not have a valid payment method,
+              // an invoice.payment_failed event is sent, the subscription becomes past_due.
+              // Use this webhook to notify your user that their payment has
+              // failed and to retrieve new card details.
+              break;
+            case "invoice.finalized":
+              // If you want to manually send out invoices to your customers
+              // or store them locally to reference to avoid hitting Stripe rate limits.
+              break;
+            case "customer.subscription.deleted":
+              // handle subscription cancelled automatically based
+              // upon your subscription settings. Or if the user
+              // cancels it.
+              break;
+            default:
+            // Unhandled event type
+          }
+          eventDeduplicator.markProcessed(event.getId());
+        } finally {
+          eventDeduplicator.release(event.getId());
         }
 
         response.status(200);
@@ -534,4 +824,74 @@ public class Server {
       }
     );
   }
+  // A price name the registry doesn't know would only fail later, inside
+  // Stripe, so turn it away before making any calls.
+  private static String unknownPrice(Response response, String name) {
+    response.status(400);
+    Map<String, String> responseErrorMessage = new HashMap<>();
+    responseErrorMessage.put("message", "Unknown price: " + name);
+    Map<String, Object> responseError = new HashMap<>();
+    responseError.put("error", responseErrorMessage);
+    return gson.toJson(responseError);
+  }
+
+  private static CustomerUpdateParams defaultPaymentMethod(String paymentMethodId) {
+    return CustomerUpdateParams
+      .builder()
+      .setInvoiceSettings(
+        CustomerUpdateParams
+          .InvoiceSettings.builder()
+          .setDefaultPaymentMethod(paymentMethodId)
+          .build()
+      )
+      .build();
+  }
+
+  private static String setting(Dotenv dotenv, String name, String defaultValue) {
+    String value = dotenv.get(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+
+  private static PooledStripeHttpClient createStripeHttpClient(Dotenv dotenv, Metrics metrics) {
+    return new PooledStripeHttpClient(
+      Integer.parseInt(setting(dotenv, "STRIPE_HTTP_MAX_CONNECTIONS_PER_HOST", "64")),
+      Long.parseLong(setting(dotenv, "STRIPE_HTTP_CONNECT_TIMEOUT_MS", "30000")),
+      Long.parseLong(setting(dotenv, "STRIPE_HTTP_READ_TIMEOUT_MS", "80000")),
+      Long.parseLong(setting(dotenv, "STRIPE_HTTP_KEEP_ALIVE_MS", "60000")),
+      metrics
+    );
+  }
+
+  private static StripeCallScheduler createStripeCallScheduler(Dotenv dotenv, PooledStripeHttpClient stripeHttpClient) {
+    return new StripeCallScheduler(
+      stripeHttpClient,
+      Double.parseDouble(setting(dotenv, "STRIPE_READ_RATE", "100")),
+      Double.parseDouble(setting(dotenv, "STRIPE_WRITE_RATE", "100")),
+      Integer.parseInt(setting(dotenv, "STRIPE_MAX_CONCURRENCY", setting(dotenv, "STRIPE_HTTP_MAX_CONNECTIONS_PER_HOST", "64"))),
+      Long.parseLong(setting(dotenv, "STRIPE_QUEUE_TIMEOUT_MS", "10000"))
+    );
+  }
+
+  private static EventDeduplicator createEventDeduplicator(Dotenv dotenv) {
+    try {
+      return new EventDeduplicator(
+        Paths.get(setting(dotenv, "WEBHOOK_DEDUPE_DIR", "webhook-dedupe")),
+        Integer.parseInt(setting(dotenv, "WEBHOOK_DEDUPE_RECENT", "10000")),
+        TimeUnit.HOURS.toMillis(Long.parseLong(setting(dotenv, "WEBHOOK_DEDUPE_WINDOW_HOURS", "72"))),
+        Integer.parseInt(setting(dotenv, "WEBHOOK_DEDUPE_SLOTS", "1048576"))
+      );
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static StaticAssets startStaticAssets(Path staticDir) {
+    try {
+      StaticAssets staticAssets = new StaticAssets(staticDir);
+      staticAssets.watch();
+      return staticAssets;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 }
@@ -0,0 +1,374 @@
+package com.stripe.sample;
+
+import static spark.Spark.afterAfter;
+import static spark.Spark.before;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.ApiResource;
+import com.stripe.net.HttpClient;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Sits in front of the HTTP client so that every Stripe call waits its turn,
+// instead of a burst of webhooks and user traffic running into Stripe's rate
+// limits together.
+//
+// A call may start when:
+//
+// - a token is available in its bucket. Reads (GET) and writes (POST and
+//   DELETE) have separate buckets, refilled at `readRate` and `writeRate` per
+//   second, because Stripe limits them separately.
+// - fewer than the concurrency limit are in flight. The limit adapts:
+//   it is halved when Stripe answers 429, cut by a tenth when recent latency
+//   climbs to LATENCY_TOLERANCE times its long-run average, and otherwise grows
+//   by about one per limit's worth of successful calls, up to `maxConcurrency`.
+// - no call of a higher priority is waiting. Route handlers are INTERACTIVE,
+//   webhook handling is WEBHOOK, and anything on a background thread (usage
+//   reporting, backfills, refreshes) is BACKGROUND; within a class calls go
+//   in order.
+//
+// A call that waits longer than `queueTimeoutMillis` fails with an
+// ApiConnectionException without being sent. Queue times for each class are
+// on `/stats` and `/metrics`.
+//
+// Meter events, sent one at a time or through the meter event stream, are
+// passed straight through: Stripe limits them separately, at far higher
+// rates than the rest of the API, so a busy meter must not use up the write
+// bucket.
+public class StripeCallScheduler extends HttpClient {
+  private static final double LATENCY_TOLERANCE = 2.0;
+  private static final double SHORT_WEIGHT = 0.1;
+  private static final double LONG_WEIGHT = 0.01;
+  private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final String[] METER_EVENT_PATHS = {
+    "/v1/billing/meter_events", "/v2/billing/meter_events", "/v2/billing/meter_event_stream"
+  };
+
+  public enum Priority {
+    INTERACTIVE,
+    WEBHOOK,
+    BACKGROUND;
+
+    private static final Priority[] VALUES = values();
+
+    String label() {
+      return name().toLowerCase();
+    }
+  }
+
+  private static final ThreadLocal<Priority> PRIORITY = ThreadLocal.withInitial(() -> Priority.INTERACTIVE);
+
+  // Stripe calls made on this thread from now on are scheduled at
+  // `priority`.
+  public static void setPriority(Priority priority) {
+    PRIORITY.set(priority);
+  }
+
+  // For thread factories: runs `task` with its Stripe calls at `priority`.
+  public static Runnable withPriority(Priority priority, Runnable task) {
+    return () -> {
+      setPriority(priority);
+      task.run();
+    };
+  }
+
+  static final class TokenBucket {
+    private final double rate;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    TokenBucket(double rate) {
+      this.rate = rate;
+      this.tokens = rate;
+    }
+
+    boolean available(long now) {
+      tokens = Math.min(rate, tokens + (now - refilledAt) / 1e9 * rate);
+      refilledAt = now;
+      return tokens >= 1;
+    }
+
+    // As of the last call to `available`.
+    boolean available() {
+      return tokens >= 1;
+    }
+
+    void take() {
+      tokens--;
+    }
+
+    // After a 429 the next call waits a full refill interval.
+    void drain() {
+      tokens = 0;
+    }
+
+    long nanosUntilToken() {
+      return (long) Math.ceil((1 - tokens) / rate * 1e9);
+    }
+  }
+
+  static final class Waiter {
+    final boolean write;
+    final long enqueued;
+
+    Waiter(boolean write, long enqueued) {
+      this.write = write;
+      this.enqueued = enqueued;
+    }
+  }
+
+  // The calls of one priority waiting for their turn.
+  static final class Queues {
+    final ArrayDeque<Waiter> reads = new ArrayDeque<>();
+    final ArrayDeque<Waiter> writes = new ArrayDeque<>();
+
+    ArrayDeque<Waiter> of(boolean write) {
+      return write ? writes : reads;
+    }
+  }
+
+  private final HttpClient delegate;
+  private final int maxConcurrency;
+  private final long queueTimeoutNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final TokenBucket reads;
+  private final TokenBucket writes;
+  private final Queues[] queues = new Queues[Priority.VALUES.length];
+  private double limit;
+  private int inFlight;
+  private double shortLatency;
+  private double longLatency;
+  private long lastDecrease;
+
+  private final Histogram[] queueTimes = new Histogram[Priority.VALUES.length];
+  private final LongAdder[] calls = new LongAdder[Priority.VALUES.length];
+  private final LongAdder[] timeouts = new LongAdder[Priority.VALUES.length];
+  private final LongAdder rateLimited = new LongAdder();
+  private final LongAdder latencyDecreases = new LongAdder();
+  private final LongAdder meterEventCalls = new LongAdder();
+
+  public StripeCallScheduler(
+    HttpClient delegate,
+    double readRate,
+    double writeRate,
+    int maxConcurrency,
+    long queueTimeoutMillis
+  ) {
+    this.delegate = delegate;
+    this.reads = new TokenBucket(readRate);
+    this.writes = new TokenBucket(writeRate);
+    this.maxConcurrency = maxConcurrency;
+    this.limit = maxConcurrency;
+    this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    for (int i = 0; i < Priority.VALUES.length; i++) {
+      queues[i] = new Queues();
+      queueTimes[i] = new Histogram();
+      calls[i] = new LongAdder();
+      timeouts[i] = new LongAdder();
+    }
+  }
+
+  // Marks `/webhook` handling as WEBHOOK work. Must be called before the
+  // first route is defined, as for RouteThreads.
+  public void install(Metrics metrics) {
+    before("/webhook", (request, response) -> setPriority(Priority.WEBHOOK));
+    afterAfter((request, response) -> setPriority(Priority.INTERACTIVE));
+    for (Priority priority : Priority.VALUES) {
+      metrics.register(
+        "stripe_queue_duration_seconds",
+        "Time Stripe calls waited for the scheduler, by priority.",
+        "priority=\"" + priority.label() + "\"",
+        queueTimes[priority.ordinal()]
+      );
+    }
+  }
+
+  @Override
+  public StripeResponse request(StripeRequest request) throws StripeException {
+    if (isMeterEvent(request.url().getPath())) {
+      meterEventCalls.increment();
+      return delegate.request(request);
+    }
+    boolean write = request.method() != ApiResource.RequestMethod.GET;
+    Priority priority = PRIORITY.get();
+    acquire(write, priority);
+    long started = System.nanoTime();
+    StripeResponse response = null;
+    try {
+      response = delegate.request(request);
+      return response;
+    } finally {
+      release(write, response == null ? 0 : response.code(), System.nanoTime() - started);
+    }
+  }
+
+  private static boolean isMeterEvent(String path) {
+    for (String meterEventPath : METER_EVENT_PATHS) {
+      if (meterEventPath.equals(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void acquire(boolean write, Priority priority) throws ApiConnectionException {
+    long enqueued = System.nanoTime();
+    Waiter waiter = new Waiter(write, enqueued);
+    ArrayDeque<Waiter> queue = queues[priority.ordinal()].of(write);
+    lock.lock();
+    try {
+      queue.addLast(waiter);
+      while (true) {
+        long now = System.nanoTime();
+        Waiter next = next(now);
+        TokenBucket bucket = write ? writes : reads;
+        if (next == waiter && bucket.available() && inFlight < (int) limit) {
+          queue.removeFirst();
+          bucket.take();
+          inFlight++;
+          queueTimes[priority.ordinal()].record(now - enqueued);
+          calls[priority.ordinal()].increment();
+          // Someone else may be able to go too.
+          changed.signalAll();
+          return;
+        }
+        long remaining = enqueued + queueTimeoutNanos - now;
+        if (remaining <= 0) {
+          queue.remove(waiter);
+          timeouts[priority.ordinal()].increment();
+          changed.signalAll();
+          throw new ApiConnectionException(
+            String.format(
+              "Gave up after waiting %d ms to call Stripe (%s, %d in flight, limit %d)",
+              TimeUnit.NANOSECONDS.toMillis(now - enqueued),
+              priority.label(),
+              inFlight,
+              (int) limit
+            )
+          );
+        }
+        // Releases and new arrivals signal. An empty bucket refills on its
+        // own, so the head of the line waits for that too; when it has a token
+        // and only the concurrency limit holds it back, a release will wake it.
+        long wait = remaining;
+        if (next == waiter && !bucket.available()) {
+          wait = Math.min(remaining, Math.max(bucket.nanosUntilToken(), TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+        changed.awaitNanos(wait);
+      }
+    } catch (InterruptedException e) {
+      queue.remove(waiter);
+      changed.signalAll();
+      Thread.currentThread().interrupt();
+      throw new ApiConnectionException("Interrupted while waiting to call Stripe", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // The call that goes next: the oldest call of the highest priority whose
+  // bucket has a token or, if no bucket has one, the oldest call of the
+  // highest priority, which then waits for its bucket to refill.
+  private Waiter next(long now) {
+    boolean readable = reads.available(now);
+    boolean writable = writes.available(now);
+    Waiter first = null;
+    for (Queues byKind : queues) {
+      Waiter read = byKind.reads.peekFirst();
+      Waiter write = byKind.writes.peekFirst();
+      Waiter ready = older(readable ? read : null, writable ? write : null);
+      if (ready != null) {
+        return ready;
+      }
+      if (first == null) {
+        first = older(read, write);
+      }
+    }
+    return first;
+  }
+
+  private static Waiter older(Waiter a, Waiter b) {
+    if (a == null) {
+      return b;
+    }
+    return b == null || a.enqueued <= b.enqueued ? a : b;
+  }
+
+  private void release(boolean write, int status, long latencyNanos) {
+    lock.lock();
+    try {
+      inFlight--;
+      long now = System.nanoTime();
+      if (status == 429) {
+        rateLimited.increment();
+        (write ? writes : reads).drain();
+        decrease(now, 0.5);
+      } else if (status != 0) {
+        shortLatency = shortLatency == 0 ? latencyNanos : shortLatency + SHORT_WEIGHT * (latencyNanos - shortLatency);
+        longLatency = longLatency == 0 ? latencyNanos : longLatency + LONG_WEIGHT * (latencyNanos - longLatency);
+        if (shortLatency > longLatency * LATENCY_TOLERANCE) {
+          if (decrease(now, 0.9)) {
+            latencyDecreases.increment();
+          }
+        } else {
+          limit = Math.min(maxConcurrency, limit + 1 / limit);
+        }
+      }
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Calls already in flight when the limit drops report the same problem,
+  // so the limit drops at most once a second.
+  private boolean decrease(long now, double factor) {
+    if (now - lastDecrease < DECREASE_INTERVAL_NANOS) {
+      return false;
+    }
+    lastDecrease = now;
+    limit = Math.max(1, limit * factor);
+    return true;
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    lock.lock();
+    try {
+      stats.put("limit", (int) limit);
+      stats.put("inFlight", inFlight);
+      stats.put("recentLatencyMillis", shortLatency / 1e6);
+      stats.put("averageLatencyMillis", longLatency / 1e6);
+      Map<String, Object> priorities = new HashMap<>();
+      for (Priority priority : Priority.VALUES) {
+        int i = priority.ordinal();
+        Map<String, Object> stat = new HashMap<>();
+        stat.put("queued", queues[i].reads.size() + queues[i].writes.size());
+        stat.put("calls", calls[i].sum());
+        stat.put("timeouts", timeouts[i].sum());
+        stat.put("queueMillisP50", queueTimes[i].percentile(50) / 1e6);
+        stat.put("queueMillisP99", queueTimes[i].percentile(99) / 1e6);
+        stat.put("queueMillisMax", queueTimes[i].percentile(100) / 1e6);
+        priorities.put(priority.label(), stat);
+      }
+      stats.put("priorities", priorities);
+    } finally {
+      lock.unlock();
+    }
+    stats.put("rateLimited", rateLimited.sum());
+    stats.put("latencyDecreases", latencyDecreases.sum());
+    stats.put("meterEventCalls", meterEventCalls.sum());
+    return stats;
+  }
+}
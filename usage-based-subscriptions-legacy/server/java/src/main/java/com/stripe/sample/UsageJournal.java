@@ -0,0 +1,361 @@
+package com.stripe.sample;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+// An append-only journal of usage that has been accepted but not yet
+// confirmed by Stripe, so a crash between acknowledging a request and
+// reporting it doesn't lose billable usage.
+//
+// Each accepted event is appended before it is acknowledged and marked as
+// committed once Stripe has it. On startup, `recover` returns the events that
+// were never committed so they can be sent again; they keep their original
+// identifiers, so Stripe drops any that did get through.
+//
+// The journal is a series of memory-mapped segment files. Writes land in the
+// page cache (and so survive the process dying) as soon as they are appended;
+// the sync mode decides when they are forced to disk:
+//
+// - `every`: each append is forced before it returns.
+// - `group`: appenders wait for a background thread that forces everything
+//   appended so far in one go, so many concurrent events share one fsync.
+// - `interval`: the background thread forces every `syncIntervalMillis`, and
+//   appenders don't wait.
+//
+// A segment is deleted once it and every older segment have no uncommitted
+// events left.
+public class UsageJournal {
+  public enum SyncMode { EVERY, GROUP, INTERVAL }
+
+  private static final byte APPEND = 1;
+  private static final byte COMMIT = 2;
+  // Record length (4 bytes) and CRC32 of the body (4 bytes).
+  private static final int RECORD_HEADER_BYTES = 8;
+
+  public static final class Entry {
+    public final long id;
+    public final String[] fields;
+
+    Entry(long id, String[] fields) {
+      this.id = id;
+      this.fields = fields;
+    }
+  }
+
+  private static final class Segment {
+    final long sequence;
+    final Path file;
+    final MappedByteBuffer buffer;
+    int uncommitted;
+
+    Segment(long sequence, Path file, MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  private final Path dir;
+  private final int segmentBytes;
+  private final SyncMode syncMode;
+  private final long syncIntervalMillis;
+  private final TreeMap<Long, Segment> segments = new TreeMap<>();
+  private final CRC32 crc = new CRC32();
+  private Segment current;
+
+  // Records appended so far, and how many of them are known to be on disk.
+  private long appended;
+  private long durable;
+  private boolean syncerIdle;
+  // Segments written since the last sync; usually just the current one.
+  private List<Segment> unsynced = new ArrayList<>();
+
+  private final LongAdder events = new LongAdder();
+  private final LongAdder commits = new LongAdder();
+  private final LongAdder syncs = new LongAdder();
+  private final LongAdder replayed = new LongAdder();
+
+  public UsageJournal(Path dir, int segmentBytes, SyncMode syncMode, long syncIntervalMillis) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.syncMode = syncMode;
+    this.syncIntervalMillis = syncIntervalMillis;
+    Files.createDirectories(dir);
+  }
+
+  // Reads the existing segments and returns the events that were never
+  // committed, oldest first. Call once, before the first append; pass each
+  // returned entry's id to `commit` once it has been sent.
+  public synchronized List<Entry> recover() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "usage-*.log")) {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    }
+    files.sort(null);
+
+    Map<Long, Entry> pending = new LinkedHashMap<>();
+    long nextSequence = 0;
+    for (Path file : files) {
+      long sequence = Long.parseLong(file.getFileName().toString().replaceAll("\\D", ""));
+      Segment segment = new Segment(sequence, file, map(file, Files.size(file)));
+      segments.put(sequence, segment);
+      read(segment, pending);
+      nextSequence = sequence + 1;
+    }
+    for (Entry entry : pending.values()) {
+      segments.get(entry.id >>> 32).uncommitted++;
+    }
+    replayed.add(pending.size());
+    // Never append to a segment from an earlier run: its tail may be torn.
+    current = newSegment(nextSequence);
+    deleteCommittedSegments();
+
+    Thread syncer = new Thread(this::syncLoop, "usage-journal-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+    return new ArrayList<>(pending.values());
+  }
+
+  // Appends an event (any number of fields, which may be null) and returns
+  // its id. With the `every` and `group` modes
+  // the event is on disk when this returns.
+  public long append(String... fields) throws IOException {
+    byte[][] encoded = new byte[fields.length][];
+    int bodyBytes = 1 + 2;
+    for (int i = 0; i < fields.length; i++) {
+      encoded[i] = fields[i] == null ? null : fields[i].getBytes(StandardCharsets.UTF_8);
+      bodyBytes += 4 + (encoded[i] == null ? 0 : encoded[i].length);
+    }
+    ByteBuffer body = ByteBuffer.allocate(bodyBytes);
+    body.put(APPEND);
+    body.putShort((short) fields.length);
+    for (byte[] field : encoded) {
+      if (field == null) {
+        body.putInt(-1);
+      } else {
+        body.putInt(field.length);
+        body.put(field);
+      }
+    }
+
+    long id;
+    long record;
+    synchronized (this) {
+      id = write(body.array());
+      current.uncommitted++;
+      events.increment();
+      record = appended;
+      if (syncMode == SyncMode.EVERY) {
+        current.buffer.force();
+        syncs.increment();
+        durable = appended;
+        return id;
+      }
+    }
+    if (syncMode == SyncMode.GROUP) {
+      awaitDurable(record);
+    }
+    return id;
+  }
+
+  // Marks an event as sent. Commit records aren't forced to disk: if one is
+  // lost, the event is sent again after a restart and Stripe ignores it.
+  public synchronized void commit(long id) {
+    Segment segment = segments.get(id >>> 32);
+    if (segment == null) {
+      return;
+    }
+    ByteBuffer body = ByteBuffer.allocate(1 + 8);
+    body.put(COMMIT);
+    body.putLong(id);
+    try {
+      write(body.array());
+      segment.uncommitted--;
+      commits.increment();
+      deleteCommittedSegments();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public synchronized Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long uncommitted = 0;
+    for (Segment segment : segments.values()) {
+      uncommitted += segment.uncommitted;
+    }
+    stats.put("syncMode", syncMode.name().toLowerCase());
+    stats.put("events", events.sum());
+    stats.put("commits", commits.sum());
+    stats.put("uncommitted", uncommitted);
+    stats.put("replayed", replayed.sum());
+    stats.put("segments", segments.size());
+    stats.put("syncs", syncs.sum());
+    stats.put("eventsPerSync", syncs.sum() == 0 ? 0.0 : (double) events.sum() / syncs.sum());
+    return stats;
+  }
+
+  private long write(byte[] body) throws IOException {
+    if (current.buffer.remaining() < RECORD_HEADER_BYTES + body.length) {
+      if (RECORD_HEADER_BYTES + body.length > segmentBytes) {
+        throw new IOException("usage event of " + body.length + " bytes doesn't fit in a journal segment");
+      }
+      current = newSegment(current.sequence + 1);
+    }
+    int offset = current.buffer.position();
+    crc.reset();
+    crc.update(body, 0, body.length);
+    current.buffer.putInt(body.length);
+    current.buffer.putInt((int) crc.getValue());
+    current.buffer.put(body);
+    appended++;
+    if (syncerIdle) {
+      // Only wake the sync thread when it has nothing to do; otherwise it
+      // picks this record up after the sync in progress.
+      notifyAll();
+    }
+    return current.sequence << 32 | offset;
+  }
+
+  private Segment newSegment(long sequence) throws IOException {
+    Path file = dir.resolve(String.format("usage-%019d.log", sequence));
+    Segment segment = new Segment(sequence, file, map(file, segmentBytes));
+    segments.put(sequence, segment);
+    unsynced.add(segment);
+    return segment;
+  }
+
+  private MappedByteBuffer map(Path file, long size) throws IOException {
+    try (FileChannel channel = FileChannel.open(
+      file,
+      StandardOpenOption.CREATE,
+      StandardOpenOption.READ,
+      StandardOpenOption.WRITE
+    )) {
+      // The mapping stays valid after the channel is closed.
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  // Reads records until the end of what was written: a zero length, or a
+  // record cut short or corrupted by a crash.
+  private void read(Segment segment, Map<Long, Entry> pending) {
+    ByteBuffer buffer = segment.buffer.duplicate();
+    CRC32 check = new CRC32();
+    while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+      int offset = buffer.position();
+      int length = buffer.getInt();
+      int expectedCrc = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining()) {
+        break;
+      }
+      byte[] body = new byte[length];
+      buffer.get(body);
+      check.reset();
+      check.update(body, 0, length);
+      if ((int) check.getValue() != expectedCrc) {
+        break;
+      }
+      try {
+        ByteBuffer record = ByteBuffer.wrap(body);
+        byte type = record.get();
+        if (type == APPEND) {
+          String[] fields = new String[record.getShort()];
+          for (int i = 0; i < fields.length; i++) {
+            int fieldLength = record.getInt();
+            if (fieldLength >= 0) {
+              byte[] field = new byte[fieldLength];
+              record.get(field);
+              fields[i] = new String(field, StandardCharsets.UTF_8);
+            }
+          }
+          long id = segment.sequence << 32 | offset;
+          pending.put(id, new Entry(id, fields));
+        } else if (type == COMMIT) {
+          pending.remove(record.getLong());
+        }
+      } catch (BufferUnderflowException e) {
+        break;
+      }
+    }
+  }
+
+  private void deleteCommittedSegments() throws IOException {
+    while (segments.size() > 1) {
+      Segment oldest = segments.firstEntry().getValue();
+      if (oldest == current || oldest.uncommitted > 0) {
+        return;
+      }
+      segments.remove(oldest.sequence);
+      Files.deleteIfExists(oldest.file);
+    }
+  }
+
+  private synchronized void awaitDurable(long record) {
+    boolean interrupted = false;
+    while (durable < record) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void syncLoop() {
+    while (true) {
+      List<Segment> toSync;
+      long target;
+      try {
+        if (syncMode == SyncMode.INTERVAL) {
+          Thread.sleep(syncIntervalMillis);
+        }
+        synchronized (this) {
+          while (durable == appended) {
+            syncerIdle = true;
+            wait();
+          }
+          syncerIdle = false;
+          target = appended;
+          toSync = unsynced;
+          unsynced = new ArrayList<>();
+          unsynced.add(current);
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+      // Forced outside the lock, so appends carry on meanwhile and are picked
+      // up by the next sync.
+      for (Segment segment : toSync) {
+        segment.buffer.force();
+      }
+      syncs.increment();
+      synchronized (this) {
+        durable = target;
+        notifyAll();
+      }
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.stripe.sample;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+// A Jetty thread pool that runs every task on a new virtual thread. See
+// RouteThreads; this is only compiled by the `java21` profile.
+//
+// A virtual thread that blocks while holding a monitor (a `synchronized`
+// block) or inside native code stays pinned to its carrier thread. Pinning
+// that lasts longer than `pinnedThresholdMillis` is reported by the JDK as a
+// `jdk.VirtualThreadPinned` flight recorder event; those events are counted
+// here, along with the first frame of our own code (or of a library) they
+// happened in.
+public class VirtualThreadPool implements RouteThreads.StatsThreadPool {
+  private static final int MAX_PINNED_SITES = 20;
+
+  private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+    Thread.ofVirtual().name("route-", 0).factory()
+  );
+
+  private final LongAdder started = new LongAdder();
+  private final LongAdder finished = new LongAdder();
+  private final LongAdder pinned = new LongAdder();
+  private final LongAdder pinnedNanos = new LongAdder();
+  private final Map<String, LongAdder> pinnedSites = new ConcurrentHashMap<>();
+
+  public VirtualThreadPool(long pinnedThresholdMillis) {
+    RecordingStream pinning = new RecordingStream();
+    pinning.enable("jdk.VirtualThreadPinned")
+      .withThreshold(Duration.ofMillis(pinnedThresholdMillis))
+      .withStackTrace();
+    pinning.onEvent("jdk.VirtualThreadPinned", this::onPinned);
+    pinning.startAsync();
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    started.increment();
+    executor.execute(() -> {
+      try {
+        task.run();
+      } finally {
+        finished.increment();
+      }
+    });
+  }
+
+  @Override
+  public void join() throws InterruptedException {
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+  }
+
+  @Override
+  public int getThreads() {
+    return (int) (started.sum() - finished.sum());
+  }
+
+  @Override
+  public int getIdleThreads() {
+    return 0;
+  }
+
+  @Override
+  public boolean isLowOnThreads() {
+    return false;
+  }
+
+  @Override
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    Map<String, Long> sites = new HashMap<>();
+    for (Map.Entry<String, LongAdder> site : pinnedSites.entrySet()) {
+      sites.put(site.getKey(), site.getValue().sum());
+    }
+    stats.put("virtualThreads", getThreads());
+    stats.put("virtualThreadsStarted", started.sum());
+    stats.put("pinned", pinned.sum());
+    stats.put("pinnedMillis", TimeUnit.NANOSECONDS.toMillis(pinnedNanos.sum()));
+    stats.put("pinnedAt", sites);
+    return stats;
+  }
+
+  private void onPinned(RecordedEvent event) {
+    pinned.increment();
+    pinnedNanos.add(event.getDuration().toNanos());
+    String site = site(event);
+    LongAdder count = pinnedSites.get(site);
+    if (count == null && pinnedSites.size() < MAX_PINNED_SITES) {
+      count = pinnedSites.computeIfAbsent(site, key -> new LongAdder());
+    }
+    if (count != null) {
+      count.increment();
+    }
+  }
+
+  // The first frame outside the JDK, which is usually the `synchronized`
+  // block or native call responsible.
+  private static String site(RecordedEvent event) {
+    if (event.getStackTrace() == null) {
+      return "unknown";
+    }
+    for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+      String type = frame.getMethod().getType().getName();
+      if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+        return type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+      }
+    }
+    return "unknown";
+  }
+}
@@ -0,0 +1,60 @@
+package com.stripe.sample;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures how many events per second eight request threads can add to the
+// aggregator, with every thread hitting one customer (worst case for lock
+// contention) or spread over many customers. The window is never flushed
+// during a run, so this is the cost of `add` alone.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class MeterEventAggregatorBenchmark {
+  @Param({"1", "10000"})
+  int customers;
+
+  @Param({"1", "64"})
+  int stripes;
+
+  private MeterEventAggregator aggregator;
+  private String[] customerIds;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    aggregator = new MeterEventAggregator(
+      stripes,
+      TimeUnit.DAYS.toMillis(1),
+      total -> { }
+    );
+    aggregator.register("api_requests");
+    customerIds = new String[customers];
+    for (int i = 0; i < customers; i++) {
+      customerIds[i] = String.format("cus_%014d", i);
+    }
+  }
+
+  @Benchmark
+  public boolean add() {
+    String customerId = customerIds[ThreadLocalRandom.current().nextInt(customerIds.length)];
+    return aggregator.add("api_requests", customerId, "1", -1);
+  }
+}
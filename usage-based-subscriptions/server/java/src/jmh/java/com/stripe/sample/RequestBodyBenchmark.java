@@ -0,0 +1,112 @@
+package com.stripe.sample;
+
+import com.google.gson.Gson;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing each route's request body: with a plain Gson from a String, as
+// Server used to, and with the route's RequestBodies reader straight from the
+// body's bytes, as it does now. `createMeterEventBodyFromBytes` adds the
+// String decoding `request.body()` did before Gson ever saw it, which is the
+// whole of what the busiest route used to pay.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBodyBenchmark {
+  private final Gson gson = new Gson();
+
+  private final String createCustomer =
+    "{\"name\":\"Jenny Rosen\",\"email\":\"jenny.rosen@example.com\"}";
+  private final String createMeter =
+    "{\"displayName\":\"API requests\",\"eventName\":\"api_requests\",\"aggregationFormula\":\"sum\"}";
+  private final String createPrice =
+    "{\"currency\":\"usd\",\"amount\":5,\"meterId\":\"mtr_61QhFgA1b2C3d4E5\",\"productName\":\"API access\"}";
+  private final String createSubscription =
+    "{\"customerId\":\"cus_QXk2BfnLk4n7Zp\",\"priceId\":\"price_1PqG0aL6xYkR0aBcMetered\"}";
+  private final String createMeterEvent =
+    "{\"eventName\":\"api_requests\",\"customerId\":\"cus_QXk2BfnLk4n7Zp\",\"value\":\"25\"}";
+
+  private final byte[] createCustomerBytes = createCustomer.getBytes(StandardCharsets.UTF_8);
+  private final byte[] createMeterBytes = createMeter.getBytes(StandardCharsets.UTF_8);
+  private final byte[] createPriceBytes = createPrice.getBytes(StandardCharsets.UTF_8);
+  private final byte[] createSubscriptionBytes = createSubscription.getBytes(StandardCharsets.UTF_8);
+  private final byte[] createMeterEventBytes = createMeterEvent.getBytes(StandardCharsets.UTF_8);
+
+  @Benchmark
+  public Object createCustomerBody() {
+    return gson.fromJson(createCustomer, Server.CreateCustomerBody.class);
+  }
+
+  @Benchmark
+  public Object createMeterBody() {
+    return gson.fromJson(createMeter, Server.CreateMeterBody.class);
+  }
+
+  @Benchmark
+  public Object createPriceBody() {
+    return gson.fromJson(createPrice, Server.CreatePriceBody.class);
+  }
+
+  @Benchmark
+  public Object createSubscriptionBody() {
+    return gson.fromJson(createSubscription, Server.CreateSubscriptionBody.class);
+  }
+
+  @Benchmark
+  public Object createMeterEventBody() {
+    return gson.fromJson(createMeterEvent, Server.CreateMeterEventBody.class);
+  }
+
+  @Benchmark
+  public Object createMeterEventBodyFromBytes() {
+    return gson.fromJson(
+      new String(createMeterEventBytes, StandardCharsets.UTF_8),
+      Server.CreateMeterEventBody.class
+    );
+  }
+
+  @Benchmark
+  public Object createCustomerBodyStreaming() throws IOException {
+    return parse(createCustomerBytes, Server.CreateCustomerBody.READER);
+  }
+
+  @Benchmark
+  public Object createMeterBodyStreaming() throws IOException {
+    return parse(createMeterBytes, Server.CreateMeterBody.READER);
+  }
+
+  @Benchmark
+  public Object createPriceBodyStreaming() throws IOException {
+    return parse(createPriceBytes, Server.CreatePriceBody.READER);
+  }
+
+  @Benchmark
+  public Object createSubscriptionBodyStreaming() throws IOException {
+    return parse(createSubscriptionBytes, Server.CreateSubscriptionBody.READER);
+  }
+
+  @Benchmark
+  public Object createMeterEventBodyStreaming() throws IOException {
+    return parse(createMeterEventBytes, Server.CreateMeterEventBody.READER);
+  }
+
+  private static <T> T parse(byte[] body, RequestBodies.BodyReader<T> reader) throws IOException {
+    return RequestBodies.parse(new ByteArrayInputStream(body), body.length, reader);
+  }
+}
@@ -0,0 +1,73 @@
+package com.stripe.sample;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Events per second that 32 request threads can write to the usage journal
+// with each sync mode: `every` forces each event to disk on its own, `group`
+// shares one force among all the events that arrived while the previous one
+// ran, and `interval` doesn't wait for the disk at all. Run it on the disk
+// the server will use; the numbers depend almost entirely on fsync latency.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class UsageJournalBenchmark {
+  @Param({"every", "group", "interval"})
+  String syncMode;
+
+  private Path dir;
+  private UsageJournal journal;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("usage-journal-bench");
+    journal = new UsageJournal(
+      dir,
+      64 << 20,
+      UsageJournal.SyncMode.valueOf(syncMode.toUpperCase()),
+      100
+    );
+    journal.recover();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.walk(dir)
+      .sorted((a, b) -> b.compareTo(a))
+      .forEach(path -> path.toFile().delete());
+  }
+
+  @Benchmark
+  public long appendAndCommit() throws IOException {
+    long id = journal.append(
+      "api_requests",
+      "cus_QXk2BfnLk4n7Zp",
+      "1",
+      "5d1f8a3e-8c2b-4e0e-9f57-2b7f4c0a9d61",
+      "1718000000000"
+    );
+    journal.commit(id);
+    return id;
+  }
+}
@@ -0,0 +1,452 @@
+package com.stripe.sample;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import com.stripe.model.Subscription;
+import com.stripe.net.RequestOptions;
+import com.stripe.param.CustomerCreateParams;
+import com.stripe.param.SubscriptionCreateParams;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+// Creates a customer and a subscription for each row of a bulk job, up to
+// `concurrency` rows at a time, where onboarding an account through
+// `/create-customer` and `/create-subscription` takes two round trips per row,
+// one row after another.
+//
+// A job is NDJSON rows of `{"email", "name", "priceId"}`, read as they
+// arrive, and each row's result is written back as soon as it is done, so
+// results come out in completion order with the row's index. The workers'
+// Stripe calls are BACKGROUND priority, so the scheduler keeps a job within
+// the rate limits and behind the routes.
+//
+// Every row's calls carry idempotency keys derived from the job ID, the row's
+// index and its contents, and each step is recorded in a per-job file under
+// `dir`. Sending a job again with the same ID skips the rows that finished;
+// a row cut off part way is run again, and its keys make Stripe return what
+// it already created instead of creating it twice.
+//
+// A job's body is cut off after `maxBytes`: the rows read up to then still
+// run, and an error line comes before the summary.
+public class BulkProvisioner {
+  private static final Pattern JOB_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+  private static final Gson gson = new Gson();
+
+  static class Row {
+    static final RequestBodies.BodyReader<Row> READER = RequestBodies
+      .reader(Row::new)
+      .requiredString("email", (row, value) -> row.email = value)
+      .string("name", (row, value) -> row.name = value)
+      .requiredString("priceId", (row, value) -> row.priceId = value);
+
+    String email;
+    String name;
+    String priceId;
+  }
+
+  // The furthest a row got, from the job's file.
+  static final class Progress {
+    final String hash;
+    final String customerId;
+    final String subscriptionId;
+
+    Progress(String hash, String customerId, String subscriptionId) {
+      this.hash = hash;
+      this.customerId = customerId;
+      this.subscriptionId = subscriptionId;
+    }
+  }
+
+  public final class Job implements AutoCloseable {
+    private final String id;
+    private final Map<Integer, Progress> progress;
+    private final Writer journal;
+    private final Semaphore permits = new Semaphore(concurrency);
+    private final LongAdder created = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private Writer out;
+    private volatile boolean clientGone;
+
+    Job(String id, Map<Integer, Progress> progress, Writer journal) {
+      this.id = id;
+      this.progress = progress;
+      this.journal = journal;
+    }
+
+    // Reads rows from `body` until it ends, writing each row's result to
+    // `out` as it finishes and a summary once they all have.
+    public void run(InputStream body, Writer out) throws IOException {
+      this.out = out;
+      LimitedInputStream limited = new LimitedInputStream(body, maxBytes);
+      BufferedReader in = new BufferedReader(new InputStreamReader(limited, StandardCharsets.UTF_8));
+      int rows = 0;
+      String line;
+      try {
+        while ((line = in.readLine()) != null) {
+          if (limited.cutOff) {
+            // The start of a row that goes past the limit.
+            break;
+          }
+          if (line.trim().isEmpty()) {
+            continue;
+          }
+          int index = rows++;
+          permits.acquire();
+          Row row;
+          try {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            row = RequestBodies.parse(new ByteArrayInputStream(bytes), bytes.length, Row.READER);
+          } catch (RequestBodies.InvalidBodyException e) {
+            permits.release();
+            failed.increment();
+            failedRows.increment();
+            emit(result(index, null, null, null, "failed", e.getMessage()));
+            continue;
+          }
+          workers.execute(() -> {
+            try {
+              emit(provision(index, row));
+            } finally {
+              permits.release();
+            }
+          });
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while running bulk job " + id);
+      } finally {
+        // Wait for the rows still running, even if the body was cut off, so
+        // none of them is left writing to a closed journal.
+        permits.acquireUninterruptibly(concurrency);
+        permits.release(concurrency);
+      }
+
+      if (limited.cutOff) {
+        oversizedJobs.increment();
+        Map<String, String> message = Collections.singletonMap(
+          "message",
+          "The job is larger than " + maxBytes + " bytes; only its first " + rows + " rows were read"
+        );
+        emit(gson.toJson(Collections.singletonMap("error", message)));
+      }
+      Map<String, Object> summary = new LinkedHashMap<>();
+      summary.put("rows", rows);
+      summary.put("created", created.sum());
+      summary.put("resumed", resumed.sum());
+      summary.put("failed", failed.sum());
+      emit(gson.toJson(Collections.singletonMap("summary", summary)));
+    }
+
+    private String provision(int index, Row row) {
+      String hash = hash(id, index, row);
+      Progress done = progress.get(index);
+      if (done != null && !hash.equals(done.hash)) {
+        // The row changed since the last run; start it over.
+        done = null;
+      }
+      if (done != null && done.subscriptionId != null) {
+        resumed.increment();
+        return result(index, row.email, done.customerId, done.subscriptionId, "resumed", null);
+      }
+
+      rowsStarted.increment();
+      String customerId = done == null ? null : done.customerId;
+      try {
+        if (customerId == null) {
+          Customer customer = Customer.create(
+            CustomerCreateParams.builder().setEmail(row.email).setName(row.name).build(),
+            RequestOptions.builder().setIdempotencyKey("bulk-customer-" + hash).build()
+          );
+          customerId = customer.getId();
+          record(index, new Progress(hash, customerId, null));
+        }
+        Subscription subscription = Subscription.create(
+          SubscriptionCreateParams
+            .builder()
+            .setCustomer(customerId)
+            .addItem(SubscriptionCreateParams.Item.builder().setPrice(row.priceId).build())
+            .build(),
+          RequestOptions.builder().setIdempotencyKey("bulk-subscription-" + hash).build()
+        );
+        record(index, new Progress(hash, customerId, subscription.getId()));
+        created.increment();
+        createdRows.increment();
+        return result(index, row.email, customerId, subscription.getId(), "created", null);
+      } catch (StripeException | RuntimeException e) {
+        failed.increment();
+        failedRows.increment();
+        String message = e instanceof StripeException && ((StripeException) e).getStripeError() != null
+          ? ((StripeException) e).getStripeError().getMessage()
+          : e.getMessage();
+        return result(index, row.email, customerId, null, "failed", message);
+      }
+    }
+
+    private void record(int index, Progress step) {
+      progress.put(index, step);
+      JsonObject json = new JsonObject();
+      json.addProperty("row", index);
+      json.addProperty("hash", step.hash);
+      json.addProperty("customerId", step.customerId);
+      json.addProperty("subscriptionId", step.subscriptionId);
+      // Flushed to the OS, which is enough to survive the process dying. A
+      // record lost with the machine just means the row runs again with the
+      // same idempotency keys.
+      synchronized (journal) {
+        try {
+          journal.write(json.toString());
+          journal.write('\n');
+          journal.flush();
+        } catch (IOException e) {
+          journalFailures.increment();
+        }
+      }
+    }
+
+    private void emit(String result) {
+      if (clientGone) {
+        return;
+      }
+      synchronized (this) {
+        try {
+          out.write(result);
+          out.write('\n');
+          out.flush();
+        } catch (IOException e) {
+          // The rest of the job still runs and is recorded, so sending it
+          // again picks up the results.
+          clientGone = true;
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      running.remove(id);
+      synchronized (journal) {
+        journal.close();
+      }
+    }
+  }
+
+  // Ends the body after `limit` bytes, noting whether there was more, so the
+  // rows before the limit are still read whole.
+  static final class LimitedInputStream extends FilterInputStream {
+    private long remaining;
+    private boolean cutOff;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining == 0) {
+        return end();
+      }
+      int b = super.read();
+      if (b >= 0) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (remaining == 0) {
+        return end();
+      }
+      int read = super.read(bytes, offset, (int) Math.min(length, remaining));
+      if (read > 0) {
+        remaining -= read;
+      }
+      return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(super.available(), remaining);
+    }
+
+    private int end() throws IOException {
+      if (!cutOff && super.read() >= 0) {
+        cutOff = true;
+      }
+      return -1;
+    }
+  }
+
+  private final Path dir;
+  private final int concurrency;
+  private final long maxBytes;
+  private final ExecutorService workers;
+  private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+  private final LongAdder jobs = new LongAdder();
+  private final LongAdder rowsStarted = new LongAdder();
+  private final LongAdder createdRows = new LongAdder();
+  private final LongAdder failedRows = new LongAdder();
+  private final LongAdder journalFailures = new LongAdder();
+  private final LongAdder oversizedJobs = new LongAdder();
+
+  public BulkProvisioner(Path dir, int concurrency, long maxBytes) throws IOException {
+    this.dir = dir;
+    this.concurrency = concurrency;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(dir);
+    this.workers = Executors.newFixedThreadPool(concurrency, r -> {
+      Thread thread = new Thread(
+        StripeCallScheduler.withPriority(StripeCallScheduler.Priority.BACKGROUND, r),
+        "bulk-provision"
+      );
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public long maxBytes() {
+    return maxBytes;
+  }
+
+  public static boolean isValidJobId(String jobId) {
+    return jobId != null && JOB_ID.matcher(jobId).matches();
+  }
+
+  // Null if a job with this ID is already running.
+  public Job open(String jobId) throws IOException {
+    if (!running.add(jobId)) {
+      return null;
+    }
+    try {
+      Path file = dir.resolve(jobId + ".jsonl");
+      Map<Integer, Progress> progress = load(file);
+      Writer journal = Files.newBufferedWriter(
+        file,
+        StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND
+      );
+      jobs.increment();
+      return new Job(jobId, progress, journal);
+    } catch (IOException | RuntimeException e) {
+      running.remove(jobId);
+      throw e;
+    }
+  }
+
+  private static Map<Integer, Progress> load(Path file) throws IOException {
+    Map<Integer, Progress> progress = new ConcurrentHashMap<>();
+    if (!Files.exists(file)) {
+      return progress;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        try {
+          JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+          progress.put(
+            json.get("row").getAsInt(),
+            new Progress(
+              json.get("hash").getAsString(),
+              string(json, "customerId"),
+              string(json, "subscriptionId")
+            )
+          );
+        } catch (JsonSyntaxException | IllegalStateException | NullPointerException e) {
+          // The end of a record cut short by a crash.
+        }
+      }
+    }
+    return progress;
+  }
+
+  private static String string(JsonObject json, String name) {
+    return json.has(name) && !json.get(name).isJsonNull() ? json.get(name).getAsString() : null;
+  }
+
+  private static String result(
+    int index,
+    String email,
+    String customerId,
+    String subscriptionId,
+    String status,
+    String error
+  ) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("row", index);
+    result.put("status", status);
+    result.put("email", email);
+    result.put("customerId", customerId);
+    result.put("subscriptionId", subscriptionId);
+    if (error != null) {
+      result.put("error", error);
+    }
+    return gson.toJson(result);
+  }
+
+  // The same for the same row of the same job, and different if the row's
+  // contents change, since Stripe rejects a key reused with other parameters.
+  private static String hash(String jobId, int index, Row row) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      String input = jobId + "\n" + index + "\n" + row.email + "\n" + row.name + "\n" + row.priceId;
+      byte[] hash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < 16; i++) {
+        hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+        hex.append(Character.forDigit(hash[i] & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("jobs", jobs.sum());
+    stats.put("running", running.size());
+    stats.put("rowsStarted", rowsStarted.sum());
+    stats.put("rowsCreated", createdRows.sum());
+    stats.put("rowsFailed", failedRows.sum());
+    stats.put("journalFailures", journalFailures.sum());
+    stats.put("oversizedJobs", oversizedJobs.sum());
+    stats.put("concurrency", concurrency);
+    stats.put("maxBytes", maxBytes);
+    return stats;
+  }
+}
@@ -0,0 +1,148 @@
+package com.stripe.sample;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A compact on-disk set of event IDs, used to recognise redeliveries after a
+// restart. Each ID is stored as a 64-bit fingerprint in a memory-mapped
+// open-addressing hash table, so a lookup touches one or two slots no matter
+// how many IDs are stored.
+//
+// The index is kept in two files. New IDs go into the current one; once it is
+// half full the older file is cleared and becomes the current one. That keeps
+// disk use fixed at `2 * slots * 8` bytes while remembering at least the last
+// `slots / 2` IDs, which is plenty to cover Stripe's retry window.
+public class EventIdIndex {
+  private static final int HEADER_BYTES = 16;
+  private static final int SLOT_BYTES = 8;
+
+  private final int slots;
+  private final int mask;
+  private final Table[] tables = new Table[2];
+  private int current;
+
+  private static class Table {
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    long generation;
+    long count;
+
+    Table(FileChannel channel, MappedByteBuffer buffer) {
+      this.channel = channel;
+      this.buffer = buffer;
+      this.generation = buffer.getLong(0);
+      this.count = buffer.getLong(8);
+    }
+  }
+
+  // `slots` is rounded up to a power of two.
+  public EventIdIndex(Path dir, int slots) throws IOException {
+    this.slots = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+    this.mask = this.slots - 1;
+    Files.createDirectories(dir);
+    long size = HEADER_BYTES + (long) this.slots * SLOT_BYTES;
+    for (int i = 0; i < tables.length; i++) {
+      Path file = dir.resolve("event-ids-" + i + ".idx");
+      FileChannel channel = FileChannel.open(
+        file,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+      );
+      if (channel.size() != size) {
+        // New file, or one written with a different size: start it empty.
+        channel.truncate(0);
+      }
+      tables[i] = new Table(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+    current = tables[0].generation >= tables[1].generation ? 0 : 1;
+  }
+
+  public synchronized boolean contains(String eventId) {
+    long fingerprint = fingerprint(eventId);
+    return find(tables[current], fingerprint) || find(tables[1 - current], fingerprint);
+  }
+
+  public synchronized void add(String eventId) {
+    long fingerprint = fingerprint(eventId);
+    if (find(tables[current], fingerprint)) {
+      return;
+    }
+    if (tables[current].count >= slots / 2) {
+      rotate();
+    }
+    Table table = tables[current];
+    int slot = (int) fingerprint & mask;
+    while (table.buffer.getLong(offset(slot)) != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table.buffer.putLong(offset(slot), fingerprint);
+    table.count++;
+    table.buffer.putLong(8, table.count);
+  }
+
+  // Flushes the mapped pages to disk. The OS writes them back on its own even
+  // if the process dies, so this only matters for surviving a machine crash.
+  public synchronized void force() {
+    tables[0].buffer.force();
+    tables[1].buffer.force();
+  }
+
+  public synchronized void close() throws IOException {
+    force();
+    tables[0].channel.close();
+    tables[1].channel.close();
+  }
+
+  private boolean find(Table table, long fingerprint) {
+    int slot = (int) fingerprint & mask;
+    while (true) {
+      long stored = table.buffer.getLong(offset(slot));
+      if (stored == 0) {
+        return false;
+      }
+      if (stored == fingerprint) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void rotate() {
+    int next = 1 - current;
+    Table table = tables[next];
+    for (int i = 0; i < slots; i++) {
+      table.buffer.putLong(offset(i), 0);
+    }
+    table.generation = tables[current].generation + 1;
+    table.count = 0;
+    table.buffer.putLong(0, table.generation);
+    table.buffer.putLong(8, 0);
+    current = next;
+  }
+
+  private static int offset(int slot) {
+    return HEADER_BYTES + slot * SLOT_BYTES;
+  }
+
+  // 64-bit FNV-1a over the characters of the ID, followed by a finalizer so
+  // that the low bits used for the slot are well mixed. Zero marks an empty
+  // slot, so it is never returned.
+  static long fingerprint(String eventId) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < eventId.length(); i++) {
+      hash ^= eventId.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash == 0 ? 1 : hash;
+  }
+}
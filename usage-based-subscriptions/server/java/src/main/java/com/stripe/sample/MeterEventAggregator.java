@@ -0,0 +1,310 @@
+package com.stripe.sample;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Combines the many small meter events clients send for the same customer
+// and event name into one event per time window.
+//
+// This is only correct for meters that sum their values
+// (MeterCreateParams.DefaultAggregation.Formula.SUM): a COUNT meter counts
+// events, so it would count a combined event once. Event names are
+// registered explicitly, either from METER_AGGREGATION_EVENTS or when
+// `/create-meter` creates a SUM meter.
+//
+// Values are added into `long` sums held in a fixed number of stripes, each
+// with its own lock and open-addressing table, so concurrent requests for
+// different customers rarely wait on each other. At the end of each window
+// every stripe is swapped for an empty one and the sums are handed to the
+// sink, with an identifier derived from the key and window so a re-sent
+// window is deduplicated by Stripe.
+public class MeterEventAggregator {
+  // One key's total for a window.
+  public static final class Total {
+    public final String eventName;
+    public final String customerId;
+    public final long value;
+    public final Instant timestamp;
+    public final String identifier;
+    // The usage journal entries the total was made from (empty without a
+    // journal).
+    public final long[] journalIds;
+    // The journal's record of the total itself, if the sink wrote one.
+    public long windowId = -1;
+    private boolean recorded;
+
+    Total(String eventName, String customerId, long value, Instant timestamp, String identifier, long[] journalIds) {
+      this.eventName = eventName;
+      this.customerId = customerId;
+      this.value = value;
+      this.timestamp = timestamp;
+      this.identifier = identifier;
+      this.journalIds = journalIds;
+    }
+  }
+
+  public interface Sink {
+    // Called with all of a window's totals before any of them is emitted, so
+    // they can be journaled together.
+    default void record(List<Total> totals) {
+    }
+
+    // Throws if the total should be tried again at the next flush.
+    void emit(Total total);
+  }
+
+  private static final char SEPARATOR = '\u0000';
+  private static final long[] NO_IDS = new long[0];
+
+  private final Set<String> eventNames = ConcurrentHashMap.newKeySet();
+  private final Stripe[] stripes;
+  private final long windowMillis;
+  private final Sink sink;
+  private final ScheduledExecutorService flusher;
+  private volatile long windowStart;
+  // Totals that could not be journaled or sent, tried again at the next
+  // flush with the same identifier. Only the flusher thread touches it.
+  private final List<Total> retrying = new ArrayList<>();
+  private volatile int retryingCount;
+
+  private final LongAdder eventsIn = new LongAdder();
+  private final LongAdder eventsOut = new LongAdder();
+
+  // A small hash table from key to running sum, guarded by its own lock.
+  // When a usage journal is in use, the journal ids of the events behind each
+  // sum are kept alongside it.
+  static final class Stripe {
+    private String[] keys = new String[16];
+    private long[] sums = new long[16];
+    private long[][] ids = new long[16][];
+    private int[] idCounts = new int[16];
+    private int size;
+
+    synchronized void add(String key, int hash, long value, long journalId) {
+      int mask = keys.length - 1;
+      int slot = hash & mask;
+      while (keys[slot] != null && !keys[slot].equals(key)) {
+        slot = (slot + 1) & mask;
+      }
+      if (keys[slot] == null) {
+        keys[slot] = key;
+        size++;
+      }
+      sums[slot] += value;
+      if (journalId >= 0) {
+        if (ids[slot] == null) {
+          ids[slot] = new long[4];
+        } else if (idCounts[slot] == ids[slot].length) {
+          ids[slot] = Arrays.copyOf(ids[slot], idCounts[slot] * 2);
+        }
+        ids[slot][idCounts[slot]++] = journalId;
+      }
+      if (size * 2 > keys.length) {
+        resize();
+      }
+    }
+
+    long[] journalIds(int slot) {
+      return ids[slot] == null ? NO_IDS : Arrays.copyOf(ids[slot], idCounts[slot]);
+    }
+
+    // Hands back the current contents and starts over with an empty table.
+    synchronized Stripe drain() {
+      Stripe drained = new Stripe();
+      drained.keys = keys;
+      drained.sums = sums;
+      drained.ids = ids;
+      drained.idCounts = idCounts;
+      drained.size = size;
+      keys = new String[16];
+      sums = new long[16];
+      ids = new long[16][];
+      idCounts = new int[16];
+      size = 0;
+      return drained;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    private void resize() {
+      String[] oldKeys = keys;
+      long[] oldSums = sums;
+      long[][] oldIds = ids;
+      int[] oldIdCounts = idCounts;
+      keys = new String[oldKeys.length * 2];
+      sums = new long[oldKeys.length * 2];
+      ids = new long[oldKeys.length * 2][];
+      idCounts = new int[oldKeys.length * 2];
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != null) {
+          int slot = spread(oldKeys[i].hashCode()) & mask;
+          while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+          }
+          keys[slot] = oldKeys[i];
+          sums[slot] = oldSums[i];
+          ids[slot] = oldIds[i];
+          idCounts[slot] = oldIdCounts[i];
+        }
+      }
+    }
+  }
+
+  public MeterEventAggregator(int stripeCount, long windowMillis, Sink sink) {
+    this.stripes = new Stripe[Integer.highestOneBit(Math.max(stripeCount, 1) * 2 - 1)];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.windowMillis = windowMillis;
+    this.sink = sink;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(
+        StripeCallScheduler.withPriority(StripeCallScheduler.Priority.BACKGROUND, r),
+        "meter-event-aggregator"
+      );
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public void start() {
+    windowStart = System.currentTimeMillis();
+    flusher.scheduleAtFixedRate(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // Marks events with this name as safe to combine (a SUM meter).
+  public void register(String eventName) {
+    eventNames.add(eventName);
+  }
+
+  // Adds the event to the current window. Returns false, leaving the caller to
+  // send the event as is, when the event isn't for a registered SUM meter or
+  // its value isn't a whole number. `journalId` is the event's usage journal
+  // entry, or -1 without a journal.
+  public boolean add(String eventName, String customerId, String value, long journalId) {
+    if (eventName == null || customerId == null || !eventNames.contains(eventName)) {
+      return false;
+    }
+    long amount;
+    try {
+      amount = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    add(eventName + SEPARATOR + customerId, amount, journalId);
+    return true;
+  }
+
+  void add(String key, long amount, long journalId) {
+    int hash = spread(key.hashCode());
+    // Use the high bits for the stripe; the low bits pick the slot inside it.
+    stripes[(hash >>> 16) & (stripes.length - 1)].add(key, hash, amount, journalId);
+    eventsIn.increment();
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long in = eventsIn.sum();
+    long out = eventsOut.sum();
+    int pending = 0;
+    for (Stripe stripe : stripes) {
+      pending += stripe.size();
+    }
+    stats.put("eventNames", eventNames.size());
+    stats.put("eventsIn", in);
+    stats.put("eventsOut", out);
+    stats.put("pendingKeys", pending);
+    stats.put("retrying", retryingCount);
+    stats.put("reduction", out == 0 ? 0.0 : (double) in / out);
+    return stats;
+  }
+
+  // Emits one event per key for the window that just ended, after any totals
+  // from earlier windows that failed.
+  void flush() {
+    long start = windowStart;
+    windowStart = System.currentTimeMillis();
+    Instant timestamp = Instant.ofEpochMilli(start);
+    List<Total> totals = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      Stripe drained = stripe.drain();
+      for (int i = 0; i < drained.keys.length; i++) {
+        String key = drained.keys[i];
+        if (key == null) {
+          continue;
+        }
+        int separator = key.indexOf(SEPARATOR);
+        String identifier = UUID.nameUUIDFromBytes(
+          (key + SEPARATOR + start).getBytes(StandardCharsets.UTF_8)
+        ).toString();
+        totals.add(new Total(
+          key.substring(0, separator),
+          key.substring(separator + 1),
+          drained.sums[i],
+          timestamp,
+          identifier,
+          drained.journalIds(i)
+        ));
+      }
+    }
+    List<Total> due = new ArrayList<>(retrying);
+    due.addAll(totals);
+    retrying.clear();
+
+    List<Total> unrecorded = new ArrayList<>();
+    for (Total total : due) {
+      if (!total.recorded) {
+        unrecorded.add(total);
+      }
+    }
+    if (!unrecorded.isEmpty()) {
+      try {
+        sink.record(unrecorded);
+        for (Total total : unrecorded) {
+          total.recorded = true;
+        }
+      } catch (RuntimeException e) {
+        System.out.println(
+          "Could not journal " + unrecorded.size() + " aggregated meter events, retrying next window: " +
+          e.getMessage()
+        );
+      }
+    }
+    for (Total total : due) {
+      if (!total.recorded) {
+        retrying.add(total);
+        continue;
+      }
+      try {
+        sink.emit(total);
+        eventsOut.increment();
+      } catch (RuntimeException e) {
+        System.out.println(
+          "Could not send aggregated meter event " + total.identifier + ", retrying next window: " +
+          e.getMessage()
+        );
+        retrying.add(total);
+      }
+    }
+    retryingCount = retrying.size();
+  }
+
+  private static int spread(int hash) {
+    return (hash ^ (hash >>> 16)) * 0x9e3779b9;
+  }
+}
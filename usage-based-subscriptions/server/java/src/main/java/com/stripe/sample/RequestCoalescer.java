@@ -0,0 +1,152 @@
+package com.stripe.sample;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.RequestOptions;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Collapses repeated submissions of the same create request (a double click,
+// or a mobile client retrying after a timeout) into one Stripe call.
+//
+// Requests are identified by a key the route builds from what it would send
+// to Stripe, e.g. the email for `/create-customer`. A request whose key
+// matches a call still in flight waits for that call and gets its result; one
+// that arrives within `windowMillis` after the call finished gets the same
+// result straight away. Failures aren't kept, so the next attempt calls
+// Stripe again.
+//
+// Requests that reach another server, or this one after a restart, are
+// collapsed by Stripe instead: the call carries an idempotency key derived
+// from the key and the current window, so every server sends the same one.
+// Two submissions either side of a window boundary get different keys.
+public class RequestCoalescer<T> {
+  public interface Call<T> {
+    T call(RequestOptions options) throws StripeException;
+  }
+
+  static final class Entry<T> {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    volatile long completedAt;
+  }
+
+  private final String name;
+  private final long windowMillis;
+  private final int capacity;
+  private final ConcurrentHashMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder joinedInFlight = new LongAdder();
+  private final LongAdder completedHits = new LongAdder();
+
+  public RequestCoalescer(String name, long windowMillis, int capacity) {
+    this.name = name;
+    this.windowMillis = Math.max(1, windowMillis);
+    this.capacity = capacity;
+  }
+
+  public T execute(String key, Call<T> call) throws StripeException {
+    long now = System.currentTimeMillis();
+    Entry<T> entry = new Entry<>();
+    Entry<T> existing = entries.putIfAbsent(key, entry);
+    while (existing != null) {
+      if (!existing.result.isDone()) {
+        joinedInFlight.increment();
+        return await(existing);
+      }
+      if (now - existing.completedAt <= windowMillis) {
+        completedHits.increment();
+        return await(existing);
+      }
+      // Expired: take its place, unless another request just did.
+      if (entries.replace(key, existing, entry)) {
+        break;
+      }
+      existing = entries.putIfAbsent(key, entry);
+    }
+
+    calls.increment();
+    if (entries.size() > capacity) {
+      evictExpired(now);
+    }
+    try {
+      T result = call.call(
+        RequestOptions.builder().setIdempotencyKey(idempotencyKey(key, now)).build()
+      );
+      entry.completedAt = System.currentTimeMillis();
+      entry.result.complete(result);
+      return result;
+    } catch (StripeException | RuntimeException | Error e) {
+      entries.remove(key, entry);
+      entry.result.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  // Same on every server for the same key within a window. Hashed so that
+  // emails and customer IDs don't end up in Stripe's request logs as keys.
+  String idempotencyKey(String key, long now) {
+    try {
+      byte[] hash = MessageDigest
+        .getInstance("SHA-256")
+        .digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder out = new StringBuilder(name).append('-');
+      for (int i = 0; i < 16; i++) {
+        out.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+        out.append(Character.forDigit(hash[i] & 0xf, 16));
+      }
+      return out.append('-').append(now / windowMillis).toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private T await(Entry<T> entry) throws StripeException {
+    try {
+      return entry.result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ApiConnectionException("Interrupted while waiting for an identical request", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof StripeException) {
+        throw (StripeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (RuntimeException) cause;
+    }
+  }
+
+  private void evictExpired(long now) {
+    Iterator<Entry<T>> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry<T> entry = it.next();
+      if (entry.result.isDone() && now - entry.completedAt > windowMillis) {
+        it.remove();
+      }
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    long joined = joinedInFlight.sum();
+    long hits = completedHits.sum();
+    stats.put("calls", calls.sum());
+    stats.put("coalesced", joined + hits);
+    stats.put("joinedInFlight", joined);
+    stats.put("completedHits", hits);
+    stats.put("size", entries.size());
+    return stats;
+  }
+}
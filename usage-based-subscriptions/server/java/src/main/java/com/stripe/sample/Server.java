@@ -8,11 +8,15 @@ import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 import com.stripe.Stripe;
 import com.stripe.StripeClient;
+import com.stripe.exception.InvalidRequestException;
 import com.stripe.exception.SignatureVerificationException;
 import com.stripe.exception.StripeException;
 import com.stripe.model.*;
 import com.stripe.model.billing.Meter;
 import com.stripe.model.v2.billing.MeterEvent;
+import com.stripe.net.ApiResource;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.stripe.net.StripeResponseGetter;
 import com.stripe.net.Webhook;
 import com.stripe.param.CustomerCreateParams;
 import com.stripe.param.PriceCreateParams;
@@ -22,14 +26,30 @@ import com.stripe.param.billing.MeterCreateParams;
 import com.stripe.param.v2.billing.MeterEventCreateParams;
 import io.github.cdimascio.dotenv.Dotenv;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
   private static final Gson gson = new Gson();
 
   static class CreateCustomerBody {
+    static final RequestBodies.BodyReader<CreateCustomerBody> READER = RequestBodies
+      .reader(CreateCustomerBody::new)
+      .string("name", (body, value) -> body.name = value)
+      .requiredString("email", (body, value) -> body.email = value);
+
     @SerializedName("name")
     String name;
 
@@ -46,6 +66,12 @@ public class Server {
   }
 
   static class CreateMeterBody {
+    static final RequestBodies.BodyReader<CreateMeterBody> READER = RequestBodies
+      .reader(CreateMeterBody::new)
+      .requiredString("displayName", (body, value) -> body.displayName = value)
+      .requiredString("eventName", (body, value) -> body.eventName = value)
+      .string("aggregationFormula", (body, value) -> body.aggregationFormula = value);
+
     @SerializedName("displayName")
     String displayName;
 
@@ -72,6 +98,13 @@ public class Server {
   }
 
   static class CreatePriceBody {
+    static final RequestBodies.BodyReader<CreatePriceBody> READER = RequestBodies
+      .reader(CreatePriceBody::new)
+      .requiredString("currency", (body, value) -> body.currency = value)
+      .requiredLong("amount", (body, value) -> body.amount = value)
+      .requiredString("meterId", (body, value) -> body.meterId = value)
+      .requiredString("productName", (body, value) -> body.productName = value);
+
     @SerializedName("currency")
     String currency;
 
@@ -120,6 +153,11 @@ public class Server {
   }
 
   static class CreateSubscriptionBody {
+    static final RequestBodies.BodyReader<CreateSubscriptionBody> READER = RequestBodies
+      .reader(CreateSubscriptionBody::new)
+      .requiredString("customerId", (body, value) -> body.customerId = value)
+      .requiredString("priceId", (body, value) -> body.priceId = value);
+
     @SerializedName("customerId")
     String customerId;
 
@@ -136,9 +174,19 @@ public class Server {
   }
 
   static class CreateMeterEventBody {
+    static final RequestBodies.BodyReader<CreateMeterEventBody> READER = RequestBodies
+      .reader(CreateMeterEventBody::new)
+      .requiredString("eventName", (body, value) -> body.eventName = value)
+      .string("identifier", (body, value) -> body.identifier = value)
+      .requiredString("value", (body, value) -> body.value = value)
+      .requiredString("customerId", (body, value) -> body.customerId = value);
+
     @SerializedName("eventName")
     String eventName;
 
+    @SerializedName("identifier")
+    String identifier;
+
     @SerializedName("value")
     String value;
 
@@ -156,6 +204,12 @@ public class Server {
     public String getValue() {
       return value;
     }
+
+    // Optional. A client that reuses the identifier when it retries a request
+    // can't have the event counted twice.
+    public String getIdentifier() {
+      return identifier;
+    }
   }
 
   public static void main(String[] args) {
@@ -169,6 +223,85 @@ public class Server {
     );
     Stripe.apiKey = dotenv.get("STRIPE_SECRET_KEY");
 
+    // Send Stripe API calls somewhere other than api.stripe.com, such as the
+    // stand-in in load-test/.
+    String apiBase = setting(dotenv, "STRIPE_API_BASE", null);
+    if (apiBase != null) {
+      Stripe.overrideApiBase(apiBase);
+      Stripe.overrideMeterEventsBase(apiBase);
+    }
+
+    // One pooled HTTP client for every Stripe call in the process, shared by
+    // the static API (Customer.create, ...) and by StripeClient, so requests
+    // reuse keep-alive connections instead of doing a new TLS handshake.
+    // Latency and outcome of every route and Stripe call, on `/metrics`.
+    Metrics metrics = new Metrics();
+    PooledStripeHttpClient stripeHttpClient = createStripeHttpClient(dotenv, metrics);
+    // Every call then waits its turn in the scheduler, which keeps us under
+    // Stripe's rate limits and lets route handlers go ahead of background
+    // work. STRIPE_SCHEDULER=off sends calls straight away.
+    StripeCallScheduler stripeScheduler = "off".equals(setting(dotenv, "STRIPE_SCHEDULER", "on"))
+      ? null
+      : createStripeCallScheduler(dotenv, stripeHttpClient);
+    StripeResponseGetter stripeResponseGetter = new LiveStripeResponseGetter(
+      stripeScheduler == null ? stripeHttpClient : stripeScheduler
+    );
+    ApiResource.setGlobalResponseGetter(stripeResponseGetter);
+    StripeClient stripeClient = new StripeClient(stripeResponseGetter);
+
+    // Stripe may deliver the same event more than once. Remember which
+    // events were already handled so redeliveries are simply acknowledged.
+    EventDeduplicator eventDeduplicator = createEventDeduplicator(dotenv);
+
+    // A double click or a client retry of `/create-customer` or
+    // `/create-subscription` gets the result of the first request instead of
+    // creating a second customer or subscription.
+    long coalesceWindowMillis = TimeUnit.SECONDS.toMillis(
+      Long.parseLong(setting(dotenv, "REQUEST_COALESCE_WINDOW_SECONDS", "30"))
+    );
+    RequestCoalescer<Customer> customerCoalescer =
+      new RequestCoalescer<>("create-customer", coalesceWindowMillis, 10000);
+    RequestCoalescer<Subscription> subscriptionCoalescer =
+      new RequestCoalescer<>("create-subscription", coalesceWindowMillis, 10000);
+
+    // `/bulk-provision` runs up to BULK_PROVISION_CONCURRENCY rows at once
+    // and keeps each job's progress in BULK_PROVISION_DIR so it can resume.
+    BulkProvisioner bulkProvisioner = createBulkProvisioner(dotenv);
+
+    // With METER_EVENT_MODE=batched, `/create-meter-event` queues the event
+    // and returns 202; the events are sent in batches through the meter
+    // event stream.
+    MeterEventBatcher meterEventBatcher = "batched".equals(dotenv.get("METER_EVENT_MODE"))
+      ? startMeterEventBatcher(dotenv, stripeClient)
+      : null;
+
+    // With METER_AGGREGATION=on, events for SUM meters are added up per
+    // customer and sent as one event per window instead of one per request.
+    // Usage is written to a journal before `/create-meter-event` answers and
+    // marked as committed once Stripe has it; events left over from a crash
+    // are sent again at startup. USAGE_JOURNAL=off turns this off.
+    UsageJournal usageJournal = "off".equals(dotenv.get("USAGE_JOURNAL"))
+      ? null
+      : startUsageJournal(dotenv, stripeClient, meterEventBatcher);
+
+    MeterEventAggregator meterEventAggregator = "on".equals(dotenv.get("METER_AGGREGATION"))
+      ? startMeterEventAggregator(dotenv, stripeClient, meterEventBatcher, usageJournal)
+      : null;
+
+    // SERVER_THREADS=virtual runs each request on its own virtual thread
+    // (Java 21) instead of on Jetty's pool of SERVER_MAX_THREADS threads. This
+    // has to happen before the first route is defined.
+    RouteThreads routeThreads = "virtual".equals(setting(dotenv, "SERVER_THREADS", "platform"))
+      ? RouteThreads.virtual(Long.parseLong(setting(dotenv, "VIRTUAL_THREAD_PINNED_THRESHOLD_MS", "20")))
+      : RouteThreads.platform(Integer.parseInt(setting(dotenv, "SERVER_MAX_THREADS", "200")));
+    routeThreads.install();
+    // Bodies larger than this are turned away before they are read.
+    RequestBodies.install(Integer.parseInt(setting(dotenv, "REQUEST_BODY_MAX_BYTES", "16384")));
+    metrics.install();
+    if (stripeScheduler != null) {
+      stripeScheduler.install(metrics);
+    }
+
     get(
       "/config",
       (request, response) -> {
@@ -182,15 +315,50 @@ public class Server {
       }
     );
 
+    get(
+      "/metrics",
+      (request, response) -> {
+        response.type("text/plain; version=0.0.4");
+        return metrics.render();
+      }
+    );
+
+    get(
+      "/stats",
+      (request, response) -> {
+        response.type("application/json");
+        Map<String, Object> responseData = new HashMap<>();
+        responseData.put("webhookDedupe", eventDeduplicator.stats());
+        responseData.put("stripeHttpClient", stripeHttpClient.stats());
+        if (stripeScheduler != null) {
+          responseData.put("stripeScheduler", stripeScheduler.stats());
+        }
+        responseData.put("responses", ResponseWriter.stats());
+        responseData.put("routeThreads", routeThreads.stats());
+        Map<String, Object> coalescing = new HashMap<>();
+        coalescing.put("createCustomer", customerCoalescer.stats());
+        coalescing.put("createSubscription", subscriptionCoalescer.stats());
+        responseData.put("requestCoalescing", coalescing);
+        if (meterEventBatcher != null) {
+          responseData.put("meterEventBatcher", meterEventBatcher.stats());
+        }
+        if (meterEventAggregator != null) {
+          responseData.put("meterEventAggregator", meterEventAggregator.stats());
+        }
+        if (usageJournal != null) {
+          responseData.put("usageJournal", usageJournal.stats());
+        }
+        responseData.put("bulkProvisioning", bulkProvisioner.stats());
+        return gson.toJson(responseData);
+      }
+    );
+
     post(
       "/create-customer",
       (request, response) -> {
         response.type("application/json");
 
-        CreateCustomerBody postBody = gson.fromJson(
-          request.body(),
-          CreateCustomerBody.class
-        );
+        CreateCustomerBody postBody = RequestBodies.read(request, CreateCustomerBody.READER);
         CustomerCreateParams customerParams = CustomerCreateParams
           .builder()
           .setEmail(postBody.getEmail())
@@ -198,21 +366,24 @@ public class Server {
           .build();
 
         try {
-          // Create a new customer object
-          Customer customer = Customer.create(customerParams);
+          // Create a new customer object, once for repeated submissions
+          Customer customer = customerCoalescer.execute(
+            postBody.getEmail() + "|" + postBody.getName(),
+            options -> Customer.create(customerParams, options)
+          );
 
           Map<String, Object> responseData = new HashMap<>();
           responseData.put("customer", customer);
 
-          //we use StripeObject.PRETTY_PRINT_GSON.toJson() so that we get the JSON our client is expecting on the polymorphic
+          //ResponseWriter serializes with StripeObject.PRETTY_PRINT_GSON so that we get the JSON our client is expecting on the polymorphic
           //parameters that can either be object ids or the object themselves. If we tried to generate the JSON without call this,
           //for example, by calling gson.toJson(responseData) we will see something like "customer":{"id":"cus_XXX"} instead of
           //"customer":"cus_XXX".
           //If you only need to return 1 object, you can use the built in serializers, i.e. Subscription.retrieve("sub_XXX").toJson()
-          return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+          return ResponseWriter.write(responseData);
         } catch (StripeException e) {
           response.status(400);
-          return StripeObject.PRETTY_PRINT_GSON.toJson(
+          return ResponseWriter.write(
             new ErrorResponse(
               new Error(e.getStripeError().getMessage())
             )
@@ -226,10 +397,7 @@ public class Server {
       (request, response) -> {
         response.type("application/json");
 
-        CreateMeterBody postBody = gson.fromJson(
-          request.body(),
-          CreateMeterBody.class
-        );
+        CreateMeterBody postBody = RequestBodies.read(request, CreateMeterBody.READER);
 
         MeterCreateParams meterCreateParams = MeterCreateParams.builder()
           .setDisplayName(postBody.getDisplayName())
@@ -242,12 +410,18 @@ public class Server {
 
         try {
           Meter meter = Meter.create(meterCreateParams);
+          if (
+            meterEventAggregator != null &&
+            postBody.getAggregationFormula() == MeterCreateParams.DefaultAggregation.Formula.SUM
+          ) {
+            meterEventAggregator.register(meter.getEventName());
+          }
           Map<String, Object> responseData = new HashMap<>();
           responseData.put("meter", meter);
-          return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+          return ResponseWriter.write(responseData);
         } catch (StripeException e) {
           response.status(400);
-          return StripeObject.PRETTY_PRINT_GSON.toJson(
+          return ResponseWriter.write(
             new ErrorResponse(
               new Error(e.getStripeError().getMessage())
             )
@@ -259,10 +433,7 @@ public class Server {
     post("/create-price",(request, response) -> {
       response.type("application/json");
 
-      CreatePriceBody postBody = gson.fromJson(
-        request.body(),
-        CreatePriceBody.class
-      );
+      CreatePriceBody postBody = RequestBodies.read(request, CreatePriceBody.READER);
 
       PriceCreateParams priceCreateParams = PriceCreateParams.builder()
         .setCurrency(postBody.getCurrency())
@@ -281,10 +452,10 @@ public class Server {
         Price price = Price.create(priceCreateParams);
         Map<String, Object> responseData = new HashMap<>();
         responseData.put("price", price);
-        return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+        return ResponseWriter.write(responseData);
       } catch (StripeException e) {
         response.status(400);
-        return StripeObject.PRETTY_PRINT_GSON.toJson(
+        return ResponseWriter.write(
           new ErrorResponse(
             new Error(e.getStripeError().getMessage())
           )
@@ -296,10 +467,7 @@ public class Server {
       "/create-subscription",
       (request, response) -> {
         response.type("application/json");
-        CreateSubscriptionBody postBody = gson.fromJson(
-          request.body(),
-          CreateSubscriptionBody.class
-        );
+        CreateSubscriptionBody postBody = RequestBodies.read(request, CreateSubscriptionBody.READER);
         // Create the subscription
         SubscriptionCreateParams subCreateParams = SubscriptionCreateParams
           .builder()
@@ -314,13 +482,16 @@ public class Server {
           .build();
 
         try {
-          Subscription subscription = Subscription.create(subCreateParams);
+          Subscription subscription = subscriptionCoalescer.execute(
+            postBody.getCustomerId() + "|" + postBody.getPriceId(),
+            options -> Subscription.create(subCreateParams, options)
+          );
           Map<String, Object> responseData = new HashMap<>();
           responseData.put("subscription", subscription);
-          return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+          return ResponseWriter.write(responseData);
         } catch (StripeException e) {
           response.status(400);
-          return StripeObject.PRETTY_PRINT_GSON.toJson(
+          return ResponseWriter.write(
             new ErrorResponse(
               new Error(e.getStripeError().getMessage())
             )
@@ -329,34 +500,143 @@ public class Server {
       }
     );
 
+    // Onboards a whole account at once: each NDJSON row of the body,
+    // `{"email", "name", "priceId"}`, gets a customer and a subscription, and
+    // each row's result is written back as NDJSON when it is done. Sending
+    // the same job again skips the rows that already finished. The job is in
+    // the path because reading a query parameter would make Jetty consume a
+    // body sent as a form.
+    //
+    // Only a chunked body is streamed: Spark reads any other body into memory
+    // first, so one whose Content-Length is over BULK_PROVISION_MAX_BYTES is
+    // turned away before it is read.
+    post(
+      "/bulk-provision/:job",
+      (request, response) -> {
+        response.type("application/json");
+        String jobId = request.params(":job");
+        if (!BulkProvisioner.isValidJobId(jobId)) {
+          response.status(400);
+          return ResponseWriter.write(
+            new ErrorResponse(new Error("job must be 1 to 64 letters, digits, dashes or underscores"))
+          );
+        }
+        if (request.contentLength() > bulkProvisioner.maxBytes()) {
+          response.status(413);
+          return ResponseWriter.write(
+            new ErrorResponse(new Error(
+              "The job is larger than " + bulkProvisioner.maxBytes() + " bytes; split it into smaller jobs"
+            ))
+          );
+        }
+
+        try (BulkProvisioner.Job job = bulkProvisioner.open(jobId)) {
+          if (job == null) {
+            response.status(409);
+            return ResponseWriter.write(
+              new ErrorResponse(new Error("Job " + jobId + " is already running"))
+            );
+          }
+          response.type("application/x-ndjson");
+          Writer out = new BufferedWriter(
+            new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8)
+          );
+          job.run(request.raw().getInputStream(), out);
+        }
+        // Everything has been written; Spark has nothing left to send.
+        return "";
+      }
+    );
+
     post("/create-meter-event",
       (request, response) -> {
         response.type("application/json");
 
-        CreateMeterEventBody postBody = gson.fromJson(
-          request.body(),
-          CreateMeterEventBody.class
+        CreateMeterEventBody postBody = RequestBodies.read(request, CreateMeterEventBody.READER);
+
+        String identifier = postBody.getIdentifier() != null
+          ? postBody.getIdentifier()
+          : UUID.randomUUID().toString();
+        Instant timestamp = Instant.now();
+        long journalId = usageJournal == null ? -1 : usageJournal.append(
+          postBody.getEventName(),
+          postBody.getCustomerId(),
+          postBody.getValue(),
+          identifier,
+          Long.toString(timestamp.toEpochMilli())
         );
+        Runnable commit = () -> {
+          if (journalId >= 0) {
+            usageJournal.commit(journalId);
+          }
+        };
+
+        if (
+          meterEventAggregator != null &&
+          meterEventAggregator.add(
+            postBody.getEventName(),
+            postBody.getCustomerId(),
+            postBody.getValue(),
+            journalId
+          )
+        ) {
+          // Added to this window's total for the customer; it is sent when
+          // the window closes.
+          response.status(202);
+          Map<String, Object> responseData = new HashMap<>();
+          responseData.put("status", "aggregated");
+          return gson.toJson(responseData);
+        }
+
+        if (meterEventBatcher != null) {
+          // Batched mode: accept the event now and let the batcher send it.
+          String queued = meterEventBatcher.submit(
+            postBody.getEventName(),
+            postBody.getCustomerId(),
+            postBody.getValue(),
+            timestamp,
+            identifier,
+            commit
+          );
+          if (queued == null) {
+            // Refused, so there is nothing left to send.
+            commit.run();
+            response.status(503);
+            return gson.toJson(
+              new ErrorResponse(new Error("Too many meter events queued, try again later"))
+            );
+          }
+          response.status(202);
+          Map<String, Object> responseData = new HashMap<>();
+          responseData.put("identifier", identifier);
+          responseData.put("status", "queued");
+          return gson.toJson(responseData);
+        }
 
         MeterEventCreateParams meterEventCreateParams = MeterEventCreateParams.builder()
           .setEventName(postBody.getEventName())
+          .setIdentifier(identifier)
+          .setTimestamp(timestamp)
           .putPayload("stripe_customer_id", postBody.getCustomerId())
           .putPayload("value", postBody.getValue())
           .build();
 
         try {
-          StripeClient client = new StripeClient(dotenv.get("STRIPE_SECRET_KEY"));
-          MeterEvent meterEvent = client.v2().billing().meterEvents().create(meterEventCreateParams);
+          MeterEvent meterEvent = stripeClient.v2().billing().meterEvents().create(meterEventCreateParams);
           Map<String, Object> responseData = new HashMap<>();
           responseData.put("meterEvent", meterEvent);
-          return StripeObject.PRETTY_PRINT_GSON.toJson(responseData);
+          return ResponseWriter.write(responseData);
         } catch (StripeException e) {
           response.status(400);
-          return StripeObject.PRETTY_PRINT_GSON.toJson(
+          return ResponseWriter.write(
             new ErrorResponse(
               new Error(e.getStripeError().getMessage())
             )
           );
+        } finally {
+          // Either Stripe has the event or the client was told it failed;
+          // only a crash before this point leaves it to be sent at startup.
+          commit.run();
         }
       });
 
@@ -376,41 +656,53 @@ public class Server {
           return "";
         }
 
-        // Deserialize the nested object inside the event
-        EventDataObjectDeserializer dataObjectDeserializer = event.getDataObjectDeserializer();
-        StripeObject stripeObject = null;
-        if (dataObjectDeserializer.getObject().isPresent()) {
-          stripeObject = dataObjectDeserializer.getObject().get();
-        } else {
-          // Deserialization failed, probably due to an API version mismatch.
-          // Refer to the Javadoc documentation on `EventDataObjectDeserializer` for
-          // instructions on how to handle this case, or return an error here.
+        // Claimed before handling, so a redelivery arriving meanwhile isn't
+        // handled alongside it; a failed attempt gives the claim back.
+        if (!eventDeduplicator.tryClaim(event.getId())) {
+          response.status(200);
+          return "";
         }
 
-        switch (event.getType()) {
-          case "invoice.paid":
-            // Used to provision services after the trial has ended.
-            // The status of the invoice will show up as paid. Store the status in your
-            // database to reference when a user accesses your service to avoid hitting rate
-            // limits.
-            break;
-          case "invoice.payment_failed":
-            // If the payment fails or the customer does not have a valid payment method,
-            // an invoice.payment_failed event is sent, the subscription becomes past_due.
-            // Use this webhook to notify your user that their payment has
-            // failed and to retrieve new card details.
-            break;
-          case "invoice.finalized":
-            // If you want to manually send out invoices to your customers
-            // or store them locally to reference to avoid hitting Stripe rate limits.
-            break;
-          case "customer.subscription.deleted":
-            // handle subscription cancelled automatically based
-            // upon your subscription settings. Or if the user
-            // cancels it.
-            break;
-          default:
-          // Unhandled event type
+        try {
+          // Deserialize the nested object inside the event
+          EventDataObjectDeserializer dataObjectDeserializer = event.getDataObjectDeserializer();
+          StripeObject stripeObject = null;
+          if (dataObjectDeserializer.getObject().isPresent()) {
+            stripeObject = dataObjectDeserializer.getObject().get();
+          } else {
+            // Deserialization failed, probably due to an API version mismatch.
+            // Refer to the Javadoc documentation on `EventDataObjectDeserializer` for
+            // instructions on how to handle this case, or return an error here.
+          }
+
+          switch (event.getType()) {
+            case "invoice.paid":
+              // Used to provision services after the trial has ended.
+              // The status of the invoice will show up as paid. Store the status in your
+              // database to reference when a user accesses your service to avoid hitting rate
+              // limits.
+              break;
+            case "invoice.payment_failed":
+              // If the payment fails or the customer does not have a valid payment method,
+              // an invoice.payment_failed event is sent, the subscription becomes past_due.
+              // Use this webhook to notify your user that their payment has
+              // failed and to retrieve new card details.
+              break;
+            case "invoice.finalized":
+              // If you want to manually send out invoices to your customers
+              // or store them locally to reference to avoid hitting Stripe rate limits.
+              break;
+            case "customer.subscription.deleted":
+              // handle subscription cancelled automatically based
+              // upon your subscription settings. Or if the user
+              // cancels it.
+              break;
+            default:
+            // Unhandled event type
+          }
+          eventDeduplicator.markProcessed(event.getId());
+        } finally {
+          eventDeduplicator.release(event.getId());
         }
 
         response.status(200);
@@ -418,4 +710,225 @@ public class Server {
       }
     );
   }
+  private static String setting(Dotenv dotenv, String name, String defaultValue) {
+    String value = dotenv.get(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+
+  private static PooledStripeHttpClient createStripeHttpClient(Dotenv dotenv, Metrics metrics) {
+    return new PooledStripeHttpClient(
+      Integer.parseInt(setting(dotenv, "STRIPE_HTTP_MAX_CONNECTIONS_PER_HOST", "64")),
+      Long.parseLong(setting(dotenv, "STRIPE_HTTP_CONNECT_TIMEOUT_MS", "30000")),
+      Long.parseLong(setting(dotenv, "STRIPE_HTTP_READ_TIMEOUT_MS", "80000")),
+      Long.parseLong(setting(dotenv, "STRIPE_HTTP_KEEP_ALIVE_MS", "60000")),
+      metrics
+    );
+  }
+
+  private static StripeCallScheduler createStripeCallScheduler(Dotenv dotenv, PooledStripeHttpClient stripeHttpClient) {
+    return new StripeCallScheduler(
+      stripeHttpClient,
+      Double.parseDouble(setting(dotenv, "STRIPE_READ_RATE", "100")),
+      Double.parseDouble(setting(dotenv, "STRIPE_WRITE_RATE", "100")),
+      Integer.parseInt(setting(dotenv, "STRIPE_MAX_CONCURRENCY", setting(dotenv, "STRIPE_HTTP_MAX_CONNECTIONS_PER_HOST", "64"))),
+      Long.parseLong(setting(dotenv, "STRIPE_QUEUE_TIMEOUT_MS", "10000"))
+    );
+  }
+
+  private static MeterEventBatcher startMeterEventBatcher(Dotenv dotenv, StripeClient stripeClient) {
+    MeterEventBatcher meterEventBatcher = new MeterEventBatcher(
+      stripeClient,
+      // The meter event stream takes at most 100 events per request.
+      Math.min(Integer.parseInt(setting(dotenv, "METER_EVENT_BATCH_SIZE", "100")), 100),
+      Long.parseLong(setting(dotenv, "METER_EVENT_FLUSH_INTERVAL_MS", "250")),
+      Integer.parseInt(setting(dotenv, "METER_EVENT_MAX_IN_FLIGHT", "4")),
+      Integer.parseInt(setting(dotenv, "METER_EVENT_QUEUE_CAPACITY", "100000"))
+    );
+    meterEventBatcher.start();
+    return meterEventBatcher;
+  }
+
+  private static MeterEventAggregator startMeterEventAggregator(
+    Dotenv dotenv,
+    StripeClient stripeClient,
+    MeterEventBatcher meterEventBatcher,
+    UsageJournal usageJournal
+  ) {
+    MeterEventAggregator.Sink sink = new MeterEventAggregator.Sink() {
+      // Each total is journaled, and on disk, before it is sent. From then on
+      // a crash replays the total under its own identifier rather than the
+      // events it was made from under theirs, which Stripe would count again.
+      @Override
+      public void record(List<MeterEventAggregator.Total> totals) {
+        if (usageJournal == null) {
+          return;
+        }
+        try {
+          for (MeterEventAggregator.Total total : totals) {
+            total.windowId = usageJournal.appendWindow(
+              total.journalIds,
+              total.eventName,
+              total.customerId,
+              Long.toString(total.value),
+              total.identifier,
+              Long.toString(total.timestamp.toEpochMilli())
+            );
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        usageJournal.awaitDurable();
+      }
+
+      @Override
+      public void emit(MeterEventAggregator.Total total) {
+        Runnable commit = () -> {
+          if (total.windowId >= 0) {
+            usageJournal.commit(total.windowId);
+          }
+        };
+        String value = Long.toString(total.value);
+        if (meterEventBatcher != null) {
+          if (
+            meterEventBatcher.submit(
+              total.eventName,
+              total.customerId,
+              value,
+              total.timestamp,
+              total.identifier,
+              commit
+            ) == null
+          ) {
+            throw new IllegalStateException("meter event queue is full");
+          }
+          return;
+        }
+        try {
+          stripeClient.v2().billing().meterEvents().create(
+            meterEventParams(total.eventName, total.customerId, value, total.timestamp, total.identifier)
+          );
+          commit.run();
+        } catch (InvalidRequestException e) {
+          // Resending it would be turned down the same way.
+          System.out.println("Dropping aggregated meter event " + total.identifier + ": " + e.getMessage());
+          commit.run();
+        } catch (StripeException e) {
+          throw new IllegalStateException(e.getMessage(), e);
+        }
+      }
+    };
+    MeterEventAggregator meterEventAggregator = new MeterEventAggregator(
+      Integer.parseInt(setting(dotenv, "METER_AGGREGATION_STRIPES", "64")),
+      Long.parseLong(setting(dotenv, "METER_AGGREGATION_WINDOW_MS", "60000")),
+      sink
+    );
+    for (String eventName : setting(dotenv, "METER_AGGREGATION_EVENTS", "").split(",")) {
+      if (!eventName.trim().isEmpty()) {
+        meterEventAggregator.register(eventName.trim());
+      }
+    }
+    meterEventAggregator.start();
+    return meterEventAggregator;
+  }
+
+  private static MeterEventCreateParams meterEventParams(
+    String eventName,
+    String customerId,
+    String value,
+    Instant timestamp,
+    String identifier
+  ) {
+    return MeterEventCreateParams.builder()
+      .setEventName(eventName)
+      .setIdentifier(identifier)
+      .setTimestamp(timestamp)
+      .putPayload("stripe_customer_id", customerId)
+      .putPayload("value", value)
+      .build();
+  }
+
+  private static UsageJournal startUsageJournal(
+    Dotenv dotenv,
+    StripeClient stripeClient,
+    MeterEventBatcher meterEventBatcher
+  ) {
+    UsageJournal usageJournal;
+    List<UsageJournal.Entry> leftOver;
+    try {
+      usageJournal = new UsageJournal(
+        Paths.get(setting(dotenv, "USAGE_JOURNAL_DIR", "usage-journal")),
+        Integer.parseInt(setting(dotenv, "USAGE_JOURNAL_SEGMENT_MB", "64")) << 20,
+        UsageJournal.SyncMode.valueOf(setting(dotenv, "USAGE_JOURNAL", "group").toUpperCase()),
+        Long.parseLong(setting(dotenv, "USAGE_JOURNAL_SYNC_INTERVAL_MS", "100"))
+      );
+      leftOver = usageJournal.recover();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (leftOver.isEmpty()) {
+      return usageJournal;
+    }
+
+    // Send what the last run accepted but never got to Stripe, in the
+    // background so the server can start taking requests meanwhile. Each
+    // event keeps its identifier, so any that did reach Stripe are ignored.
+    System.out.println("Sending " + leftOver.size() + " meter events left over in the usage journal");
+    Thread replay = new Thread(StripeCallScheduler.withPriority(StripeCallScheduler.Priority.BACKGROUND, () -> {
+      for (UsageJournal.Entry entry : leftOver) {
+        String[] fields = entry.fields;
+        Instant timestamp = Instant.ofEpochMilli(Long.parseLong(fields[4]));
+        Runnable commit = () -> usageJournal.commit(entry.id);
+        if (meterEventBatcher != null) {
+          while (meterEventBatcher.submit(fields[0], fields[1], fields[2], timestamp, fields[3], commit) == null) {
+            try {
+              Thread.sleep(100);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          continue;
+        }
+        try {
+          stripeClient.v2().billing().meterEvents().create(
+            meterEventParams(fields[0], fields[1], fields[2], timestamp, fields[3])
+          );
+          commit.run();
+        } catch (InvalidRequestException e) {
+          // Stripe will never take this one; don't try again next time.
+          System.out.println("Dropping meter event " + fields[3] + ": " + e.getMessage());
+          commit.run();
+        } catch (StripeException e) {
+          System.out.println("Could not resend meter event " + fields[3] + ": " + e.getMessage());
+        }
+      }
+    }), "usage-journal-replay");
+    replay.setDaemon(true);
+    replay.start();
+    return usageJournal;
+  }
+
+  private static BulkProvisioner createBulkProvisioner(Dotenv dotenv) {
+    try {
+      return new BulkProvisioner(
+        Paths.get(setting(dotenv, "BULK_PROVISION_DIR", "bulk-provision")),
+        Integer.parseInt(setting(dotenv, "BULK_PROVISION_CONCURRENCY", "16")),
+        Long.parseLong(setting(dotenv, "BULK_PROVISION_MAX_BYTES", "16777216"))
+      );
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static EventDeduplicator createEventDeduplicator(Dotenv dotenv) {
+    try {
+      return new EventDeduplicator(
+        Paths.get(setting(dotenv, "WEBHOOK_DEDUPE_DIR", "webhook-dedupe")),
+        Integer.parseInt(setting(dotenv, "WEBHOOK_DEDUPE_RECENT", "10000")),
+        TimeUnit.HOURS.toMillis(Long.parseLong(setting(dotenv, "WEBHOOK_DEDUPE_WINDOW_HOURS", "72"))),
+        Integer.parseInt(setting(dotenv, "WEBHOOK_DEDUPE_SLOTS", "1048576"))
+      );
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 }